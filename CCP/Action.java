@@ -0,0 +1,58 @@
+package CCP;
+
+// Actions carried by EXEC commands. Wire codes are used by BinaryCodec and must never be reused
+public enum Action {
+    STOPC(1),           // Stop and close doors
+    STOPO(2),           // Stop and open doors
+    FSLOWC(3),          // Forward slowly
+    FFASTC(4),          // Forward fast
+    RSLOWC(5),          // Reverse slowly
+    DISCONNECT(6),
+    HAZARD_DETECTED(7),
+    FLASH_LED(8),
+    IRLD(9),            // IR LED on/off, see the "status" field
+    CLEAR_HAZARD(10);   // Releases a hazard stop, the carriage stays STOPPED
+
+    private static final Action[] BY_CODE = new Action[16];
+
+    static {
+        for (Action action : values()) {
+            BY_CODE[action.code] = action;
+        }
+    }
+
+    private final byte code;
+
+    Action(int code) {
+        this.code = (byte) code;
+    }
+
+    public byte getCode() {
+        return code;
+    }
+
+    // Returns null for code 0 (no action) or an unknown code
+    public static Action fromCode(byte code) {
+        return code > 0 && code < BY_CODE.length ? BY_CODE[code] : null;
+    }
+
+    // Returns null when the name is not a known action
+    public static Action fromName(String name) {
+        if (name == null) {
+            return null;
+        }
+        switch (name) {
+            case "STOPC": return STOPC;
+            case "STOPO": return STOPO;
+            case "FSLOWC": return FSLOWC;
+            case "FFASTC": return FFASTC;
+            case "RSLOWC": return RSLOWC;
+            case "DISCONNECT": return DISCONNECT;
+            case "HAZARD_DETECTED": return HAZARD_DETECTED;
+            case "FLASH_LED": return FLASH_LED;
+            case "IRLD": return IRLD;
+            case "CLEAR_HAZARD": return CLEAR_HAZARD;
+            default: return null;
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package CCP;
+
+// One action in a BATCH command, run after waiting delayMillis from the previous step
+public final class BatchStep {
+
+    private final Action action;
+    private final String status;     // IRLD "ON"/"OFF", null otherwise
+    private final long delayMillis;
+
+    public BatchStep(Action action, String status, long delayMillis) {
+        this.action = action;
+        this.status = status;
+        this.delayMillis = delayMillis;
+    }
+
+    public Action getAction() {
+        return action;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public long getDelayMillis() {
+        return delayMillis;
+    }
+}
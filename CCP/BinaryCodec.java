@@ -0,0 +1,277 @@
+package CCP;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+// Compact fixed-layout encoding for MCP <-> CCP messages, negotiated at CCIN time.
+//
+// Layout (big-endian):
+//   0      magic 0xB7 (never a valid first byte of a JSON message)
+//   1      version
+//   2      MessageType code
+//   3      Action code, 0 when absent
+//   4      flags, see FLAG_*
+//   5-8    sequence number
+//   9-16   timestamp, epoch millis
+//   17     extension flags, see EXT_*
+//   18     client_id length n
+//   19..   client_id, US-ASCII
+//   +4     ACK mask, only when FLAG_ACK_MASK is set
+//   +1     BATCH step count k, only when FLAG_STEPS is set, then k steps of
+//          6 bytes each: Action code, status (0 none, 1 ON, 2 OFF), delay millis
+//   +12    position, front gap and rear gap in mm (-1 when absent), only when FLAG_TRACK is set
+//   +8     trace stamp, only when EXT_TRACE is set
+//
+// Fields added later get an EXT_* flag rather than another version.
+public final class BinaryCodec {
+
+    public static final String NAME = "binary";
+    public static final byte MAGIC = (byte) 0xB7;
+
+    private static final byte VERSION = 1;
+    private static final int HEADER_LENGTH = 19;
+
+    private static final int FLAG_CLIENT_MCP = 0x01;   // client_type "MCP", otherwise "ccp"
+    private static final int FLAG_STATUS = 0x02;       // status field present
+    private static final int FLAG_STATUS_ON = 0x04;    // status "ON", otherwise "OFF"
+    private static final int FLAG_SEQUENCE = 0x08;     // sequence number present
+    private static final int FLAG_CODEC_BINARY = 0x10; // sender advertises this codec
+    private static final int FLAG_ACK_MASK = 0x20;     // ACK mask follows client_id
+    private static final int FLAG_STEPS = 0x40;        // BATCH steps follow
+    private static final int FLAG_TRACK = 0x80;        // Position / GAPS distances follow
+
+    private static final int EXT_TRACE = 0x01;         // Trace stamp follows
+
+    private static final int STEP_LENGTH = 6;
+
+    private BinaryCodec() {
+    }
+
+    // True when the datagram starts with the binary magic byte
+    public static boolean isBinary(byte[] data, int offset, int length) {
+        return length > 0 && data[offset] == MAGIC;
+    }
+
+    // Messages that cannot be represented here are sent as JSON instead
+    public static boolean canEncode(McpMessage message) {
+        if (message.getType() == MessageType.UNKNOWN || message.hasStreamEpoch() || message.hasGroupSequence()) {
+            return false; // The stream epoch and group sequence only travel in AKIN, which is always JSON
+        }
+        if (!"MCP".equals(message.getClientType()) && !"ccp".equals(message.getClientType())) {
+            return false;
+        }
+        String status = message.getStatus();
+        if (status != null && !"ON".equals(status) && !"OFF".equals(status)) {
+            return false;
+        }
+        String codec = message.getCodec();
+        if (codec != null && !NAME.equals(codec)) {
+            return false;
+        }
+        String clientId = message.getClientId();
+        if (clientId == null || clientId.length() > 255) {
+            return false;
+        }
+        for (int i = 0; i < clientId.length(); i++) {
+            if (clientId.charAt(i) > 0x7F) {
+                return false;
+            }
+        }
+        List<BatchStep> steps = message.getSteps();
+        if (steps != null) {
+            if (steps.size() > 255) {
+                return false;
+            }
+            for (BatchStep step : steps) {
+                String stepStatus = step.getStatus();
+                if (stepStatus != null && !"ON".equals(stepStatus) && !"OFF".equals(stepStatus)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    public static byte[] encode(McpMessage message) {
+        byte[] out = new byte[HEADER_LENGTH + message.getClientId().length()
+                + (message.getAckMask() != 0 ? 4 : 0)
+                + (message.getSteps() != null ? 1 + STEP_LENGTH * message.getSteps().size() : 0)
+                + (message.hasTrackFields() ? 12 : 0)
+                + (message.isTraced() ? 8 : 0)];
+        encode(message, out, 0);
+        return out;
+    }
+
+    // Writes the message into out and returns the number of bytes written
+    public static int encode(McpMessage message, byte[] out, int offset) {
+        if (!canEncode(message)) {
+            throw new IllegalArgumentException("Message cannot be binary encoded: " + message.getMessageName());
+        }
+        int flags = 0;
+        if ("MCP".equals(message.getClientType())) {
+            flags |= FLAG_CLIENT_MCP;
+        }
+        if (message.getStatus() != null) {
+            flags |= FLAG_STATUS;
+            if ("ON".equals(message.getStatus())) {
+                flags |= FLAG_STATUS_ON;
+            }
+        }
+        if (message.hasSequence()) {
+            flags |= FLAG_SEQUENCE;
+        }
+        if (message.getCodec() != null) {
+            flags |= FLAG_CODEC_BINARY;
+        }
+        if (message.getAckMask() != 0) {
+            flags |= FLAG_ACK_MASK;
+        }
+        if (message.getSteps() != null) {
+            flags |= FLAG_STEPS;
+        }
+        if (message.hasTrackFields()) {
+            flags |= FLAG_TRACK;
+        }
+
+        int pos = offset;
+        out[pos++] = MAGIC;
+        out[pos++] = VERSION;
+        out[pos++] = message.getType().getCode();
+        out[pos++] = message.getAction() != null ? message.getAction().getCode() : 0;
+        out[pos++] = (byte) flags;
+        pos = writeInt(out, pos, message.getSequence());
+        pos = writeLong(out, pos, message.getTimestamp());
+        out[pos++] = (byte) (message.isTraced() ? EXT_TRACE : 0);
+
+        String clientId = message.getClientId();
+        out[pos++] = (byte) clientId.length();
+        for (int i = 0; i < clientId.length(); i++) {
+            out[pos++] = (byte) clientId.charAt(i);
+        }
+        if (message.getAckMask() != 0) {
+            pos = writeInt(out, pos, message.getAckMask());
+        }
+        if (message.getSteps() != null) {
+            out[pos++] = (byte) message.getSteps().size();
+            for (BatchStep step : message.getSteps()) {
+                out[pos++] = step.getAction().getCode();
+                out[pos++] = (byte) (step.getStatus() == null ? 0 : "ON".equals(step.getStatus()) ? 1 : 2);
+                pos = writeInt(out, pos, (int) step.getDelayMillis());
+            }
+        }
+        if (message.hasTrackFields()) {
+            pos = writeInt(out, pos, message.getPositionMm());
+            pos = writeInt(out, pos, message.getFrontGapMm());
+            pos = writeInt(out, pos, message.getRearGapMm());
+        }
+        if (message.isTraced()) {
+            pos = writeLong(out, pos, message.getTraceNanos());
+        }
+        return pos - offset;
+    }
+
+    public static McpMessage decode(byte[] data, int offset, int length) {
+        if (length < HEADER_LENGTH || data[offset] != MAGIC) {
+            throw new IllegalArgumentException("Not a binary message");
+        }
+        byte version = data[offset + 1];
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported binary message version: " + version);
+        }
+        int extensions = data[offset + 17] & 0xFF;
+        int idLength = data[offset + 18] & 0xFF;
+        if (length < HEADER_LENGTH + idLength) {
+            throw new IllegalArgumentException("Truncated binary message");
+        }
+
+        MessageType type = MessageType.fromCode(data[offset + 2]);
+        Action action = Action.fromCode(data[offset + 3]);
+        int flags = data[offset + 4] & 0xFF;
+        String clientType = (flags & FLAG_CLIENT_MCP) != 0 ? "MCP" : "ccp";
+        String clientId = new String(data, offset + HEADER_LENGTH, idLength, StandardCharsets.US_ASCII);
+        int pos = offset + HEADER_LENGTH + idLength;
+        int end = offset + length;
+        int ackMask = 0;
+        if ((flags & FLAG_ACK_MASK) != 0) {
+            if (end < pos + 4) {
+                throw new IllegalArgumentException("Truncated binary message");
+            }
+            ackMask = readInt(data, pos);
+            pos += 4;
+        }
+        List<BatchStep> steps = null;
+        if ((flags & FLAG_STEPS) != 0) {
+            int count = pos < end ? data[pos++] & 0xFF : -1;
+            if (count < 0 || end < pos + count * STEP_LENGTH) {
+                throw new IllegalArgumentException("Truncated binary message");
+            }
+            steps = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                Action stepAction = Action.fromCode(data[pos]);
+                if (stepAction == null) {
+                    throw new IllegalArgumentException("Unknown action in BATCH step: " + data[pos]);
+                }
+                int stepStatus = data[pos + 1];
+                steps.add(new BatchStep(stepAction, stepStatus == 0 ? null : stepStatus == 1 ? "ON" : "OFF",
+                        readInt(data, pos + 2) & 0xFFFFFFFFL));
+                pos += STEP_LENGTH;
+            }
+        }
+        int positionMm = McpMessage.NO_POSITION;
+        int frontGapMm = McpMessage.NO_POSITION;
+        int rearGapMm = McpMessage.NO_POSITION;
+        if ((flags & FLAG_TRACK) != 0) {
+            if (end < pos + 12) {
+                throw new IllegalArgumentException("Truncated binary message");
+            }
+            positionMm = readInt(data, pos);
+            frontGapMm = readInt(data, pos + 4);
+            rearGapMm = readInt(data, pos + 8);
+            pos += 12;
+        }
+        long traceNanos = McpMessage.NO_TRACE;
+        if ((extensions & EXT_TRACE) != 0) {
+            if (end < pos + 8) {
+                throw new IllegalArgumentException("Truncated binary message");
+            }
+            traceNanos = readLong(data, pos);
+        }
+
+        return McpMessage.builder(clientType, type)
+                .action(action)
+                .clientId(clientId)
+                .status((flags & FLAG_STATUS) == 0 ? null : (flags & FLAG_STATUS_ON) != 0 ? "ON" : "OFF")
+                .sequence((flags & FLAG_SEQUENCE) != 0 ? readInt(data, offset + 5) : McpMessage.NO_SEQUENCE)
+                .timestamp(readLong(data, offset + 9))
+                .codec((flags & FLAG_CODEC_BINARY) != 0 ? NAME : null)
+                .ackMask(ackMask)
+                .steps(steps)
+                .positionMm(positionMm)
+                .gaps(frontGapMm, rearGapMm)
+                .traceNanos(traceNanos)
+                .build();
+    }
+
+    private static int writeInt(byte[] out, int pos, int value) {
+        out[pos] = (byte) (value >>> 24);
+        out[pos + 1] = (byte) (value >>> 16);
+        out[pos + 2] = (byte) (value >>> 8);
+        out[pos + 3] = (byte) value;
+        return pos + 4;
+    }
+
+    private static int writeLong(byte[] out, int pos, long value) {
+        writeInt(out, pos, (int) (value >>> 32));
+        return writeInt(out, pos + 4, (int) value);
+    }
+
+    private static int readInt(byte[] data, int pos) {
+        return ((data[pos] & 0xFF) << 24) | ((data[pos + 1] & 0xFF) << 16)
+                | ((data[pos + 2] & 0xFF) << 8) | (data[pos + 3] & 0xFF);
+    }
+
+    private static long readLong(byte[] data, int pos) {
+        return ((long) readInt(data, pos) << 32) | (readInt(data, pos + 4) & 0xFFFFFFFFL);
+    }
+}
@@ -1,306 +1,532 @@
 package CCP;
 
-import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.json.JSONObject;
 
 public class CCP {
 
+    private static final long HEARTBEAT_INTERVAL_MILLIS = 2000;
+    private static final long MIN_HEARTBEAT_INTERVAL_MILLIS = 500; // Probing interval while beats are missed
+    private static final int MAX_MISSED_HEARTBEATS = 3; // Safe-stop once the MCP misses this many in a row
+    private static final int SLOW_DOWN_GAP_MM = 1000;      // Keep pace once a neighbour is closer than this
+    private static final int RESUME_GAP_MM = 1500;         // Full speed again only once neighbours are further than this
+    private static final long MIN_SPEED_CHANGE_MILLIS = 1000; // Full speed is resumed at most this often
+    private static final long CCIN_RETRY_MILLIS = 1000;       // CCIN is sent again this often until AKIN arrives
+
     private String bladeRunnerId;
     private StateManager stateManager;
     private CommunicationHandler commHandler;
-    private boolean isCarriageInFront;
-    private boolean isCarriageBehind;
+    private SpeedController speedController; // FULL_SPEED / MAINTAINING_PACE from the neighbour gaps
+    private volatile int trackPositionMm = McpMessage.NO_POSITION; // Reported to the MCP with every STRQ and STAT
     private boolean isAlignedWithPhotodiode; // Simulates alignment with IR photodiode
-    private boolean isLEDFlashing; // Simulates LED flashing state
+    private LEDController ledController; // Simulates the status LEDs
     private InetAddress espAddress;  // IP address for ESP32
     private int espPort;  // Port for ESP32
-    private int sequenceNumbers;  // Sequence number for messages
+    private AtomicInteger sequenceNumbers;  // Sequence number for messages, shared by the MCP and ESP32 threads
     private boolean areDoorsOpen = false; // Track if doors are open
+    private EspChannel espChannel; // Single socket used for all ESP32 traffic
+    private HashedTimerWheel ackTimer; // ACK timeouts and retransmits for ESP32 status messages
     private ExecutorService espListenerExecutor; // Executor for ESP32 listener
     private ScheduledExecutorService heartbeatExecutor;
+    private HeartbeatMonitor heartbeatMonitor; // MCP liveness, fed by heartbeats and AKSTs
+    private volatile boolean coalesceHeartbeats = false; // Let other MCP traffic stand in for STRQ
+    private Executor commandExecutor; // Runs inbound MCP commands, in arrival order
+    private ReliableReceiver reliableReceiver; // Drops duplicate commands and acknowledges the rest
+    private volatile boolean initiated = false; // Set once AKIN arrives, CCIN is retried until then
+    private final AtomicInteger initiationRound = new AtomicInteger(); // Retries of an older round stop
+    private volatile boolean stopped = false; // Set by stop, so sends failing on the closed sockets go unreported
+    private volatile boolean useBinaryCodec = false; // Set once the MCP accepts the binary codec in AKIN
+    private Metrics metrics; // Served by MetricsServer when a metrics port is configured
+    private Metrics.Histogram espForwardTime;
+    private TraceRecorder traceRecorder = new TraceRecorder(); // Hops of commands the MCP traces
+    private StatusEncoder statusEncoder; // JSON status messages without a JSONObject, guarded by itself
 
 
     public CCP(String bladeRunnerId, String mcpAddress, int mcpPort,
                String ccpAddress, int ccpPort, String espIp, int espPort,
                int sequenceNumber) throws Exception {
+        this(bladeRunnerId, mcpAddress, mcpPort, ccpAddress, ccpPort,
+                espIp, espPort, sequenceNumber, ExecutionMode.PLATFORM);
+    }
+
+    // In VIRTUAL mode every inbound command runs on its own virtual thread, one at a time
+    public CCP(String bladeRunnerId, String mcpAddress, int mcpPort,
+               String ccpAddress, int ccpPort, String espIp, int espPort,
+               int sequenceNumber, ExecutionMode executionMode) throws Exception {
+        this(bladeRunnerId, mcpAddress, mcpPort, ccpAddress, ccpPort,
+                espIp, espPort, espPort, sequenceNumber, executionMode);
+    }
+
+    // espLocalPort is the port the ESP32 socket binds. It only differs from espPort when
+    // the ESP32 (or an emulator) runs on the same host, e.g. in ScenarioRunner
+    public CCP(String bladeRunnerId, String mcpAddress, int mcpPort,
+               String ccpAddress, int ccpPort, String espIp, int espPort, int espLocalPort,
+               int sequenceNumber, ExecutionMode executionMode) throws Exception {
+        this(bladeRunnerId, mcpAddress, mcpPort, ccpAddress, ccpPort, espIp, espPort, espLocalPort,
+                sequenceNumber, executionMode, Transport.configured());
+    }
+
+    // With Transport.NIO the MCP and ESP32 sockets share one event-loop thread
+    public CCP(String bladeRunnerId, String mcpAddress, int mcpPort,
+               String ccpAddress, int ccpPort, String espIp, int espPort, int espLocalPort,
+               int sequenceNumber, ExecutionMode executionMode, Transport transport) throws Exception {
         this.bladeRunnerId = bladeRunnerId;
         this.stateManager = new StateManager();
-        this.commHandler = new UDPCommunicationHandler(mcpAddress, mcpPort,
-                ccpAddress, ccpPort, new MessageListener() {
-                    @Override
-                    public void onMessageReceived(String message) {
-                        CCP.this.onMessageReceived(message);
-                    }
+        this.statusEncoder = new StatusEncoder("ccp", bladeRunnerId);
+        this.metrics = new Metrics("ccp", bladeRunnerId);
+        Metrics.Counter[] received = metrics.counters("messages_received_total", "type",
+                MessageType.values(), "Messages received from the MCP, duplicates included");
+        Metrics.Histogram queueTime = metrics.histogram("command_queue_seconds",
+                "Time an MCP message waits for the command executor");
+        Metrics.Histogram handlingTime = metrics.histogram("message_handling_seconds",
+                "Time to handle an MCP message, reply and ESP32 forward included");
+        this.espForwardTime = metrics.histogram("esp_forward_seconds", "Time to forward a command to the ESP32");
+        this.commandExecutor = executionMode == ExecutionMode.PLATFORM
+                ? executionMode.commandExecutor(bladeRunnerId)
+                : new OrderedExecutor(executionMode.commandExecutor(bladeRunnerId + "-command"));
+        // Duplicate EXECs are dropped and acknowledged before they reach the command executor
+        this.reliableReceiver = new ReliableReceiver(bladeRunnerId, new MessageListener() {
+            @Override
+            public void onMessageReceived(McpMessage message) {
+                long queuedNanos = System.nanoTime();
+                commandExecutor.execute(() -> {
+                    long startNanos = System.nanoTime();
+                    queueTime.record(startNanos - queuedNanos);
+                    traceRecorder.record(TraceRecorder.Hop.CCP_DISPATCHED, message, startNanos);
+                    CCP.this.onMessageReceived(message);
+                    handlingTime.recordSince(startNanos);
                 });
-        this.sequenceNumbers = sequenceNumber;
+            }
+        }, this::sendAcknowledgment, this::sendGroupAcknowledgment,
+                () -> CarriageGroup.segmentOf(trackPositionMm));
+        MessageListener countingListener = new MessageListener() {
+            @Override
+            public void onMessageReceived(McpMessage message) {
+                received[message.getType().ordinal()].increment();
+                traceRecorder.record(TraceRecorder.Hop.CCP_RECEIVED, message);
+                reliableReceiver.onMessageReceived(message);
+            }
+        };
+        NIOCommunicationHandler eventLoop = null;
+        if (transport == Transport.NIO) {
+            eventLoop = new NIOCommunicationHandler(mcpAddress, mcpPort, ccpAddress, ccpPort,
+                    countingListener, executionMode.threadFactory(bladeRunnerId + "-event-loop"));
+            this.commHandler = eventLoop;
+        } else {
+            this.commHandler = new UDPCommunicationHandler(mcpAddress, mcpPort,
+                    ccpAddress, ccpPort, countingListener,
+                    executionMode.threadFactory(bladeRunnerId + "-mcp-listener"));
+        }
+        this.commHandler.registerMetrics(metrics);
+        this.sequenceNumbers = new AtomicInteger(sequenceNumber);
         this.espAddress = InetAddress.getByName(espIp);
         this.espPort = espPort;
-        this.espListenerExecutor = Executors.newSingleThreadExecutor();
+        this.ackTimer = new HashedTimerWheel(100, 64, "ccp-ack-timer");
+        this.espChannel = new EspChannel(espAddress, espPort, espLocalPort,
+                this::onMessageReceivedFromESP32, ackTimer, eventLoop);
+        if (eventLoop == null) {
+            this.espListenerExecutor = Executors.newSingleThreadExecutor(
+                    executionMode.threadFactory(bladeRunnerId + "-esp-listener"));
+        }
 
-        // Initially, CCP is in the STARTED state
+        // Initially, CCP is in the STARTED state. LEDs follow every later state change
         this.stateManager.updateState(StateManager.CCPState.STARTED);
+        this.stateManager.addListener((oldState, newState) -> updateLEDState(newState));
+        this.speedController = new SpeedController(stateManager, ackTimer,
+                SLOW_DOWN_GAP_MM, RESUME_GAP_MM, MIN_SPEED_CHANGE_MILLIS);
         this.isAlignedWithPhotodiode = false; // Initialize photodiode alignment
-        this.isLEDFlashing = false; // LED is not flashing initially
+        this.ledController = new LEDController(); // LED is not flashing initially
+        this.heartbeatMonitor = new HeartbeatMonitor(HEARTBEAT_INTERVAL_MILLIS,
+                MIN_HEARTBEAT_INTERVAL_MILLIS, MAX_MISSED_HEARTBEATS);
+        registerMetrics();
         startListeningToESP();
-        startHeartbeat();
+        startHeartbeat(executionMode);
+    }
+
+    // Method to expose the counters other components already keep
+    private void registerMetrics() {
+        metrics.counter("esp_ack_timeouts_total", "ESP32 status messages whose ACK timed out, retries included",
+                espChannel::getAckTimeouts);
+        metrics.counter("esp_ack_failures_total", "ESP32 status messages never acknowledged", espChannel::getAckFailures);
+        Metrics.Counter[] transitions = metrics.counters("state_transitions_total", "to",
+                StateManager.CCPState.values(), "State changes, by new state");
+        stateManager.addListener((oldState, newState) -> transitions[newState.ordinal()].increment());
+        metrics.counter("speed_changes_total", "State changes made by the speed controller",
+                speedController::getTransitions);
+        metrics.gauge("heartbeat_missed", "Heartbeats currently unanswered by the MCP", heartbeatMonitor::getMissedBeats);
+        metrics.gauge("heartbeat_rtt_millis", "Smoothed heartbeat round trip time",
+                () -> Math.round(heartbeatMonitor.getSmoothedRttMillis()));
     }
 
-    // Method to connect to MCP
+    // Method to connect to MCP. CCIN is sent again until the MCP answers with AKIN
     public void connect() throws Exception {
         if (stateManager.getCurrentState() == StateManager.CCPState.STARTED) {
-            String message = JSONProcessor.encodeMessage("ccp", "CCIN", bladeRunnerId);
-            commHandler.sendMessage(message);
+            initiate();
             stateManager.updateState(StateManager.CCPState.CONNECTED);
-            updateLEDState(); // Update LEDs after state change
         } else {
             throw new IllegalStateException("Cannot connect in the current state: " +
                     stateManager.getCurrentState());
         }
     }
 
+    // Starts a new round of CCIN retries, replacing any round still running
+    private void initiate() throws Exception {
+        initiated = false;
+        reliableReceiver.awaitResync();
+        int round = initiationRound.incrementAndGet();
+        ackTimer.schedule(() -> retryInitiation(round), CCIN_RETRY_MILLIS);
+        sendInitiation();
+    }
+
+    private void sendInitiation() throws Exception {
+        // Advertise the binary codec, the MCP confirms it in AKIN or we stay on JSON
+        McpMessage initiation = McpMessage.of("ccp", MessageType.CCIN, bladeRunnerId)
+                .withTimestamp(Timestamps.nowMillis())
+                .withCodec(BinaryCodec.NAME);
+        commHandler.sendMessage(JSONProcessor.encode(initiation));
+    }
+
+    // Runs on the ack timer until AKIN arrives. Until then the MCP cannot address this carriage
+    private void retryInitiation(int round) {
+        if (initiated || stopped || round != initiationRound.get()) {
+            return;
+        }
+        Log.info("No AKIN from MCP yet, sending CCIN again.");
+        try {
+            sendInitiation();
+        } catch (Exception e) {
+            Log.warn("Failed to send CCIN: " + e.getMessage());
+        }
+        ackTimer.schedule(() -> retryInitiation(round), CCIN_RETRY_MILLIS);
+    }
+
+    // Also accept commands the MCP sends to a group of carriages, by multicast or broadcast
+    public void joinGroup(String groupAddress, int port) throws Exception {
+        commHandler.joinGroup(groupAddress, port);
+    }
+
+    // Only the blocking transport needs a thread for the ESP32, NIO reads it on the event loop
     private void startListeningToESP() {
-        espListenerExecutor.submit(() -> {
-            DatagramSocket socket = null;
-            try {
-                socket = new DatagramSocket(espPort);
-                byte[] buffer = new byte[1024];
-    
-                while (true) {
-                    DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-                    socket.receive(packet);
-                    String message = new String(packet.getData(), 0, packet.getLength());
-    
-                    // Process the received JSON message
-                    onMessageReceivedFromESP32(message);
-                }
-            } catch (IOException e) {
-                System.err.println("Error receiving message from ESP32: " + e.getMessage());
-            } finally {
-                if (socket != null && !socket.isClosed()) {
-                    socket.close();
-                }
-            }
-        });
+        if (espListenerExecutor != null) {
+            espListenerExecutor.submit(espChannel::listen);
+        }
     }
     
-     // Stop the heartbeat executor when shutting down CCP
+     // Stop the heartbeat executor before closing the sockets it sends on when shutting down CCP
      public void stop() {
-        if (espListenerExecutor != null && !espListenerExecutor.isShutdown()) {
-            espListenerExecutor.shutdown();
-        }
+        stopped = true;
         if (heartbeatExecutor != null && !heartbeatExecutor.isShutdown()) {
             heartbeatExecutor.shutdown();
         }
+        if (espListenerExecutor != null && !espListenerExecutor.isShutdown()) {
+            espListenerExecutor.shutdown();
+        }
+        commHandler.close();
+        espChannel.close();
+        ackTimer.stop();
+        ledController.stop();
     }
     
 
-    private void startHeartbeat() {
-        heartbeatExecutor = Executors.newSingleThreadScheduledExecutor();
-        heartbeatExecutor.scheduleAtFixedRate(() -> {
+    private void startHeartbeat(ExecutionMode executionMode) {
+        heartbeatExecutor = Executors.newSingleThreadScheduledExecutor(
+                executionMode.threadFactory(bladeRunnerId + "-heartbeat"));
+        scheduleHeartbeat(0);
+    }
+
+    // Each heartbeat schedules the next one, so the interval can shrink while beats are missed
+    private void scheduleHeartbeat(long delayMillis) {
+        if (heartbeatExecutor.isShutdown()) {
+            return;
+        }
+        heartbeatExecutor.schedule(() -> {
+            if (coalesceHeartbeats && !heartbeatMonitor.isHeartbeatDue()) {
+                scheduleHeartbeat(heartbeatMonitor.millisUntilDue()); // Recent traffic already carried the beat
+                return;
+            }
             try {
                 sendHeartbeat();
             } catch (Exception e) {
-                System.err.println("Error in sending heartbeat: " + e.getMessage());
+                if (!stopped) {
+                    Log.warn("Error in sending heartbeat: " + e.getMessage());
+                }
             }
-        }, 0, 2, TimeUnit.SECONDS); // Send every 2 seconds
+            scheduleHeartbeat(heartbeatMonitor.nextDelayMillis());
+        }, delayMillis, TimeUnit.MILLISECONDS);
     }
 
     private void sendHeartbeat() throws Exception {
-        String heartbeatMessage = JSONProcessor.encodeMessage("ccp", "STRQ", bladeRunnerId);
-        commHandler.sendMessage(heartbeatMessage);
-        System.out.println("Sent heartbeat to MCP.");
+        if (heartbeatMonitor.onHeartbeatSent()) {
+            onMCPSilent();
+        }
+        sendToMCP("STRQ");
+        Log.debug(() -> "Sent heartbeat to MCP.");
     }
 
       // Handling the MCP acknowledgment response (AKST)
-      private void onHeartbeatAcknowledgmentReceived(String message) {
-        System.out.println("Heartbeat acknowledged by MCP: " + JSONProcessor.decodeMessage(message));
-        // Reset missed heartbeat count, if tracking
+      private void onHeartbeatAcknowledgmentReceived(McpMessage message) {
+        if (heartbeatMonitor.onAcknowledged()) {
+            onMCPRestored();
+        }
+        Log.debug(() -> "Heartbeat acknowledged by MCP, RTT " + heartbeatMonitor.getLastRttMillis() + " ms.");
     }
 
-    // Callback for receiving messages
-private void onMessageReceived(String message) {
-    System.out.println("Message received by " + bladeRunnerId + ":");
-    JSONObject jsonMessage = new JSONObject(message);
-    String messageType = jsonMessage.optString("message", null);
+    // The MCP missed too many heartbeats: stop the carriage and signal it on the LEDs. The MCP
+    // stops answering carriages it has timed out, so register again until it sends AKIN
+    private void onMCPSilent() {
+        Log.warn("MCP missed " + heartbeatMonitor.getMissedBeats() + " heartbeats, stopping carriage.");
+        forwardCommandToESP(McpMessage.exec("ccp", Action.STOPC, bladeRunnerId));
+        stateManager.updateState(StateManager.CCPState.STOPPED);
+        flashLEDPattern(0, 10);  // LED 0 flashes 10 times to indicate the MCP link is lost
+        try {
+            initiate();
+        } catch (Exception e) {
+            Log.warn("Failed to send CCIN: " + e.getMessage()); // Retried on the ack timer
+        }
+    }
 
-    if ("AKST".equals(messageType)) {
+    // The MCP answered again. The carriage stays STOPPED until the MCP commands a move
+    private void onMCPRestored() {
+        Log.info("MCP link restored.");
+    }
+
+    public HeartbeatMonitor getHeartbeatMonitor() {
+        return heartbeatMonitor;
+    }
+
+    // When enabled, STRQ is skipped while messages flow both ways within the heartbeat
+    // interval, since that traffic already proves both ends are alive
+    public void setCoalesceHeartbeats(boolean coalesceHeartbeats) {
+        this.coalesceHeartbeats = coalesceHeartbeats;
+    }
+
+    // Callback for receiving messages, already decoded once by the transport
+private void onMessageReceived(McpMessage message) {
+    Log.debug(() -> "Message received by " + bladeRunnerId + ":");
+
+    if (message.getType() != MessageType.AKST && heartbeatMonitor.onHeard()) {
+        onMCPRestored(); // Any message from the MCP proves it is alive
+    }
+
+    if (message.getType() == MessageType.AKST) {
         // Call the heartbeat acknowledgment handler if the message is an acknowledgment
         onHeartbeatAcknowledgmentReceived(message);
         return;
     }
 
     // Process other types of MCP actions
-    System.out.println(JSONProcessor.decodeMessage(message));
+    Log.debug(() -> JSONProcessor.toJSON(message).toString(4)); // Pretty print the JSON
     processMCPAction(message);
-    updateCarriageDetection(message);
-    checkCarriagePositions(); // Check for nearby carriages after receiving a message
 }
 
 
-    // Method to process MCP actions
-    private void processMCPAction(String message) {
-        JSONObject jsonMessage = new JSONObject(message);
-        String messageType = jsonMessage.optString("message", null);
-
-        if (messageType == null) {
-            System.out.println("No message type specified in the message.");
+    // Method to process MCP actions. Package-private for the dispatch benchmark
+    void processMCPAction(McpMessage message) {
+        if (message.getMessageName() == null) {
+            Log.info("No message type specified in the message.");
             return;
         }
 
-        switch (messageType) {
-            case "EXEC":
-                String action = jsonMessage.optString("action", null);
+        switch (message.getType()) {
+            case EXEC:
+                Action action = message.getAction();
                 if (action == null) {
-                    System.out.println("No action specified in EXEC message.");
+                    Log.info("No known action specified in EXEC message.");
                     return;
                 }
                 // Forward the command to ESP32
-                forwardCommandToESP(jsonMessage);
+                forwardCommandToESP(message);
                 // Handle the action
-                handleAction(action, jsonMessage);
+                handleAction(action, message);
+                break;
+            case BATCH:
+                // One datagram to the ESP32 for the whole batch, then one status reply
+                forwardCommandToESP(message);
+                handleBatch(message);
                 break;
-            case "AKIN":
-                System.out.println("Received AKIN from MCP.");
-                // Handle AKIN if needed
+            case AKIN:
+                Log.info("Received AKIN from MCP.");
+                initiated = true;
+                useBinaryCodec = BinaryCodec.NAME.equals(message.getCodec());
+                if (useBinaryCodec) {
+                    Log.info("MCP accepted the binary codec.");
+                }
                 break;
-            case "STRQ":
-                System.out.println("Received STRQ from MCP. Sending status...");
+            case STRQ:
+                Log.debug(() -> "Received STRQ from MCP. Sending status...");
                 sendStatus("STAT");
                 break;
+            case GAPS:
+                updateCarriageDetection(message);
+                break;
             default:
-                System.out.println("Unknown message type: " + messageType);
+                Log.info("Unknown message type: " + message.getMessageName());
                 break;
         }
     }
 
     // Method to handle actions
-    private void handleAction(String action, JSONObject jsonMessage) {
+    private void handleAction(Action action, McpMessage message) {
+        if (executeAction(action, message.getStatus())) {
+            sendStatus(action.name());  // Send status back to MCP after sending to ESP32
+        }
+    }
+
+    // Runs the steps of a BATCH in order, then reports the steps that ran in a single BATCH
+    // reply. A delay is waited out on the ack timer rather than the command thread, so
+    // commands arriving meanwhile, e.g. an emergency STOPC, are not held up behind it
+    private void handleBatch(McpMessage message) {
+        List<BatchStep> steps = message.getSteps();
+        List<BatchStep> executed = new ArrayList<>();
+        if (!steps.isEmpty() && steps.get(0).getDelayMillis() > 0) {
+            scheduleBatchStep(message, 0, executed);
+        } else {
+            continueBatch(message, 0, executed);
+        }
+    }
+
+    // Runs steps from index on, up to the next one with a delay
+    private void continueBatch(McpMessage message, int index, List<BatchStep> executed) {
+        List<BatchStep> steps = message.getSteps();
+        for (int i = index; i < steps.size(); i++) {
+            BatchStep step = steps.get(i);
+            if (i > index && step.getDelayMillis() > 0) {
+                scheduleBatchStep(message, i, executed);
+                return;
+            }
+            if (executeAction(step.getAction(), step.getStatus())) {
+                executed.add(step);
+            }
+        }
+        sendBatchStatus(message.getSequence(), executed);
+    }
+
+    // The step runs back on the command executor, in order with the commands around it
+    private void scheduleBatchStep(McpMessage message, int index, List<BatchStep> executed) {
+        ackTimer.schedule(() -> {
+            if (!stopped) {
+                commandExecutor.execute(() -> continueBatch(message, index, executed));
+            }
+        }, message.getSteps().get(index).getDelayMillis());
+    }
+
+    // Method to carry out an action. Returns false when it could not be run
+    private boolean executeAction(Action action, String status) {
         switch (action) {
-            case "STOPC":
+            case STOPC:
                 stopAndCloseDoors();
-                sendStatus("STOPC");  // Send status back to MCP after sending to ESP32
-                break;
-            case "STOPO":
+                return true;
+            case STOPO:
                 stopAndOpenDoors();
-                sendStatus("STOPO");
-                break;
-            case "FSLOWC":
+                return true;
+            case FSLOWC:
                 if (checkAlignmentWithPhotodiode()) {
                     stopAndCloseDoors();
                 } else {
                     moveForwardSlowly();
                 }
-                sendStatus("FSLOWC");
-                break;
-            case "FFASTC":
+                return true;
+            case FFASTC:
                 moveForwardFast();
-                sendStatus("FFASTC");
-                break;
-            case "RSLOWC":
+                return true;
+            case RSLOWC:
                 if (checkAlignmentWithPhotodiode()) {
                     stopAndCloseDoors();
                 } else {
                     moveBackwardSlowly();
                 }
-                sendStatus("RSLOWC");
-                break;
-            case "DISCONNECT":
+                return true;
+            case DISCONNECT:
                 flashStatusLED();
-                sendStatus("DISCONNECT");
-                break;
-            case "HAZARD_DETECTED":
+                return true;
+            case HAZARD_DETECTED:
                 onHazardDetected();
-                sendStatus("HAZARD_DETECTED");
-                break;
-            case "FLASH_LED":
+                return true;
+            case FLASH_LED:
                 flashStatusLED();
-                sendStatus("FLASH_LED");
-                break;
-            case "IRLD":
-                String status = jsonMessage.optString("status", null);
-                if (status != null) {
-                    if ("ON".equalsIgnoreCase(status)) {
-                        turnOnIRLED();
-                    } else if ("OFF".equalsIgnoreCase(status)) {
-                        turnOffIRLED();
-                    }
-                    sendStatus("IRLD");
-                } else {
-                    System.out.println("No status specified for IRLD action.");
+                return true;
+            case CLEAR_HAZARD:
+                stateManager.clearHazard(); // Only this releases a hazard stop, never a movement command
+                return true;
+            case IRLD:
+                if (status == null) {
+                    Log.info("No status specified for IRLD action.");
+                    return false;
                 }
-                break;
+                if ("ON".equalsIgnoreCase(status)) {
+                    turnOnIRLED();
+                } else if ("OFF".equalsIgnoreCase(status)) {
+                    turnOffIRLED();
+                }
+                return true;
             default:
-                System.out.println("Unknown action: " + action);
-                break;
+                Log.info("Unknown action: " + action);
+                return false;
         }
     }
 
-    private void forwardCommandToESP(JSONObject jsonMessage) {
-        // Forward the JSON message to ESP32
+    private void forwardCommandToESP(McpMessage message) {
+        // Forward the command to ESP32 as JSON, which is all the firmware understands
+        long startNanos = System.nanoTime();
         try {
-            sendMessageToESP(jsonMessage.toString());
-            System.out.println("Command forwarded to ESP32: " + jsonMessage.toString());
+            String command = JSONProcessor.encode(message);
+            sendMessageToESP(command);
+            espForwardTime.recordSince(startNanos);
+            traceRecorder.record(TraceRecorder.Hop.ESP_FORWARDED, message);
+            Log.debug(() -> "Command forwarded to ESP32: " + command);
         } catch (Exception e) {
-            System.out.println("Failed to send command to ESP32: " + e.getMessage());
+            Log.info("Failed to send command to ESP32: " + e.getMessage());
         }
     }
 
     // Method to send messages to ESP32
     public void sendMessageToESP(String message) throws Exception {
-        DatagramSocket socket = new DatagramSocket();
-        byte[] buffer = message.getBytes();
-        DatagramPacket packet = new DatagramPacket(
-                buffer, buffer.length, espAddress, espPort);
-        socket.send(packet);
-        socket.close();
-        System.out.println("Message sent to ESP32: " + message);
+        espChannel.send(message);
     }
 
     // Method to stop and close doors
     private void stopAndCloseDoors() {
-        System.out.println("BR stopping and closing doors.");
+        Log.info("BR stopping and closing doors.");
         if (!areDoorsOpen) {
-            System.out.println("Doors are already closed.");
+            Log.info("Doors are already closed.");
             return; // Exit if the doors are already closed
         }
         if (stateManager.getCurrentState() != StateManager.CCPState.STOPPED) {
-            System.out.println("Blade Runner is now stopped.");
+            Log.info("Blade Runner is now stopped.");
             stateManager.updateState(StateManager.CCPState.STOPPED);
-            updateLEDState();
         }
-        System.out.println("Doors are now closed.");
+        Log.info("Doors are now closed.");
         areDoorsOpen = false; // Update door status
     }
 
     // Method to stop and open doors
     private void stopAndOpenDoors() {
-        System.out.println("BR stopping and opening doors.");
+        Log.info("BR stopping and opening doors.");
         if (areDoorsOpen) {
-            System.out.println("Doors are already open.");
+            Log.info("Doors are already open.");
             return; // Exit if the doors are already open
         }
         if (stateManager.getCurrentState() != StateManager.CCPState.STOPPED) {
-            System.out.println("Blade Runner is now stopped.");
+            Log.info("Blade Runner is now stopped.");
             stateManager.updateState(StateManager.CCPState.STOPPED);
-            updateLEDState();
         }
-        System.out.println("Doors are now open.");
+        Log.info("Doors are now open.");
         areDoorsOpen = true; // Update door status
     }
 
     // Method to check alignment with IR photodiode
     private boolean checkAlignmentWithPhotodiode() {
         // Simulating checking alignment with an IR photodiode
-        System.out.println("Checking alignment with IR photodiode...");
+        Log.debug(() -> "Checking alignment with IR photodiode...");
         return isAlignedWithPhotodiode;
     }
 
@@ -311,40 +537,40 @@ private void onMessageReceived(String message) {
 
     // Method to move the BR forward slowly
     private void moveForwardSlowly() {
-        System.out.println("BR moving forward slowly.");
-        stateManager.updateState(StateManager.CCPState.SLOW_FORWARD);
-        updateLEDState();
-        System.out.println("Moving forward slowly to align with checkpoint...");
+        Log.info("BR moving forward slowly.");
+        if (stateManager.updateState(StateManager.CCPState.SLOW_FORWARD)) {
+            Log.info("Moving forward slowly to align with checkpoint...");
+        }
     }
 
     // Method to move the BR forward fast
     private void moveForwardFast() {
-        System.out.println("BR moving forward fast.");
-        stateManager.updateState(StateManager.CCPState.FULL_SPEED);
-        updateLEDState();
-        System.out.println("Blade Runner is now moving at full speed.");
+        Log.info("BR moving forward fast.");
+        if (stateManager.updateState(StateManager.CCPState.FULL_SPEED)) {
+            Log.info("Blade Runner is now moving at full speed.");
+        }
     }
 
     // Method to move the BR backward slowly
     private void moveBackwardSlowly() {
-        System.out.println("BR moving backward slowly.");
-        stateManager.updateState(StateManager.CCPState.SLOW_BACKWARD);
-        updateLEDState();
-        System.out.println("Moving backward slowly to align with checkpoint...");
+        Log.info("BR moving backward slowly.");
+        if (stateManager.updateState(StateManager.CCPState.SLOW_BACKWARD)) {
+            Log.info("Moving backward slowly to align with checkpoint...");
+        }
     }
 
     // Method to flash the BR status LED
     void flashStatusLED() {
-        System.out.println("Flashing status LED.");
+        Log.info("Flashing status LED.");
         // Implement LED flashing logic here if needed
     }
 
-    // Method to control LED flashing for each state
-    private void updateLEDState() {
+    // Method to control LED flashing for each state, called by the StateManager on every change
+    private void updateLEDState(StateManager.CCPState state) {
         // Stop any ongoing flashing before starting a new LED pattern
         stopLEDFlashing();
 
-        switch (stateManager.getCurrentState()) {
+        switch (state) {
             case STARTED:
                 flashLEDPattern(0, 5);  // LED 0 flashes 5 times to indicate STARTED
                 break;
@@ -367,180 +593,194 @@ private void onMessageReceived(String message) {
         }
     }
 
-    // Helper method to flash specific LED in a pattern
+    // Helper method to flash specific LED in a pattern, replacing any running pattern
     private void flashLEDPattern(int ledIndex, int flashCount) {
-        System.out.println("Flashing LED " + ledIndex);
-        isLEDFlashing = true;
-        final int[] counter = {0};  // Counter to limit flashes
-
-        ScheduledExecutorService executor = Executors.newScheduledThreadPool(1);
-        executor.scheduleAtFixedRate(() -> {
-            if (isLEDFlashing && counter[0] < flashCount) {
-                System.out.println("LED " + ledIndex + " ON");
-                sleep(500); // LED ON for 0.5 seconds
-                System.out.println("LED " + ledIndex + " OFF");
-                counter[0]++;  // Increment counter after each cycle
-            } else {
-                isLEDFlashing = false;  // Stop flashing after flashCount
-                executor.shutdown();    // Shutdown the executor
-            }
-        }, 0, 1000, TimeUnit.MILLISECONDS); // Flash every 1 second (ON/OFF cycle takes 1 second)
+        ledController.flash(ledIndex, flashCount);
     }
 
     // Helper method to turn on specific LED
     private void turnOnLED(int ledIndex) {
-        System.out.println("LED " + ledIndex + " ON");
-        isLEDFlashing = false; // Stop flashing if applicable
+        ledController.turnOn(ledIndex);
     }
 
     // Method to stop LED flashing
     private void stopLEDFlashing() {
-        isLEDFlashing = false;
+        ledController.stop();
     }
 
-    // Helper method to simulate sleeping
-    private void sleep(long milliseconds) {
+    // Method to send status back to MCP
+    private void sendStatus(String status) {
         try {
-            Thread.sleep(milliseconds);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+            sendToMCP(status);
+        } catch (Exception e) {
+            if (!stopped) { // Commands still running when stop closed the socket
+                Log.error("Failed to send status " + status + " to MCP.", e);
+            }
         }
     }
 
-    // Method to send status back to MCP
-    private void sendStatus(String status) {
-        String statusMessage = JSONProcessor.encodeMessage("ccp", status, bladeRunnerId);
+    // Sends a message to the MCP using the codec negotiated at CCIN time
+    private void sendToMCP(String messageType) throws Exception {
+        sendEncodedToMCP(messageType);
+        heartbeatMonitor.onMessageSent();
+    }
+
+    private void sendEncodedToMCP(String messageType) throws Exception {
+        int position = trackPositionMm;
+        if (position != McpMessage.NO_POSITION && ("STRQ".equals(messageType) || "STAT".equals(messageType))) {
+            McpMessage message = McpMessage.fromWireName("ccp", messageType, bladeRunnerId)
+                    .withTimestamp(Timestamps.nowMillis())
+                    .withPosition(position);
+            if (useBinaryCodec && BinaryCodec.canEncode(message)) {
+                commHandler.sendMessage(BinaryCodec.encode(message));
+            } else {
+                commHandler.sendMessage(JSONProcessor.encode(message));
+            }
+            return;
+        }
+        if (useBinaryCodec) {
+            McpMessage message = McpMessage.fromWireName("ccp", messageType, bladeRunnerId)
+                    .withTimestamp(Timestamps.nowMillis());
+            if (BinaryCodec.canEncode(message)) {
+                commHandler.sendMessage(BinaryCodec.encode(message));
+                return;
+            }
+        }
+        synchronized (statusEncoder) {
+            int length = statusEncoder.encode(messageType, Timestamps.nowMillis());
+            if (length >= 0) {
+                commHandler.sendMessage(statusEncoder.getBuffer(), length);
+                return;
+            }
+        }
+        commHandler.sendMessage(JSONProcessor.encodeMessage("ccp", messageType, bladeRunnerId));
+    }
+
+    // Aggregate status of a BATCH command: its sequence and the steps that ran
+    private void sendBatchStatus(int sequence, List<BatchStep> executed) {
+        McpMessage status = McpMessage.batch("ccp", bladeRunnerId, executed)
+                .withSequence(sequence)
+                .withTimestamp(Timestamps.nowMillis());
         try {
-            commHandler.sendMessage(statusMessage);
+            if (useBinaryCodec && BinaryCodec.canEncode(status)) {
+                commHandler.sendMessage(BinaryCodec.encode(status));
+            } else {
+                commHandler.sendMessage(JSONProcessor.encode(status));
+            }
+            heartbeatMonitor.onMessageSent();
         } catch (Exception e) {
-            e.printStackTrace();
+            Log.error("Failed to send batch status to MCP.", e);
         }
     }
 
-    // Method to update carriage detection status based on received message
-    private void updateCarriageDetection(String message) {
-        JSONObject jsonMessage = new JSONObject(message);
-        String detectedCarriageId = jsonMessage.optString("client_id", null);
+    // Acknowledges the MCP commands received so far, called by the ReliableReceiver
+    private void sendAcknowledgment(int cumulative, int ackMask) {
+        sendAck(McpMessage.of("ccp", MessageType.ACK, bladeRunnerId)
+                .withSequence(cumulative)
+                .withAckMask(ackMask));
+    }
 
-        if (detectedCarriageId != null && !detectedCarriageId.equals(bladeRunnerId)) {
-            int currentId = Integer.parseInt(bladeRunnerId.replace("BR", ""));
-            int detectedId = Integer.parseInt(detectedCarriageId.replace("BR", ""));
+    // Acknowledges one group command, called by the ReliableReceiver
+    private void sendGroupAcknowledgment(int sequence) {
+        sendAck(McpMessage.of("ccp", MessageType.GACK, bladeRunnerId).withSequence(sequence));
+    }
 
-            if (detectedId > currentId) {
-                isCarriageInFront = true;
-                isCarriageBehind = false;
+    private void sendAck(McpMessage ack) {
+        try {
+            if (useBinaryCodec && BinaryCodec.canEncode(ack)) {
+                commHandler.sendMessage(BinaryCodec.encode(ack));
             } else {
-                isCarriageInFront = false;
-                isCarriageBehind = true;
+                commHandler.sendMessage(JSONProcessor.encode(ack));
             }
+            heartbeatMonitor.onMessageSent();
+        } catch (Exception e) {
+            Log.warn("Failed to acknowledge MCP commands: " + e.getMessage());
         }
     }
 
-    // Method to check the positions of other carriages
-    private void checkCarriagePositions() {
-        adjustSpeed(isCarriageInFront, isCarriageBehind);
+    // Method to update carriage detection status from the neighbour distances in GAPS
+    private void updateCarriageDetection(McpMessage message) {
+        int front = message.getFrontGapMm();
+        int rear = message.getRearGapMm();
+        Log.debug(() -> "Gaps for " + bladeRunnerId + ": front " + front + " mm, rear " + rear + " mm.");
+        speedController.onGaps(front, rear);
     }
 
-    // Method to adjust the carriage's speed based on other carriages' positions
-    private void adjustSpeed(boolean isCarriageInFront, boolean isCarriageBehind) {
-        if (!isCarriageInFront && !isCarriageBehind) {
-            stateManager.updateState(StateManager.CCPState.FULL_SPEED);
-            updateLEDState();
-            System.out.println("Moving at full speed.");
-        } else {
-            stateManager.updateState(StateManager.CCPState.MAINTAINING_PACE);
-            updateLEDState();
-            System.out.println("Maintaining pace.");
-        }
+    public SpeedController getSpeedController() {
+        return speedController;
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    public TraceRecorder getTraceRecorder() {
+        return traceRecorder;
+    }
+
+    // Position along the track, e.g. from checkpoint counts. Sent with the next STRQ or STAT
+    public void setTrackPosition(int positionMm) {
+        this.trackPositionMm = positionMm;
     }
 
     // Receive message from ESP32 (could be adapted for continuous listening)
-    public void onMessageReceivedFromESP32(String message) {
-        JSONObject jsonMessage = new JSONObject(message);
-        String action = jsonMessage.optString("action", null);
+    public void onMessageReceivedFromESP32(McpMessage message) {
+        Action action = message.getAction();
 
-        if ("HAZARD_DETECTED".equals(action)) {
+        if (action == Action.HAZARD_DETECTED) {
             onHazardDetected();  // Trigger action on hazard detection
         } else {
-            System.out.println("Unknown action from ESP32: " + action);
+            Log.info("Unknown action from ESP32: " + action);
         }
     }
 
     // Handle hazard detected by ESP32
     public void onHazardDetected() {
-        System.out.println("Hazard detected by ESP32! Stopping carriage.");
-        stateManager.updateState(StateManager.CCPState.STOPPED);
-        updateLEDState();
+        Log.info("Hazard detected by ESP32! Stopping carriage.");
+        stateManager.stopForHazard(); // Stays STOPPED until the MCP sends CLEAR_HAZARD
         stopLEDFlashing(); // Stop any LED flashing
         try {
             sendStatusToESP("HAZARD_STOPPED");
         } catch (Exception e) {
-            e.printStackTrace();
+            Log.error("Failed to report hazard stop to ESP32.", e);
         }
     }
 
-    // Send status to ESP32 and wait for acknowledgment
+    // Send status to ESP32. The ACK is tracked asynchronously so the caller never blocks
     private void sendStatusToESP(String status) {
         try {
             JSONObject statusMessage = new JSONObject();
             statusMessage.put("client_type", "ccp");
             statusMessage.put("message", status);
             statusMessage.put("client_id", bladeRunnerId);
-            statusMessage.put("sequence", sequenceNumbers++);  // Increment sequence number
+            int sequence = sequenceNumbers.getAndIncrement();  // Increment sequence number
+            statusMessage.put("sequence", sequence);
 
             // Log the status message before sending
-            System.out.println("Sending status to ESP32: " + statusMessage.toString());
+            Log.debug(() -> "Sending status to ESP32: " + statusMessage.toString());
 
-            // Send status to ESP32
-            sendMessageToESP(statusMessage.toString());
-
-            // Wait for acknowledgment from ESP32 with a timeout
-            String ack = waitForAcknowledgment();
-            if ("ACK".equals(ack)) {
-                System.out.println("ESP32 acknowledged the status.");
-            } else {
-                System.err.println("No acknowledgment received from ESP32.");
-            }
+            // Send status to ESP32, retransmitted by the ACK timer until acknowledged
+            espChannel.sendExpectingAck(statusMessage.toString(), sequence).thenAccept(acknowledged -> {
+                if (acknowledged) {
+                    Log.debug(() -> "ESP32 acknowledged status " + status + " (sequence " + sequence + ").");
+                } else {
+                    Log.warn("No acknowledgment received from ESP32 for " + status + ".");
+                }
+            });
         } catch (Exception e) {
-            System.err.println("Error sending status to ESP32: " + e.getMessage());
-        }
-    }
-
-    // Method to wait for acknowledgment from ESP32
-    private String waitForAcknowledgment() throws IOException {
-        byte[] buffer = new byte[1024];
-        DatagramSocket socket = new DatagramSocket(espPort);  // Port used to listen for acknowledgment
-        socket.setSoTimeout(5000);  // Timeout after 5 seconds (5000 ms)
-
-        try {
-            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-            socket.receive(packet);  // This will block until a message is received or timeout occurs
-            String message = new String(packet.getData(), 0, packet.getLength());
-
-            // Assume acknowledgment message is "ACK"
-            if ("ACK".equals(message)) {
-                return "ACK";
-            } else {
-                System.err.println("Unexpected acknowledgment message: " + message);
-                return "NO_ACK";
-            }
-        } catch (SocketTimeoutException e) {
-            System.err.println("No acknowledgment received, timeout occurred.");
-            return "NO_ACK";  // Return "NO_ACK" if timeout occurs
-        } finally {
-            socket.close();
+            Log.warn("Error sending status to ESP32: " + e.getMessage());
         }
     }
 
     // Method to turn on IR LED
     private void turnOnIRLED() {
-        System.out.println("Turning ON IR LED.");
+        Log.info("Turning ON IR LED.");
         // Simulate turning on IR LED
     }
 
     // Method to turn off IR LED
     private void turnOffIRLED() {
-        System.out.println("Turning OFF IR LED.");
+        Log.info("Turning OFF IR LED.");
         // Simulate turning off IR LED
     }
 
@@ -563,10 +803,19 @@ private void onMessageReceived(String message) {
             CCP ccp = new CCP(
                     bladeRunnerId, mcpAddress, mcpPort,
                     ccpAddress, ccpPort, espIp, espPort, sequenceNumber);
+            ccp.setCoalesceHeartbeats(Boolean.getBoolean(HeartbeatMonitor.COALESCE_PROPERTY));
+            String groupAddress = System.getProperty(CarriageGroup.ADDRESS_PROPERTY);
+            if (groupAddress != null) {
+                ccp.joinGroup(groupAddress, CarriageGroup.DEFAULT_PORT);
+            }
                     
             ccp.connect();
+            MetricsServer.startIfConfigured(ccp.getMetrics());
+            if (TraceRecorder.isConfigured()) {
+                TraceRecorder.writeOnExit(ccp.getTraceRecorder(), "ccp-" + bladeRunnerId);
+            }
     
-            System.out.println("CCP is running and waiting for messages from MCP...");
+            Log.info("CCP is running and waiting for messages from MCP...");
     
             // Keep the main thread alive to continue listening
             synchronized (ccp) {
@@ -574,7 +823,7 @@ private void onMessageReceived(String message) {
             }
     
         } catch (Exception e) {
-            e.printStackTrace();
+            Log.error("CCP stopped with an error.", e);
         }
     }
     
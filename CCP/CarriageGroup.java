@@ -0,0 +1,137 @@
+package CCP;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+// Addresses one command to several carriages at once: every carriage, one
+// track segment, or a list of IDs. On the wire the client_id is "@all" or
+// "@segment:<n>", and each CCP decides from its own track position whether a
+// segment command is meant for it, so the address stays the same size however
+// many carriages it covers. An ID list has no shared address: each member is
+// sent the command as "@<id>", which is also how any member that has not
+// acknowledged is retried. Plain carriage IDs never start with '@'.
+public final class CarriageGroup {
+
+    public static final String PREFIX = "@";
+    public static final String ALL_ADDRESS = PREFIX + "all";
+    public static final String SEGMENT_PREFIX = PREFIX + "segment:";
+    public static final int SEGMENT_LENGTH_MM = 5000; // The MCP and CCPs must agree on it
+    public static final int NO_SEGMENT = Integer.MIN_VALUE;
+
+    // Multicast or broadcast address the MCP and CCP started from their main methods use
+    // for group commands, on DEFAULT_PORT. Unset, group commands go out by unicast
+    public static final String ADDRESS_PROPERTY = "bladerunner.group";
+    public static final int DEFAULT_PORT = 2500;
+
+    private enum Kind { ALL, SEGMENT, IDS }
+
+    private final Kind kind;
+    private final int segment;
+    private final Set<String> ids;
+
+    private CarriageGroup(Kind kind, int segment, Set<String> ids) {
+        this.kind = kind;
+        this.segment = segment;
+        this.ids = ids;
+    }
+
+    // Every registered carriage, e.g. for a track-wide emergency stop
+    public static CarriageGroup all() {
+        return new CarriageGroup(Kind.ALL, -1, Collections.emptySet());
+    }
+
+    // Carriages in one track segment, by their last reported position
+    public static CarriageGroup segment(int segment) {
+        return new CarriageGroup(Kind.SEGMENT, segment, Collections.emptySet());
+    }
+
+    public static CarriageGroup of(String... ids) {
+        return of(Arrays.asList(ids));
+    }
+
+    public static CarriageGroup of(Collection<String> ids) {
+        return new CarriageGroup(Kind.IDS, -1, Collections.unmodifiableSet(new LinkedHashSet<>(ids)));
+    }
+
+    // The registered carriages this group currently covers
+    public Set<String> resolve(CarriageRegistry registry) {
+        Set<String> members = new LinkedHashSet<>();
+        switch (kind) {
+            case ALL:
+                members.addAll(registry.getCarriageIds());
+                break;
+            case SEGMENT:
+                members.addAll(registry.getCarriagesInSegment(segment));
+                break;
+            case IDS:
+                for (String id : ids) {
+                    if (registry.isRegistered(id)) {
+                        members.add(id);
+                    }
+                }
+                break;
+        }
+        return members;
+    }
+
+    // The client_id every member is sent the command with, null for an ID list
+    public String address() {
+        switch (kind) {
+            case ALL:
+                return ALL_ADDRESS;
+            case SEGMENT:
+                return SEGMENT_PREFIX + segment;
+            default:
+                return null;
+        }
+    }
+
+    // The client_id of a group command sent to one member alone
+    public static String memberAddress(String ccpId) {
+        return PREFIX + ccpId;
+    }
+
+    // The segment a track position falls in, NO_SEGMENT while the position is unknown
+    public static int segmentOf(int positionMm) {
+        return positionMm == McpMessage.NO_POSITION ? NO_SEGMENT : Math.floorDiv(positionMm, SEGMENT_LENGTH_MM);
+    }
+
+    // True when a client_id addresses a group rather than one carriage
+    public static boolean isGroupAddress(String clientId) {
+        return clientId != null && clientId.startsWith(PREFIX);
+    }
+
+    // True when a group address covers the given carriage, in the given segment
+    public static boolean includes(String address, String ccpId, int segment) {
+        if (ALL_ADDRESS.equals(address)) {
+            return true;
+        }
+        if (address == null || !address.startsWith(PREFIX)) {
+            return false;
+        }
+        if (address.startsWith(SEGMENT_PREFIX)) {
+            try {
+                return segment != NO_SEGMENT
+                        && Integer.parseInt(address.substring(SEGMENT_PREFIX.length())) == segment;
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+        return address.length() == PREFIX.length() + ccpId.length() && address.endsWith(ccpId);
+    }
+
+    @Override
+    public String toString() {
+        switch (kind) {
+            case ALL:
+                return "all carriages";
+            case SEGMENT:
+                return "segment " + segment;
+            default:
+                return ids.toString();
+        }
+    }
+}
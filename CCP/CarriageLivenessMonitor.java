@@ -0,0 +1,131 @@
+package CCP;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+// MCP-side liveness for every connected carriage. Hearing from a carriage only
+// stores a timestamp; each carriage has a single check on the shared timer
+// wheel that re-arms itself for the remaining time, so thousands of carriages
+// cost one ticker thread and no timer churn per message.
+public class CarriageLivenessMonitor {
+
+    public interface Listener {
+        // Called on the timer thread once a carriage has missed maxMissed heartbeats
+        void onCarriageTimedOut(String carriageId, long silentMillis);
+    }
+
+    private final HashedTimerWheel timer;
+    private final long intervalMillis;
+    private final int maxMissed;
+    private final Listener listener;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    public CarriageLivenessMonitor(HashedTimerWheel timer, long intervalMillis, int maxMissed, Listener listener) {
+        this.timer = timer;
+        this.intervalMillis = intervalMillis;
+        this.maxMissed = maxMissed;
+        this.listener = listener;
+    }
+
+    // Starts watching a carriage, e.g. on CCIN. Watching it again just refreshes it
+    public void track(String carriageId) {
+        Entry entry = new Entry(carriageId);
+        entry.timeout = timer.schedule(() -> check(entry), intervalMillis);
+        Entry previous = entries.putIfAbsent(carriageId, entry);
+        if (previous != null) {
+            entry.timeout.cancel();
+            previous.lastHeardNanos = System.nanoTime();
+        }
+    }
+
+    // Stops watching a carriage, e.g. on DISCONNECT
+    public void untrack(String carriageId) {
+        Entry entry = entries.remove(carriageId);
+        if (entry != null) {
+            entry.timeout.cancel();
+        }
+    }
+
+    // Any message from a tracked carriage counts as a heartbeat
+    public void heard(String carriageId) {
+        Entry entry = entries.get(carriageId);
+        if (entry != null) {
+            entry.lastHeardNanos = System.nanoTime();
+        }
+    }
+
+    // Remembers when a status request went out, so the STAT reply gives an RTT sample
+    public void statusRequested(String carriageId) {
+        Entry entry = entries.get(carriageId);
+        if (entry != null) {
+            entry.statusRequestedNanos = System.nanoTime();
+        }
+    }
+
+    // Records a STAT reply from a carriage
+    public void statusReceived(String carriageId) {
+        Entry entry = entries.get(carriageId);
+        if (entry == null) {
+            return;
+        }
+        long now = System.nanoTime();
+        entry.lastHeardNanos = now;
+        long requested = entry.statusRequestedNanos;
+        if (requested != 0) {
+            entry.statusRequestedNanos = 0;
+            entry.rtt.sample(now - requested);
+        }
+    }
+
+    public boolean isTracked(String carriageId) {
+        return entries.containsKey(carriageId);
+    }
+
+    // Whole heartbeat intervals since the carriage was last heard, -1 if not tracked
+    public int getMissedBeats(String carriageId) {
+        Entry entry = entries.get(carriageId);
+        if (entry == null) {
+            return -1;
+        }
+        return (int) (TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - entry.lastHeardNanos) / intervalMillis);
+    }
+
+    // Smoothed STRQ -> STAT round trip time, -1 when unknown
+    public double getSmoothedRttMillis(String carriageId) {
+        Entry entry = entries.get(carriageId);
+        return entry == null ? -1 : entry.rtt.getSmoothedMillis();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    // Runs on the timer thread. Re-arms for the time left, or times the carriage out
+    private void check(Entry entry) {
+        if (entries.get(entry.carriageId) != entry) {
+            return; // Untracked meanwhile
+        }
+        long silentMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - entry.lastHeardNanos);
+        long deadline = intervalMillis * maxMissed;
+        if (silentMillis >= deadline) {
+            if (entries.remove(entry.carriageId, entry)) {
+                listener.onCarriageTimedOut(entry.carriageId, silentMillis);
+            }
+            return;
+        }
+        entry.timeout = timer.schedule(() -> check(entry), deadline - silentMillis);
+    }
+
+    private static class Entry {
+        private final String carriageId;
+        private volatile long lastHeardNanos = System.nanoTime();
+        private volatile long statusRequestedNanos;
+        private final RttEstimator rtt = new RttEstimator(); // STRQ -> STAT
+        private volatile HashedTimerWheel.Timeout timeout;
+
+        private Entry(String carriageId) {
+            this.carriageId = carriageId;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package CCP;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class CarriageRegistry {
+
+    // Maps each Blade Runner's client_id to the address its CCP talks from
+    private final Map<String, InetSocketAddress> carriages = new ConcurrentHashMap<>();
+    // Carriages that negotiated the binary codec at CCIN time
+    private final Set<String> binaryCarriages = ConcurrentHashMap.newKeySet();
+    // Track segment each carriage is in, for segment-addressed group commands
+    private final Map<String, Integer> segments = new ConcurrentHashMap<>();
+
+    // Registers a carriage, replacing any address it was known by before
+    public void register(String ccpId, InetSocketAddress address) {
+        InetSocketAddress previous = carriages.put(ccpId, address);
+        if (previous == null) {
+            Log.info("Registered carriage " + ccpId + " at " + address);
+        } else if (!previous.equals(address)) {
+            Log.info("Carriage " + ccpId + " moved from " + previous + " to " + address);
+        }
+    }
+
+    // Removes a carriage, returns true if it was registered
+    public boolean unregister(String ccpId) {
+        binaryCarriages.remove(ccpId);
+        segments.remove(ccpId);
+        return carriages.remove(ccpId) != null;
+    }
+
+    public void setBinaryCodec(String ccpId, boolean enabled) {
+        if (enabled) {
+            binaryCarriages.add(ccpId);
+        } else {
+            binaryCarriages.remove(ccpId);
+        }
+    }
+
+    public boolean usesBinaryCodec(String ccpId) {
+        return ccpId != null && binaryCarriages.contains(ccpId);
+    }
+
+    public void setSegment(String ccpId, int segment) {
+        segments.put(ccpId, segment);
+    }
+
+    // Returns the carriage's track segment, or -1 when it is not known
+    public int getSegment(String ccpId) {
+        Integer segment = ccpId == null ? null : segments.get(ccpId);
+        return segment == null ? -1 : segment;
+    }
+
+    // Registered carriages placed in a track segment
+    public List<String> getCarriagesInSegment(int segment) {
+        List<String> ids = new ArrayList<>();
+        for (Map.Entry<String, Integer> entry : segments.entrySet()) {
+            if (entry.getValue() == segment && carriages.containsKey(entry.getKey())) {
+                ids.add(entry.getKey());
+            }
+        }
+        return ids;
+    }
+
+    // Returns the address of a carriage, or null if it has not sent CCIN yet
+    public InetSocketAddress lookup(String ccpId) {
+        return ccpId == null ? null : carriages.get(ccpId);
+    }
+
+    public boolean isRegistered(String ccpId) {
+        return ccpId != null && carriages.containsKey(ccpId);
+    }
+
+    public Set<String> getCarriageIds() {
+        return Collections.unmodifiableSet(carriages.keySet());
+    }
+
+    public int size() {
+        return carriages.size();
+    }
+}
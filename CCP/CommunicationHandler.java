@@ -2,5 +2,10 @@ package CCP;
 
 public interface CommunicationHandler {
     void sendMessage(String message) throws Exception;
+    void sendMessage(byte[] data) throws Exception;
+    void sendMessage(byte[] data, int length) throws Exception;
     void listenForMessages();
+    void joinGroup(String groupAddress, int port) throws Exception;
+    void registerMetrics(Metrics metrics);
+    void close();
 }
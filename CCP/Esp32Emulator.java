@@ -0,0 +1,542 @@
+package CCP;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Emulates ESP32 carriage controllers running ESP/espcode.ino, so end-to-end
+// tests can run on one machine. Each emulated ESP32 has the firmware's motor
+// PWM, door motor, ultrasonic hazard sensor and an IR photodiode that sees
+// checkpoints along a simulated track.
+//
+// Like the firmware, an ESP32 handles one command at a time and is busy for as
+// long as the firmware's delay() loops take (door cycles about 3.5 s, the fast
+// ramp 2.5 s). Those durations are multiplied by timeScale, and processingDelay
+// is added to every command. One selector thread serves every socket and a
+// small worker pool runs the timing, so thousands of ESP32s fit in one process.
+//
+// ESP32s either get a port each (addEsp), like the real boards, or share a port
+// and are told apart by client_id (addSharedPort), which suits a single proxy.
+//
+// By default an ESP32 reads messages exactly as the firmware does, see setLenient
+// for the opt-in mode that also acts on what the CCP forwards today.
+public class Esp32Emulator {
+
+    // Called for every command an emulated ESP32 receives, e.g. to measure latency
+    public interface CommandListener {
+        void onCommand(EmulatedEsp esp, McpMessage message, long receivedNanos);
+    }
+
+    // Called when an ESP32's photodiode lines up with a checkpoint or leaves it
+    public interface AlignmentListener {
+        void onAlignmentChanged(EmulatedEsp esp, boolean aligned);
+    }
+
+    // Called every sensor tick while an ESP32 moves, with how far it has travelled from where it started
+    public interface PositionListener {
+        void onPositionChanged(EmulatedEsp esp, int positionMm);
+    }
+
+    public enum DoorState {
+        CLOSED, OPENING, OPEN, CLOSING
+    }
+
+    // PWM levels and durations taken from espcode.ino
+    private static final int PWM_DRIVE_FAST = 255; // pwm_12pins
+    private static final int PWM_SLOW = 20;        // pwm_34pins, also used for slow drive and doors
+    private static final long FFASTC_RAMP_MILLIS = 256 * 10;
+    private static final long STOPC_DOOR_MILLIS = 21 * 20 + 301 * 10 + 21 * 20;
+    private static final long STOPO_DOOR_MILLIS = 21 * 10 + 301 * 10 + 21 * 10;
+
+    private static final long SENSOR_TICK_MILLIS = 100;
+    private static final double MM_PER_SECOND_PER_PWM = 4.0;  // 255 PWM is roughly 1 m/s
+    private static final double CHECKPOINT_SPACING_MM = 5000;
+    private static final double ALIGNMENT_TOLERANCE_MM = 50;
+    private static final int HAZARD_DISTANCE_CM = 30;          // Obstacles closer than this are reported
+
+    private final Selector selector;
+    private final ScheduledExecutorService worker;
+    private final Map<String, EmulatedEsp> espsById = new ConcurrentHashMap<>();
+    private final Queue<Runnable> pendingRegistrations = new ConcurrentLinkedQueue<>();
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(2048);
+    private final byte[] decodeBuffer = new byte[2048];
+    private final Random random;
+
+    private volatile long processingDelayMillis;
+    private volatile double timeScale = 1.0;
+    private volatile double hazardsPerSecond;    // Per ESP32, 0 disables random hazards
+    private volatile boolean lenient;            // Off: only read "message" and never ACK, as espcode.ino does
+    private volatile CommandListener commandListener;
+    private volatile AlignmentListener alignmentListener;
+    private volatile PositionListener positionListener;
+    private volatile TraceRecorder traceRecorder; // Records ESP_RECEIVED and ESP_ACTUATED for traced commands
+    private volatile boolean running = true;
+
+    private final AtomicLong commandsReceived = new AtomicLong();
+    private final AtomicLong unknownActions = new AtomicLong();
+    private final AtomicLong parseFailures = new AtomicLong();
+    private final AtomicLong acksSent = new AtomicLong();
+    private final AtomicLong hazardsSent = new AtomicLong();
+
+    public Esp32Emulator(long seed) throws IOException {
+        this.selector = Selector.open();
+        this.random = new Random(seed);
+        AtomicInteger threadCount = new AtomicInteger();
+        this.worker = Executors.newScheduledThreadPool(2, runnable -> {
+            Thread thread = new Thread(runnable, "esp-emulator-worker-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        Thread eventLoop = new Thread(this::receiveLoop, "esp-emulator-event-loop");
+        eventLoop.setDaemon(true);
+        eventLoop.start();
+        worker.scheduleAtFixedRate(this::sensorTick, SENSOR_TICK_MILLIS, SENSOR_TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    // Emulates one ESP32 listening on its own port, like the firmware's localUdpPort
+    public EmulatedEsp addEsp(String espId, int port) throws IOException {
+        EmulatedEsp esp = new EmulatedEsp(espId);
+        esp.channel = openChannel(port, esp);
+        espsById.put(espId, esp);
+        return esp;
+    }
+
+    // Opens a port shared by any number of ESP32s, created on demand from the client_id of each command
+    public void addSharedPort(int port) throws IOException {
+        openChannel(port, null);
+    }
+
+    public void setProcessingDelayMillis(long processingDelayMillis) {
+        this.processingDelayMillis = processingDelayMillis;
+    }
+
+    // Scales the firmware's blocking delays, 0 makes every command instant
+    public void setTimeScale(double timeScale) {
+        this.timeScale = timeScale;
+    }
+
+    public void setHazardsPerSecond(double hazardsPerSecond) {
+        this.hazardsPerSecond = hazardsPerSecond;
+    }
+
+    // Off by default, as on the real board: EXEC and BATCH envelopes forwarded by the CCP are
+    // "Unknown action" and status messages are never acknowledged. When on, the envelopes are
+    // unwrapped and sequenced status messages are ACKed, so the CCP stops retransmitting them
+    public void setLenient(boolean lenient) {
+        this.lenient = lenient;
+    }
+
+    public void setCommandListener(CommandListener commandListener) {
+        this.commandListener = commandListener;
+    }
+
+    public void setTraceRecorder(TraceRecorder traceRecorder) {
+        this.traceRecorder = traceRecorder;
+    }
+
+    public void setAlignmentListener(AlignmentListener alignmentListener) {
+        this.alignmentListener = alignmentListener;
+    }
+
+    public void setPositionListener(PositionListener positionListener) {
+        this.positionListener = positionListener;
+    }
+
+    public EmulatedEsp getEsp(String espId) {
+        return espsById.get(espId);
+    }
+
+    public int size() {
+        return espsById.size();
+    }
+
+    // Makes the ultrasonic sensor see an obstacle, which reports HAZARD_DETECTED to the CCP
+    public void triggerHazard(String espId, int distanceCm) {
+        EmulatedEsp esp = espsById.get(espId);
+        if (esp != null) {
+            worker.execute(() -> emitHazard(esp, distanceCm));
+        }
+    }
+
+    public String getStatistics() {
+        return "ESP32s " + espsById.size() + ", commands " + commandsReceived.get()
+                + ", unknown actions " + unknownActions.get() + ", parse failures " + parseFailures.get()
+                + ", ACKs sent " + acksSent.get() + ", hazards sent " + hazardsSent.get();
+    }
+
+    public void close() {
+        running = false;
+        worker.shutdownNow();
+        selector.wakeup();
+        try {
+            for (SelectionKey key : selector.keys()) {
+                key.channel().close();
+            }
+            selector.close();
+        } catch (IOException e) {
+            Log.warn("Error closing ESP32 emulator: " + e.getMessage());
+        }
+    }
+
+    private DatagramChannel openChannel(int port, EmulatedEsp esp) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        channel.bind(new InetSocketAddress("127.0.0.1", port));
+        channel.configureBlocking(false);
+        pendingRegistrations.add(() -> {
+            try {
+                channel.register(selector, SelectionKey.OP_READ, esp);
+            } catch (IOException e) {
+                Log.warn("Failed to register ESP32 emulator port " + port + ": " + e.getMessage());
+            }
+        });
+        selector.wakeup(); // Registration must happen on the event-loop thread
+        return channel;
+    }
+
+    private void receiveLoop() {
+        try {
+            while (running) {
+                Runnable registration;
+                while ((registration = pendingRegistrations.poll()) != null) {
+                    registration.run();
+                }
+                selector.select(this::handleKey);
+            }
+        } catch (IOException e) {
+            if (running) {
+                Log.error("ESP32 emulator event loop stopped.", e);
+            }
+        } catch (RuntimeException e) {
+            if (running) {
+                Log.error("ESP32 emulator event loop failed.", e);
+            }
+        }
+    }
+
+    private void handleKey(SelectionKey key) {
+        if (!key.isValid() || !key.isReadable()) {
+            return;
+        }
+        DatagramChannel channel = (DatagramChannel) key.channel();
+        EmulatedEsp dedicated = (EmulatedEsp) key.attachment();
+        try {
+            while (true) {
+                receiveBuffer.clear();
+                SocketAddress sender = channel.receive(receiveBuffer);
+                if (sender == null) {
+                    break;
+                }
+                long receivedNanos = System.nanoTime();
+                receiveBuffer.flip();
+                int length = receiveBuffer.remaining();
+                receiveBuffer.get(decodeBuffer, 0, length);
+                onDatagram(channel, dedicated, sender, length, receivedNanos);
+            }
+        } catch (IOException e) {
+            Log.warn("ESP32 emulator receive failed: " + e.getMessage());
+        }
+    }
+
+    // Mirrors the firmware's loop() and processCommand()
+    private void onDatagram(DatagramChannel channel, EmulatedEsp dedicated, SocketAddress sender,
+                            int length, long receivedNanos) {
+        McpMessage message;
+        try {
+            message = McpMessage.decode(decodeBuffer, 0, length);
+        } catch (RuntimeException e) {
+            parseFailures.incrementAndGet(); // "Failed to parse command"
+            return;
+        }
+        EmulatedEsp esp = dedicated;
+        if (esp == null) {
+            String espId = message.getClientId() != null ? message.getClientId() : "unknown";
+            esp = espsById.computeIfAbsent(espId, EmulatedEsp::new);
+            esp.channel = channel;
+        }
+        esp.ccpAddress = sender; // The firmware answers whoever sent the last packet
+        commandsReceived.incrementAndGet();
+
+        CommandListener listener = commandListener;
+        if (listener != null) {
+            listener.onCommand(esp, message, receivedNanos);
+        }
+        TraceRecorder tracer = traceRecorder;
+        if (tracer != null) {
+            tracer.record(TraceRecorder.Hop.ESP_RECEIVED, message, receivedNanos);
+        }
+        if (lenient && message.hasSequence() && message.getType() != MessageType.EXEC
+                && message.getType() != MessageType.BATCH) {
+            sendAck(esp, message.getSequence());
+        }
+
+        if (message.getType() == MessageType.BATCH && lenient) {
+            for (BatchStep step : message.getSteps()) {
+                esp.enqueue(step.getAction(), step.getDelayMillis(), message);
+            }
+            return;
+        }
+        Action action = firmwareAction(message);
+        if (action == null) {
+            unknownActions.incrementAndGet(); // "Unknown action"
+            return;
+        }
+        esp.enqueue(action, 0, message);
+    }
+
+    // The firmware takes the action from "message". When lenient, the EXEC envelope the CCP forwards is unwrapped
+    private Action firmwareAction(McpMessage message) {
+        if (message.getType() == MessageType.ACTION_STATUS) {
+            return message.getAction();
+        }
+        if (message.getType() == MessageType.EXEC && lenient) {
+            return message.getAction();
+        }
+        return null;
+    }
+
+    private void sendAck(EmulatedEsp esp, int sequence) {
+        send(esp, "{\"message\":\"ACK\",\"sequence\":" + sequence + "}");
+        acksSent.incrementAndGet();
+    }
+
+    private void emitHazard(EmulatedEsp esp, int distanceCm) {
+        if (esp.ccpAddress == null) {
+            return; // No CCP has talked to this ESP32 yet
+        }
+        esp.lastDistanceCm = distanceCm;
+        send(esp, JSONProcessor.encode(McpMessage.actionStatus("esp", Action.HAZARD_DETECTED, esp.espId)));
+        hazardsSent.incrementAndGet();
+    }
+
+    private void send(EmulatedEsp esp, String text) {
+        try {
+            esp.channel.send(ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)), esp.ccpAddress);
+        } catch (IOException e) {
+            Log.warn("ESP32 " + esp.espId + " failed to send: " + e.getMessage());
+        }
+    }
+
+    // Runs every SENSOR_TICK_MILLIS: random obstacles for the ultrasonic sensors, photodiode checks and positions
+    private void sensorTick() {
+        double hazardChance = hazardsPerSecond * SENSOR_TICK_MILLIS / 1000.0;
+        AlignmentListener listener = alignmentListener;
+        PositionListener positions = positionListener;
+        long now = System.nanoTime();
+        for (EmulatedEsp esp : espsById.values()) {
+            if (hazardChance > 0 && random.nextDouble() < hazardChance) {
+                emitHazard(esp, 5 + random.nextInt(HAZARD_DISTANCE_CM - 5));
+            }
+            boolean aligned = esp.isAligned(now);
+            if (aligned != esp.lastAligned) {
+                esp.lastAligned = aligned;
+                if (listener != null) {
+                    listener.onAlignmentChanged(esp, aligned);
+                }
+            }
+            int positionMm = (int) Math.round(esp.getPositionMm());
+            if (positionMm != esp.lastReportedPositionMm) {
+                esp.lastReportedPositionMm = positionMm;
+                if (positions != null) {
+                    positions.onPositionChanged(esp, positionMm);
+                }
+            }
+        }
+    }
+
+    // One emulated board. Pin state mirrors the firmware's driver outputs
+    public final class EmulatedEsp {
+        private final String espId;
+        private volatile DatagramChannel channel;
+        private volatile SocketAddress ccpAddress;
+
+        // Guarded by this
+        private long busyUntilNanos;
+        private int drivePwmForward;  // pin_driver1A
+        private int drivePwmBackward; // pin_driver2A
+        private DoorState doorState = DoorState.CLOSED;
+        private double positionMm;
+        private long positionAtNanos = System.nanoTime();
+        private Action lastAction;
+
+        private volatile int lastDistanceCm = 400;
+        private volatile boolean lastAligned;
+        private volatile int lastReportedPositionMm;
+
+        private EmulatedEsp(String espId) {
+            this.espId = espId;
+        }
+
+        // Queues a command behind whatever the board is still busy with, as the blocking firmware would.
+        // delayMillis is added after the previous command finishes, for BATCH steps
+        private synchronized void enqueue(Action action, long delayMillis, McpMessage command) {
+            long now = System.nanoTime();
+            long durationNanos = (long) (TimeUnit.MILLISECONDS.toNanos(firmwareMillis(action)) * timeScale);
+            long start = Math.max(now, busyUntilNanos)
+                    + TimeUnit.MILLISECONDS.toNanos(processingDelayMillis + delayMillis);
+            busyUntilNanos = start + durationNanos;
+            long delayNanos = start - now;
+            if (delayNanos <= 0 && durationNanos == 0) {
+                apply(action, now, command);
+                return;
+            }
+            worker.schedule(() -> startAction(action, command), delayNanos, TimeUnit.NANOSECONDS);
+            if (durationNanos > 0) {
+                worker.schedule(() -> finishAction(action), delayNanos + durationNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        private synchronized void startAction(Action action, McpMessage command) {
+            apply(action, System.nanoTime(), command);
+        }
+
+        // Door motors stop at the end of the firmware's deceleration loop
+        private synchronized void finishAction(Action action) {
+            if (action == Action.STOPC && doorState == DoorState.CLOSING) {
+                doorState = DoorState.CLOSED;
+            } else if (action == Action.STOPO && doorState == DoorState.OPENING) {
+                doorState = DoorState.OPEN;
+            }
+        }
+
+        private void apply(Action action, long now, McpMessage command) {
+            TraceRecorder tracer = traceRecorder;
+            if (tracer != null) {
+                tracer.record(TraceRecorder.Hop.ESP_ACTUATED, command, now);
+            }
+            advancePosition(now);
+            lastAction = action;
+            switch (action) {
+                case STOPC:
+                    setDrive(0, 0);
+                    doorState = DoorState.CLOSING;
+                    break;
+                case STOPO:
+                    setDrive(0, 0);
+                    doorState = DoorState.OPENING;
+                    break;
+                case FSLOWC:
+                    setDrive(PWM_SLOW, 0);
+                    break;
+                case FFASTC:
+                    setDrive(PWM_DRIVE_FAST, 0); // The ramp is folded into the busy time
+                    break;
+                case RSLOWC:
+                    setDrive(0, PWM_SLOW);
+                    break;
+                case DISCONNECT:
+                    break; // "Handling disconnect..." and nothing else
+                default:
+                    unknownActions.incrementAndGet();
+                    break;
+            }
+        }
+
+        private void setDrive(int forward, int backward) {
+            drivePwmForward = forward;
+            drivePwmBackward = backward;
+        }
+
+        private void advancePosition(long now) {
+            double seconds = (now - positionAtNanos) / 1_000_000_000.0;
+            positionMm += (drivePwmForward - drivePwmBackward) * MM_PER_SECOND_PER_PWM * seconds;
+            positionAtNanos = now;
+        }
+
+        private synchronized boolean isAligned(long now) {
+            advancePosition(now);
+            double offset = Math.abs(positionMm % CHECKPOINT_SPACING_MM);
+            return Math.min(offset, CHECKPOINT_SPACING_MM - offset) <= ALIGNMENT_TOLERANCE_MM;
+        }
+
+        public String getEspId() {
+            return espId;
+        }
+
+        public synchronized int getDrivePwmForward() {
+            return drivePwmForward;
+        }
+
+        public synchronized int getDrivePwmBackward() {
+            return drivePwmBackward;
+        }
+
+        public synchronized DoorState getDoorState() {
+            return doorState;
+        }
+
+        public synchronized double getPositionMm() {
+            advancePosition(System.nanoTime());
+            return positionMm;
+        }
+
+        public synchronized Action getLastAction() {
+            return lastAction;
+        }
+
+        public int getLastDistanceCm() {
+            return lastDistanceCm;
+        }
+
+        // True when the photodiode currently sees a checkpoint
+        public boolean isAlignedWithPhotodiode() {
+            return isAligned(System.nanoTime());
+        }
+    }
+
+    private static long firmwareMillis(Action action) {
+        switch (action) {
+            case STOPC:
+                return STOPC_DOOR_MILLIS;
+            case STOPO:
+                return STOPO_DOOR_MILLIS;
+            case FFASTC:
+                return FFASTC_RAMP_MILLIS;
+            default:
+                return 0;
+        }
+    }
+
+    // Usage: java CCP.Esp32Emulator [--count 1000] [--port 3012] [--delay 0] [--time-scale 1.0]
+    //        [--hazards-per-second 0] [--seed 42] [--lenient]
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            String key = args[i].replaceFirst("^--", "");
+            boolean hasValue = i + 1 < args.length && !args[i + 1].startsWith("--");
+            options.put(key, hasValue ? args[++i] : "true");
+        }
+        int count = Integer.parseInt(options.getOrDefault("count", "1"));
+        int port = Integer.parseInt(options.getOrDefault("port", "3012"));
+
+        Esp32Emulator emulator = new Esp32Emulator(Long.parseLong(options.getOrDefault("seed", "42")));
+        emulator.setProcessingDelayMillis(Long.parseLong(options.getOrDefault("delay", "0")));
+        emulator.setTimeScale(Double.parseDouble(options.getOrDefault("time-scale", "1.0")));
+        emulator.setHazardsPerSecond(Double.parseDouble(options.getOrDefault("hazards-per-second", "0")));
+        emulator.setLenient(options.containsKey("lenient"));
+        for (int i = 0; i < count; i++) {
+            emulator.addEsp("ESP" + (i + 1), port + i);
+        }
+        Log.info("Emulating " + count + " ESP32s on ports " + port + "-" + (port + count - 1) + ".");
+
+        while (true) {
+            Thread.sleep(5000);
+            Log.info(emulator.getStatistics());
+        }
+    }
+}
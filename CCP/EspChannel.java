@@ -0,0 +1,235 @@
+package CCP;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Long-lived link to the ESP32. One bound socket is used for every send and
+// receive, so forwarding a command costs a single send call and ACKs always
+// arrive on the socket that is already listening for them. The socket is either
+// a blocking one read by listen on its own thread, or a channel on the event
+// loop of a NIOCommunicationHandler, which then also does the receiving.
+public class EspChannel {
+
+    private static final long ACK_TIMEOUT_MILLIS = 1000; // Wait per attempt before retransmitting
+    private static final int MAX_RETRANSMITS = 4;        // Gives up after roughly 5 seconds in total
+
+    private final DatagramSocket socket;             // Null on an event loop
+    private final NIOCommunicationHandler eventLoop; // Null with a blocking socket
+    private final DatagramChannel channel;           // Null with a blocking socket
+    private final InetAddress espAddress;
+    private final int espPort;
+    private final InetSocketAddress espTarget;
+    private final MessageListener listener; // Receives every ESP32 message that is not an ACK
+    private final HashedTimerWheel timer;   // Drives ACK timeouts and retransmits
+    private final Map<Integer, PendingAck> pendingAcks = new ConcurrentHashMap<>();
+    private final Queue<Integer> ackOrder = new ConcurrentLinkedQueue<>(); // Send order, for ACKs without a sequence
+    private final AtomicLong ackTimeouts = new AtomicLong(); // Attempts that timed out, each followed by a retransmit or giving up
+    private final AtomicLong ackFailures = new AtomicLong(); // Messages never acknowledged
+
+    public EspChannel(InetAddress espAddress, int espPort, int localPort,
+                      MessageListener listener, HashedTimerWheel timer) throws IOException {
+        this(espAddress, espPort, localPort, listener, timer, null);
+    }
+
+    // With an event loop the socket is registered on its selector and listen is not needed
+    public EspChannel(InetAddress espAddress, int espPort, int localPort, MessageListener listener,
+                      HashedTimerWheel timer, NIOCommunicationHandler eventLoop) throws IOException {
+        this.espAddress = espAddress;
+        this.espPort = espPort;
+        this.espTarget = new InetSocketAddress(espAddress, espPort);
+        this.listener = listener;
+        this.timer = timer;
+        this.eventLoop = eventLoop;
+        this.socket = eventLoop == null ? new DatagramSocket(localPort) : null;
+        // Registered last, the event loop may deliver a datagram as soon as it is
+        this.channel = eventLoop == null ? null : eventLoop.addChannel(localPort, this::onDatagram);
+    }
+
+    // Sends a message to the ESP32 without waiting for a reply
+    public void send(String message) throws IOException {
+        byte[] buffer = message.getBytes(StandardCharsets.UTF_8);
+        if (eventLoop != null) {
+            eventLoop.send(channel, buffer, buffer.length, espTarget);
+        } else {
+            socket.send(new DatagramPacket(buffer, buffer.length, espAddress, espPort));
+        }
+        Log.debug(() -> "Message sent to ESP32: " + message);
+    }
+
+    // Sends a message and returns immediately. The future completes with true when
+    // the matching ACK arrives, or false once every retransmit has timed out
+    public CompletableFuture<Boolean> sendExpectingAck(String message, int sequence) throws IOException {
+        PendingAck pending = new PendingAck(sequence, message);
+        pendingAcks.put(sequence, pending);
+        ackOrder.add(sequence);
+        try {
+            send(message);
+        } catch (IOException e) {
+            cancelAck(sequence);
+            throw e;
+        }
+        pending.timeout = timer.schedule(() -> onAckTimeout(pending), ACK_TIMEOUT_MILLIS);
+        return pending.future;
+    }
+
+    // Forgets a pending ACK and completes its future with false
+    public void cancelAck(int sequence) {
+        PendingAck pending = pendingAcks.remove(sequence);
+        ackOrder.remove(sequence);
+        if (pending != null) {
+            pending.finish(false);
+        }
+    }
+
+    // Runs on the timer thread when an attempt was not acknowledged in time
+    private void onAckTimeout(PendingAck pending) {
+        if (pending.future.isDone()) {
+            return;
+        }
+        ackTimeouts.incrementAndGet();
+        if (pending.retransmits >= MAX_RETRANSMITS) {
+            ackFailures.incrementAndGet();
+            Log.warn("No acknowledgment from ESP32 for sequence " + pending.sequence + ", giving up.");
+            cancelAck(pending.sequence);
+            return;
+        }
+        pending.retransmits++;
+        try {
+            send(pending.message);
+            Log.info("Retransmitted sequence " + pending.sequence + " to ESP32 (attempt "
+                    + (pending.retransmits + 1) + ").");
+        } catch (IOException e) {
+            Log.warn("Retransmit to ESP32 failed: " + e.getMessage());
+        }
+        pending.timeout = timer.schedule(() -> onAckTimeout(pending), ACK_TIMEOUT_MILLIS);
+    }
+
+    // Receives messages until the socket is closed. Meant to run on its own thread
+    public void listen() {
+        if (socket == null) {
+            return; // The event loop receives for us
+        }
+        byte[] buffer = new byte[1024];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        try {
+            while (!socket.isClosed()) {
+                packet.setLength(buffer.length);
+                socket.receive(packet);
+                onDatagram(buffer, packet.getLength());
+            }
+        } catch (IOException e) {
+            if (!socket.isClosed()) {
+                Log.warn("Error receiving message from ESP32: " + e.getMessage());
+            }
+        }
+    }
+
+    // Handles one datagram from the ESP32, on the listener thread or the event loop
+    private void onDatagram(byte[] buffer, int length) {
+        if (isBareAck(buffer, length)) {
+            handleAcknowledgment(McpMessage.NO_SEQUENCE); // Bare ACK from the firmware
+            return;
+        }
+        McpMessage message;
+        try {
+            message = McpMessage.decode(buffer, 0, length);
+        } catch (RuntimeException e) {
+            Log.warn("Dropping malformed message from ESP32: "
+                    + new String(buffer, 0, length, StandardCharsets.UTF_8).trim());
+            return;
+        }
+        if (message.getType() == MessageType.ACK) {
+            handleAcknowledgment(message.getSequence());
+        } else {
+            listener.onMessageReceived(message);
+        }
+    }
+
+    // "ACK" with nothing but whitespace around it, as the firmware sends it
+    private static boolean isBareAck(byte[] data, int length) {
+        int start = 0;
+        int end = length;
+        while (start < end && (data[start] & 0xFF) <= ' ') {
+            start++;
+        }
+        while (end > start && (data[end - 1] & 0xFF) <= ' ') {
+            end--;
+        }
+        return end - start == 3 && data[start] == 'A' && data[start + 1] == 'C' && data[start + 2] == 'K';
+    }
+
+    // Completes the pending ACK for a sequence, or the oldest one when the ACK carries none
+    private void handleAcknowledgment(int ackSequence) {
+        Integer sequence = ackSequence != McpMessage.NO_SEQUENCE ? Integer.valueOf(ackSequence) : ackOrder.peek();
+        if (sequence == null) {
+            Log.warn("Unexpected acknowledgment from ESP32" + (ackSequence != McpMessage.NO_SEQUENCE
+                    ? " for sequence " + ackSequence + "." : "."));
+            return;
+        }
+        PendingAck pending = pendingAcks.remove(sequence);
+        ackOrder.remove(sequence);
+        if (pending != null) {
+            pending.finish(true);
+        } else {
+            Log.warn("Acknowledgment for unknown sequence " + sequence + " from ESP32.");
+        }
+    }
+
+    public long getAckTimeouts() {
+        return ackTimeouts.get();
+    }
+
+    public long getAckFailures() {
+        return ackFailures.get();
+    }
+
+    public void close() {
+        if (socket != null) {
+            socket.close();
+        } else {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                Log.warn("Error closing ESP32 channel: " + e.getMessage());
+            }
+        }
+        for (PendingAck pending : pendingAcks.values()) {
+            pending.finish(false);
+        }
+        pendingAcks.clear();
+        ackOrder.clear();
+    }
+
+    // A message waiting for its ACK
+    private static class PendingAck {
+        private final int sequence;
+        private final String message;
+        private final CompletableFuture<Boolean> future = new CompletableFuture<>();
+        private volatile HashedTimerWheel.Timeout timeout;
+        private int retransmits; // Only touched by the timer thread
+
+        private PendingAck(int sequence, String message) {
+            this.sequence = sequence;
+            this.message = message;
+        }
+
+        private void finish(boolean acknowledged) {
+            HashedTimerWheel.Timeout current = timeout;
+            if (current != null) {
+                current.cancel();
+            }
+            future.complete(acknowledged);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package CCP;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// How CCP and MCP run their listeners and inbound command handling.
+// VIRTUAL needs a JDK with virtual threads (21+); on older JDKs it falls back
+// to platform threads with a warning, so the same code runs everywhere.
+public enum ExecutionMode {
+    PLATFORM, // Commands are handled inline on the receive thread, as before
+    VIRTUAL;  // Each inbound command runs on its own virtual thread
+
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+    private static volatile boolean fallbackWarned = false;
+
+    // Creates threads for listeners and other long-running loops
+    public ThreadFactory threadFactory(String name) {
+        if (this == VIRTUAL) {
+            ThreadFactory factory = virtualThreadFactory(name);
+            if (factory != null) {
+                return factory;
+            }
+            if (!fallbackWarned) {
+                fallbackWarned = true;
+                Log.warn("Virtual threads are not available on this JDK, using platform threads.");
+            }
+        }
+        return runnable -> new Thread(runnable, name + "-" + THREAD_COUNT.incrementAndGet());
+    }
+
+    // Executor for inbound commands. Wrap it in an OrderedExecutor to keep per-carriage order
+    public Executor commandExecutor(String name) {
+        if (this == PLATFORM) {
+            return Runnable::run;
+        }
+        ThreadFactory factory = threadFactory(name);
+        return command -> factory.newThread(command).start();
+    }
+
+    public static boolean isVirtualThreadSupported() {
+        return virtualThreadFactory("probe") != null;
+    }
+
+    // Thread.ofVirtual().name(name, 0).factory(), looked up reflectively so the code still compiles on JDK 11/17
+    private static ThreadFactory virtualThreadFactory(String name) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name + "-", 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+}
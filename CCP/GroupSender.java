@@ -0,0 +1,145 @@
+package CCP;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Send side of group-addressed commands. A command goes out once, by multicast
+// or broadcast where the MCP has a group address, and every member answers with
+// a GACK echoing its sequence. The acknowledgments are collected per carriage:
+// only members that have not answered when the timeout fires are sent the
+// command again, each by unicast, and the caller's future completes once every
+// member has answered or retransmits run out.
+public class GroupSender {
+
+    // Puts group commands on the wire, implemented by the MCP
+    public interface Transmitter {
+        // One send that reaches every member
+        void fanOut(McpMessage message, Set<String> members) throws IOException;
+
+        // A retransmit to one member that has not acknowledged
+        void sendTo(String ccpId, McpMessage message) throws IOException;
+    }
+
+    private static final long RETRANSMIT_TIMEOUT_MILLIS = 300;
+    private static final int MAX_RETRANSMITS = 5;
+
+    private final Transmitter transmitter;
+    private final HashedTimerWheel timer;
+    private final AtomicInteger nextSequence = new AtomicInteger(new Random().nextInt(29001) + 1000);
+    private final Map<Integer, Pending> pending = new ConcurrentHashMap<>();
+
+    public GroupSender(Transmitter transmitter, HashedTimerWheel timer) {
+        this.transmitter = transmitter;
+        this.timer = timer;
+    }
+
+    // Sends a command to every member. The future completes with the members that never
+    // acknowledged it, so an empty set means every carriage got the command
+    public CompletableFuture<Set<String>> send(McpMessage message, Set<String> members) throws IOException {
+        McpMessage sequenced = message.withSequence(nextSequence.getAndIncrement());
+        Pending entry = new Pending(sequenced, members);
+        if (members.isEmpty()) {
+            entry.future.complete(Collections.emptySet());
+            return entry.future;
+        }
+        entry.timeout = timer.schedule(() -> onTimeout(entry), RETRANSMIT_TIMEOUT_MILLIS);
+        pending.put(sequenced.getSequence(), entry);
+        try {
+            transmitter.fanOut(sequenced, members);
+        } catch (IOException e) {
+            pending.remove(sequenced.getSequence(), entry);
+            entry.timeout.cancel();
+            throw e;
+        }
+        return entry.future;
+    }
+
+    // Applies a GACK from one carriage
+    public void acknowledge(String ccpId, int sequence) {
+        Pending entry = pending.get(sequence);
+        if (entry != null && entry.awaiting.remove(ccpId) && entry.awaiting.isEmpty()) {
+            finish(entry);
+        }
+    }
+
+    // Stops waiting for a carriage, e.g. after DISCONNECT or a heartbeat timeout
+    public void forget(String ccpId) {
+        for (Pending entry : pending.values()) {
+            if (entry.awaiting.remove(ccpId)) {
+                entry.unreachable.add(ccpId);
+                if (entry.awaiting.isEmpty()) {
+                    finish(entry);
+                }
+            }
+        }
+    }
+
+    // First group sequence the carriage must still accept, for its AKIN: the oldest command
+    // still waiting for its GACK, else the next one to be sent
+    public int resumeSequence(String ccpId) {
+        int first = nextSequence.get();
+        for (Pending entry : pending.values()) {
+            int sequence = entry.message.getSequence();
+            if (sequence - first < 0 && entry.awaiting.contains(ccpId)) {
+                first = sequence;
+            }
+        }
+        return first;
+    }
+
+    // Group commands still waiting for at least one carriage
+    public int getOutstanding() {
+        return pending.size();
+    }
+
+    // Runs on the timer thread: resends to each member that has not acknowledged yet
+    private void onTimeout(Pending entry) {
+        if (entry.future.isDone()) {
+            return;
+        }
+        if (entry.retransmits >= MAX_RETRANSMITS) {
+            entry.unreachable.addAll(entry.awaiting);
+            Log.warn("No acknowledgment from " + entry.awaiting + " for group "
+                    + entry.message.getMessageName() + " sequence " + entry.message.getSequence() + ", giving up.");
+            finish(entry);
+            return;
+        }
+        entry.retransmits++;
+        for (String ccpId : entry.awaiting) {
+            try {
+                transmitter.sendTo(ccpId, entry.message);
+            } catch (IOException e) {
+                Log.warn("Group retransmit to " + ccpId + " failed: " + e.getMessage());
+            }
+        }
+        entry.timeout = timer.schedule(() -> onTimeout(entry), RETRANSMIT_TIMEOUT_MILLIS);
+    }
+
+    private void finish(Pending entry) {
+        if (pending.remove(entry.message.getSequence(), entry)) {
+            entry.timeout.cancel();
+            entry.future.complete(Collections.unmodifiableSet(entry.unreachable));
+        }
+    }
+
+    // A group command waiting for its members' GACKs
+    private static class Pending {
+        private final McpMessage message;
+        private final Set<String> awaiting = ConcurrentHashMap.newKeySet();
+        private final Set<String> unreachable = ConcurrentHashMap.newKeySet();
+        private final CompletableFuture<Set<String>> future = new CompletableFuture<>();
+        private volatile HashedTimerWheel.Timeout timeout;
+        private int retransmits; // Only touched by the timer thread
+
+        private Pending(McpMessage message, Set<String> members) {
+            this.message = message;
+            this.awaiting.addAll(members);
+        }
+    }
+}
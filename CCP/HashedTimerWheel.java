@@ -0,0 +1,115 @@
+package CCP;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// Hashed timer wheel: one ticker thread serves any number of timeouts, each
+// costing O(1) to schedule and cancel. Expired tasks run on the ticker thread,
+// so they must be short (e.g. a retransmit or completing a future).
+public class HashedTimerWheel {
+
+    private final long tickMillis;
+    private final ArrayDeque<Timeout>[] buckets;
+    private final Queue<Timeout> newTimeouts = new ConcurrentLinkedQueue<>(); // Handed over to the ticker thread
+    private final Thread ticker;
+    private volatile boolean running = true;
+    private long tick; // Only touched by the ticker thread
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public HashedTimerWheel(long tickMillis, int wheelSize, String name) {
+        this.tickMillis = tickMillis;
+        this.buckets = new ArrayDeque[wheelSize];
+        for (int i = 0; i < wheelSize; i++) {
+            buckets[i] = new ArrayDeque<>();
+        }
+        this.ticker = new Thread(this::run, name);
+        this.ticker.setDaemon(true);
+        this.ticker.start();
+    }
+
+    // Runs the task once, after roughly delayMillis (rounded up to a whole tick)
+    public Timeout schedule(Runnable task, long delayMillis) {
+        Timeout timeout = new Timeout(task, Math.max(1, (delayMillis + tickMillis - 1) / tickMillis));
+        newTimeouts.add(timeout);
+        return timeout;
+    }
+
+    public void stop() {
+        running = false;
+        ticker.interrupt();
+    }
+
+    private void run() {
+        long nextTick = System.nanoTime();
+        while (running) {
+            nextTick += tickMillis * 1_000_000L;
+            long sleepNanos = nextTick - System.nanoTime();
+            if (sleepNanos > 0) {
+                try {
+                    Thread.sleep(sleepNanos / 1_000_000L, (int) (sleepNanos % 1_000_000L));
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            transferNewTimeouts();
+            expire(buckets[(int) (tick % buckets.length)]);
+            tick++;
+        }
+    }
+
+    // Places newly scheduled timeouts into the bucket they expire in
+    private void transferNewTimeouts() {
+        Timeout timeout;
+        while ((timeout = newTimeouts.poll()) != null) {
+            if (timeout.cancelled) {
+                continue;
+            }
+            long expiryTick = tick + timeout.ticks - 1;
+            timeout.rounds = (timeout.ticks - 1) / buckets.length;
+            buckets[(int) (expiryTick % buckets.length)].add(timeout);
+        }
+    }
+
+    private void expire(ArrayDeque<Timeout> bucket) {
+        Iterator<Timeout> it = bucket.iterator();
+        while (it.hasNext()) {
+            Timeout timeout = it.next();
+            if (timeout.cancelled) {
+                it.remove();
+            } else if (timeout.rounds > 0) {
+                timeout.rounds--;
+            } else {
+                it.remove();
+                try {
+                    timeout.task.run();
+                } catch (RuntimeException e) {
+                    Log.warn("Timer task failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // Handle for a scheduled task
+    public static class Timeout {
+        private final Runnable task;
+        private final long ticks;
+        private long rounds;
+        private volatile boolean cancelled;
+
+        private Timeout(Runnable task, long ticks) {
+            this.task = task;
+            this.ticks = ticks;
+        }
+
+        // Cancelled timeouts are dropped lazily the next time their bucket is visited
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package CCP;
+
+import java.util.concurrent.TimeUnit;
+
+// Tracks whether the MCP is still answering the CCP heartbeat. Every heartbeat
+// that goes out while the previous one is still unanswered counts as a missed
+// beat; after maxMissed in a row the MCP is considered silent. While beats are
+// being missed the interval shrinks so a lost link is confirmed sooner, and it
+// returns to normal as soon as the MCP is heard again.
+//
+// With coalescing, ordinary traffic stands in for the heartbeat: while the CCP
+// has both sent to and heard from the MCP within the current interval, no STRQ
+// is needed. As soon as either direction goes quiet the STRQ is due again, so a
+// dead MCP is still detected on a busy carriage.
+public class HeartbeatMonitor {
+
+    // Set to true to coalesce heartbeats on the MCP and CCP started from their main methods
+    public static final String COALESCE_PROPERTY = "bladerunner.heartbeat.coalesce";
+
+    private final long intervalMillis;
+    private final long minIntervalMillis;
+    private final int maxMissed;
+    private final RttEstimator rtt = new RttEstimator(); // STRQ -> AKST
+
+    // Guarded by this
+    private boolean awaitingAck;
+    private long lastSentNanos;
+    private long lastOutboundNanos; // Any message to the MCP, heartbeat or not
+    private long lastHeardNanos;    // Any message from the MCP
+    private int missedBeats;
+    private boolean silent;
+
+    public HeartbeatMonitor(long intervalMillis, long minIntervalMillis, int maxMissed) {
+        this.intervalMillis = intervalMillis;
+        this.minIntervalMillis = minIntervalMillis;
+        this.maxMissed = maxMissed;
+    }
+
+    // Records a heartbeat about to be sent. Returns true when this beat makes the MCP silent
+    public synchronized boolean onHeartbeatSent() {
+        if (awaitingAck) {
+            missedBeats++;
+        }
+        awaitingAck = true;
+        lastSentNanos = System.nanoTime();
+        lastOutboundNanos = lastSentNanos;
+        if (!silent && missedBeats >= maxMissed) {
+            silent = true;
+            return true;
+        }
+        return false;
+    }
+
+    // Records any other message sent to the MCP
+    public synchronized void onMessageSent() {
+        lastOutboundNanos = System.nanoTime();
+    }
+
+    public synchronized boolean isHeartbeatDue() {
+        return millisUntilDue() == 0;
+    }
+
+    // Time until traffic no longer covers the heartbeat, 0 when a STRQ is due now
+    public synchronized long millisUntilDue() {
+        if (lastOutboundNanos == 0 || lastHeardNanos == 0) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        long quietNanos = Math.max(now - lastOutboundNanos, now - lastHeardNanos);
+        return Math.max(0, nextDelayMillis() - TimeUnit.NANOSECONDS.toMillis(quietNanos));
+    }
+
+    // Records an AKST for the last heartbeat. Returns true when the MCP was silent until now
+    public synchronized boolean onAcknowledged() {
+        if (awaitingAck) {
+            rtt.sample(System.nanoTime() - lastSentNanos);
+            awaitingAck = false;
+        }
+        return onHeard();
+    }
+
+    // Any message from the MCP proves it is alive. Returns true when the MCP was silent until now
+    public synchronized boolean onHeard() {
+        lastHeardNanos = System.nanoTime();
+        awaitingAck = false; // A reply to the last beat may be lost, but the MCP is alive
+        missedBeats = 0;
+        boolean wasSilent = silent;
+        silent = false;
+        return wasSilent;
+    }
+
+    // Delay before the next heartbeat: halved for every missed beat, down to minIntervalMillis
+    public synchronized long nextDelayMillis() {
+        if (missedBeats == 0) {
+            return intervalMillis;
+        }
+        return Math.max(minIntervalMillis, intervalMillis >> Math.min(missedBeats, 30));
+    }
+
+    public synchronized boolean isSilent() {
+        return silent;
+    }
+
+    public synchronized int getMissedBeats() {
+        return missedBeats;
+    }
+
+    // Round trip time of the last acknowledged heartbeat, -1 before the first AKST
+    public long getLastRttMillis() {
+        return rtt.getLastMillis();
+    }
+
+    // Smoothed round trip time, -1 before the first AKST
+    public double getSmoothedRttMillis() {
+        return rtt.getSmoothedMillis();
+    }
+}
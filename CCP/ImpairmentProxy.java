@@ -0,0 +1,304 @@
+package CCP;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// In-JVM UDP relay that degrades traffic on purpose, for load and chaos tests
+// without the real network or ESP32 hardware. Clients send to the proxy port
+// instead of the target. Each client gets its own socket towards the target,
+// so replies find their way back. Each direction applies its own Impairment,
+// and every drop/duplicate/reorder decision comes from a seeded Random, so a
+// run repeats exactly as long as packets arrive in the same order.
+public class ImpairmentProxy {
+
+    // What a link does to the packets crossing it. Immutable, built with the with* methods
+    public static final class Impairment {
+        private final long latencyMillis;
+        private final long jitterMillis;            // Extra delay, uniform in [0, jitter]
+        private final double lossRate;
+        private final double duplicateRate;
+        private final double reorderRate;
+        private final long reorderDelayMillis;      // Held back this much longer, so later packets overtake it
+        private final long bandwidthBytesPerSecond; // 0 for unlimited
+
+        private Impairment(long latencyMillis, long jitterMillis, double lossRate, double duplicateRate,
+                           double reorderRate, long reorderDelayMillis, long bandwidthBytesPerSecond) {
+            this.latencyMillis = latencyMillis;
+            this.jitterMillis = jitterMillis;
+            this.lossRate = lossRate;
+            this.duplicateRate = duplicateRate;
+            this.reorderRate = reorderRate;
+            this.reorderDelayMillis = reorderDelayMillis;
+            this.bandwidthBytesPerSecond = bandwidthBytesPerSecond;
+        }
+
+        public static Impairment none() {
+            return new Impairment(0, 0, 0, 0, 0, 20, 0);
+        }
+
+        public Impairment withLatency(long latencyMillis, long jitterMillis) {
+            return new Impairment(latencyMillis, jitterMillis, lossRate, duplicateRate,
+                    reorderRate, reorderDelayMillis, bandwidthBytesPerSecond);
+        }
+
+        public Impairment withLoss(double lossRate) {
+            return new Impairment(latencyMillis, jitterMillis, lossRate, duplicateRate,
+                    reorderRate, reorderDelayMillis, bandwidthBytesPerSecond);
+        }
+
+        public Impairment withDuplication(double duplicateRate) {
+            return new Impairment(latencyMillis, jitterMillis, lossRate, duplicateRate,
+                    reorderRate, reorderDelayMillis, bandwidthBytesPerSecond);
+        }
+
+        public Impairment withReordering(double reorderRate, long reorderDelayMillis) {
+            return new Impairment(latencyMillis, jitterMillis, lossRate, duplicateRate,
+                    reorderRate, reorderDelayMillis, bandwidthBytesPerSecond);
+        }
+
+        public Impairment withBandwidth(long bandwidthBytesPerSecond) {
+            return new Impairment(latencyMillis, jitterMillis, lossRate, duplicateRate,
+                    reorderRate, reorderDelayMillis, bandwidthBytesPerSecond);
+        }
+
+        @Override
+        public String toString() {
+            return "latency=" + latencyMillis + "ms jitter=" + jitterMillis + "ms loss=" + lossRate
+                    + " duplicate=" + duplicateRate + " reorder=" + reorderRate
+                    + " bandwidth=" + (bandwidthBytesPerSecond == 0 ? "unlimited" : bandwidthBytesPerSecond + "B/s");
+        }
+    }
+
+    // One direction of the proxy, with its own random stream and counters
+    public static final class Link {
+        private final String name;
+        private final Impairment impairment;
+        private final Random random;
+        private long linkFreeAtNanos; // Bandwidth cap: when the previous packet finishes serialising
+        private final AtomicLong received = new AtomicLong();
+        private final AtomicLong dropped = new AtomicLong();
+        private final AtomicLong duplicated = new AtomicLong();
+        private final AtomicLong reordered = new AtomicLong();
+        private final AtomicLong delivered = new AtomicLong();
+
+        private Link(String name, Impairment impairment, long seed) {
+            this.name = name;
+            this.impairment = impairment;
+            this.random = new Random(seed);
+        }
+
+        // Decides the fate of one packet. Returns delivery times in nanos, empty when it is dropped
+        private synchronized long[] schedule(int length) {
+            received.incrementAndGet();
+            if (random.nextDouble() < impairment.lossRate) {
+                dropped.incrementAndGet();
+                return new long[0];
+            }
+            int copies = 1;
+            if (random.nextDouble() < impairment.duplicateRate) {
+                duplicated.incrementAndGet();
+                copies = 2;
+            }
+            long now = System.nanoTime();
+            long departure = now;
+            if (impairment.bandwidthBytesPerSecond > 0) {
+                departure = Math.max(now, linkFreeAtNanos)
+                        + length * 1_000_000_000L / impairment.bandwidthBytesPerSecond;
+                linkFreeAtNanos = departure;
+            }
+            long[] due = new long[copies];
+            for (int i = 0; i < copies; i++) {
+                long delayMillis = impairment.latencyMillis;
+                if (impairment.jitterMillis > 0) {
+                    delayMillis += (long) (random.nextDouble() * impairment.jitterMillis);
+                }
+                if (random.nextDouble() < impairment.reorderRate) {
+                    reordered.incrementAndGet();
+                    delayMillis += impairment.reorderDelayMillis;
+                }
+                due[i] = departure + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+            }
+            return due;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getReceived() {
+            return received.get();
+        }
+
+        public long getDropped() {
+            return dropped.get();
+        }
+
+        public long getDuplicated() {
+            return duplicated.get();
+        }
+
+        public long getReordered() {
+            return reordered.get();
+        }
+
+        public long getDelivered() {
+            return delivered.get();
+        }
+
+        @Override
+        public String toString() {
+            return name + ": received " + getReceived() + ", dropped " + getDropped()
+                    + ", duplicated " + getDuplicated() + ", reordered " + getReordered()
+                    + ", delivered " + getDelivered();
+        }
+    }
+
+    private final DatagramSocket clientSocket; // Faces the clients
+    private final InetSocketAddress target;
+    private final Link upstream;   // Client -> target
+    private final Link downstream; // Target -> client
+    private final Map<SocketAddress, DatagramSocket> sessions = new ConcurrentHashMap<>(); // Client -> its socket towards the target
+    private final DelayQueue<Delivery> deliveries = new DelayQueue<>();
+    private volatile boolean running = true;
+
+    public ImpairmentProxy(int listenPort, InetSocketAddress target,
+                           Impairment upstream, Impairment downstream, long seed) throws IOException {
+        this.clientSocket = new DatagramSocket(new InetSocketAddress("127.0.0.1", listenPort));
+        this.target = target;
+        this.upstream = new Link("port " + listenPort + " -> " + target.getPort(), upstream, seed);
+        this.downstream = new Link("port " + target.getPort() + " -> " + listenPort, downstream, seed + 1);
+        startDaemon(this::receiveFromClients, "impairment-proxy-" + listenPort);
+        startDaemon(this::deliver, "impairment-proxy-" + listenPort + "-delivery");
+    }
+
+    public Link getUpstream() {
+        return upstream;
+    }
+
+    public Link getDownstream() {
+        return downstream;
+    }
+
+    public void close() {
+        running = false;
+        clientSocket.close();
+        for (DatagramSocket session : sessions.values()) {
+            session.close();
+        }
+    }
+
+    private void receiveFromClients() {
+        byte[] buffer = new byte[2048];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        while (running) {
+            try {
+                packet.setLength(buffer.length);
+                clientSocket.receive(packet);
+                DatagramSocket session = session(packet.getSocketAddress());
+                enqueue(upstream, session, packet, target);
+            } catch (IOException e) {
+                if (running) {
+                    Log.warn("Impairment proxy receive failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // Relays replies from the target back to one client
+    private void receiveFromTarget(DatagramSocket session, SocketAddress client) {
+        byte[] buffer = new byte[2048];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        while (running && !session.isClosed()) {
+            try {
+                packet.setLength(buffer.length);
+                session.receive(packet);
+                enqueue(downstream, clientSocket, packet, client);
+            } catch (IOException e) {
+                if (running) {
+                    Log.warn("Impairment proxy session receive failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private DatagramSocket session(SocketAddress client) throws IOException {
+        DatagramSocket session = sessions.get(client);
+        if (session == null) {
+            session = new DatagramSocket(new InetSocketAddress("127.0.0.1", 0));
+            sessions.put(client, session);
+            DatagramSocket created = session;
+            startDaemon(() -> receiveFromTarget(created, client), "impairment-proxy-session-" + session.getLocalPort());
+        }
+        return session;
+    }
+
+    private void enqueue(Link link, DatagramSocket via, DatagramPacket packet, SocketAddress destination) {
+        byte[] data = Arrays.copyOf(packet.getData(), packet.getLength());
+        for (long due : link.schedule(data.length)) {
+            deliveries.add(new Delivery(link, via, data, destination, due));
+        }
+    }
+
+    private void deliver() {
+        while (running) {
+            Delivery delivery;
+            try {
+                delivery = deliveries.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                delivery.via.send(new DatagramPacket(delivery.data, delivery.data.length, delivery.destination));
+                delivery.link.delivered.incrementAndGet();
+            } catch (IOException e) {
+                if (running) {
+                    Log.warn("Impairment proxy send failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private static void startDaemon(Runnable task, String name) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // A packet copy waiting for its delivery time
+    private static final class Delivery implements Delayed {
+        private final Link link;
+        private final DatagramSocket via;
+        private final byte[] data;
+        private final SocketAddress destination;
+        private final long dueNanos;
+
+        private Delivery(Link link, DatagramSocket via, byte[] data, SocketAddress destination, long dueNanos) {
+            this.link = link;
+            this.via = via;
+            this.data = data;
+            this.destination = destination;
+            this.dueNanos = dueNanos;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(dueNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(dueNanos, ((Delivery) other).dueNanos);
+        }
+    }
+}
@@ -1,5 +1,9 @@
 package CCP;
 
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONArray;
 import org.json.JSONObject;
 
 public class JSONProcessor {
@@ -12,7 +16,7 @@ public class JSONProcessor {
         message.put("client_type", clientType);
         message.put("message", messageType);
         message.put("client_id", clientId);
-        message.put("timestamp", getTimestamp());
+        message.put("timestamp", Timestamps.nowMillis());
         return message.toString();
     }
 
@@ -22,8 +26,135 @@ public class JSONProcessor {
         return jsonMessage.toString(4); // Pretty print the JSON
     }
 
-    // Helper function to get the current timestamp
-    private static String getTimestamp() {
-        return java.time.LocalDateTime.now().toString();
+    // Encodes a typed message into JSON format
+    public static String encode(McpMessage message) {
+        return toJSON(message).toString();
+    }
+
+    // Decodes a JSON message into its typed form
+    public static McpMessage decode(String message) {
+        return fromJSON(new JSONObject(message));
+    }
+
+    // Builds the JSON object for a typed message, using the same keys as the hand-built messages
+    public static JSONObject toJSON(McpMessage message) {
+        JSONObject json = new JSONObject();
+        json.put("client_type", message.getClientType());
+        json.put("message", message.getMessageName());
+        json.put("client_id", message.getClientId());
+        if (message.hasSequence()) {
+            json.put("sequence_number", message.getSequence());
+        }
+        if (message.getType() == MessageType.EXEC && message.getAction() != null) {
+            json.put("action", message.getAction().name());
+        }
+        if (message.getStatus() != null) {
+            json.put("status", message.getStatus());
+        }
+        if (message.getCodec() != null) {
+            json.put("codec", message.getCodec());
+        }
+        if (message.getAckMask() != 0) {
+            json.put("ack_mask", message.getAckMask());
+        }
+        if (message.getPositionMm() != McpMessage.NO_POSITION) {
+            json.put("position_mm", message.getPositionMm());
+        }
+        if (message.getFrontGapMm() != McpMessage.NO_POSITION) {
+            json.put("front_gap_mm", message.getFrontGapMm());
+        }
+        if (message.getRearGapMm() != McpMessage.NO_POSITION) {
+            json.put("rear_gap_mm", message.getRearGapMm());
+        }
+        if (message.isTraced()) {
+            json.put("trace_ns", message.getTraceNanos());
+        }
+        if (message.hasStreamEpoch()) {
+            json.put("stream_epoch", message.getStreamEpoch());
+        }
+        if (message.hasGroupSequence()) {
+            json.put("group_sequence", message.getGroupSequence());
+        }
+        if (message.getSteps() != null) {
+            JSONArray actions = new JSONArray();
+            for (BatchStep step : message.getSteps()) {
+                JSONObject entry = new JSONObject();
+                entry.put("action", step.getAction().name());
+                if (step.getStatus() != null) {
+                    entry.put("status", step.getStatus());
+                }
+                if (step.getDelayMillis() > 0) {
+                    entry.put("delay_ms", step.getDelayMillis());
+                }
+                actions.put(entry);
+            }
+            json.put("actions", actions);
+        }
+        if (message.getTimestamp() != 0) {
+            json.put("timestamp", message.getTimestamp()); // Epoch millis, see Timestamps
+        }
+        return json;
+    }
+
+    // Reads a typed message from a parsed JSON object
+    public static McpMessage fromJSON(JSONObject json) {
+        String name = json.optString("message", null);
+        MessageType type = MessageType.fromName(name);
+        Action action = Action.fromName(json.optString("action", null));
+        if (type == null) {
+            // Status replies carry the executed action as the message, e.g. "STOPC"
+            Action executed = Action.fromName(name);
+            type = executed != null ? MessageType.ACTION_STATUS : MessageType.UNKNOWN;
+            if (executed != null) {
+                action = executed;
+            }
+        }
+        int sequence = json.has("sequence_number")
+                ? json.optInt("sequence_number", McpMessage.NO_SEQUENCE)
+                : json.optInt("sequence", McpMessage.NO_SEQUENCE);
+
+        return McpMessage.builder(json.optString("client_type", null), type)
+                .action(action)
+                .clientId(json.optString("client_id", null))
+                .status(json.optString("status", null))
+                .sequence(sequence)
+                .timestamp(readTimestamp(json))
+                .codec(json.optString("codec", null))
+                .rawType(type == MessageType.UNKNOWN ? name : null)
+                .ackMask(json.optInt("ack_mask", 0))
+                .steps(readSteps(json.optJSONArray("actions")))
+                .positionMm(json.optInt("position_mm", McpMessage.NO_POSITION))
+                .gaps(json.optInt("front_gap_mm", McpMessage.NO_POSITION),
+                        json.optInt("rear_gap_mm", McpMessage.NO_POSITION))
+                .traceNanos(json.optLong("trace_ns", McpMessage.NO_TRACE))
+                .streamEpoch(json.optInt("stream_epoch", McpMessage.NO_EPOCH))
+                .groupSequence(json.optInt("group_sequence", McpMessage.NO_SEQUENCE))
+                .build();
+    }
+
+    // Reads the "actions" array of a BATCH message, null when there is none
+    private static List<BatchStep> readSteps(JSONArray actions) {
+        if (actions == null) {
+            return null;
+        }
+        List<BatchStep> steps = new ArrayList<>(actions.length());
+        for (int i = 0; i < actions.length(); i++) {
+            JSONObject entry = actions.getJSONObject(i);
+            Action action = Action.fromName(entry.optString("action", null));
+            if (action == null) {
+                throw new IllegalArgumentException("Unknown action in BATCH step: " + entry.optString("action"));
+            }
+            steps.add(new BatchStep(action, entry.optString("status", null), entry.optLong("delay_ms", 0)));
+        }
+        return steps;
+    }
+
+    // Epoch millis, or an ISO string from peers that predate numeric timestamps. 0 when absent
+    private static long readTimestamp(JSONObject json) {
+        Object value = json.opt("timestamp");
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        return value instanceof String ? Timestamps.parse((String) value) : 0;
     }
 }
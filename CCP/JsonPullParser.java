@@ -0,0 +1,679 @@
+package CCP;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Reads a JSON message straight from the datagram bytes, without building a
+// String or a JSONObject. Keys are matched against a table of the keys
+// JSONProcessor.fromJSON reads, and the values of "message", "action",
+// "client_type", "status" and "codec" against the known names, so a recognised
+// message needs no allocation beyond the McpMessage itself. Client ids and other
+// names are interned after the first time they are seen.
+//
+// The values of other keys are stepped over without being read, nested objects
+// and arrays included, as long as they are strict JSON.
+//
+// parse gives the same message JSONProcessor.decode would, or null whenever it
+// cannot be sure of that, e.g. escapes or non-ASCII text in a value it reads or in
+// any key, fractions, duplicate keys, a BATCH's "actions" array or malformed input.
+// The caller then falls back to org.json, so the fast path never has to reproduce
+// org.json's leniency or its errors. DifferentialDecodeTest in bench checks this.
+final class JsonPullParser {
+
+    // Keys read by JSONProcessor.fromJSON, in bit order for the seen mask
+    private static final int CLIENT_TYPE = 0;
+    private static final int MESSAGE = 1;
+    private static final int CLIENT_ID = 2;
+    private static final int STATUS = 3;
+    private static final int SEQUENCE_NUMBER = 4;
+    private static final int SEQUENCE = 5;
+    private static final int ACTION = 6;
+    private static final int CODEC = 7;
+    private static final int ACK_MASK = 8;
+    private static final int POSITION_MM = 9;
+    private static final int FRONT_GAP_MM = 10;
+    private static final int REAR_GAP_MM = 11;
+    private static final int TRACE_NS = 12;
+    private static final int TIMESTAMP = 13;
+    private static final int ACTIONS = 14;
+    private static final int STREAM_EPOCH = 15;
+    private static final int GROUP_SEQUENCE = 16;
+
+    private static final int MAX_DEPTH = 32;          // Deeper values fall back, org.json has its own limit
+    private static final int MAX_KEYS_PER_OBJECT = 64; // Duplicate checks are quadratic, more keys fall back
+
+    private static final Names KEYS = keys(
+            "client_type", "message", "client_id", "status", "sequence_number", "sequence", "action", "codec",
+            "ack_mask", "position_mm", "front_gap_mm", "rear_gap_mm", "trace_ns", "timestamp", "actions",
+            "stream_epoch", "group_sequence");
+    private static final Names MESSAGE_TYPES = messageTypes();
+    private static final Names ACTIONS_BY_NAME = actions();
+    private static final Names CONSTANTS = constants("MCP", "ccp", "esp", "ON", "OFF", BinaryCodec.NAME);
+    private static final Interner INTERNED = new Interner(256);
+
+    private static final ThreadLocal<JsonPullParser> PARSERS = ThreadLocal.withInitial(JsonPullParser::new);
+
+    private byte[] data;
+    private int pos;
+    private int end;
+    private boolean failed; // Set instead of throwing, the caller falls back to org.json
+    private int seen;       // Bit per key, null values included, as JSONObject.has sees them
+    private int[] keySpans = new int[32]; // Start and end of the other keys of each open object
+    private int keyCount;                 // Keys in keySpans, the innermost object's last
+
+    // Values read so far, reset by parse
+    private String clientType;
+    private String clientId;
+    private String status;
+    private String codec;
+    private MessageType messageType;
+    private Action messageAction; // The "message" value when it names an action, e.g. a status reply
+    private String messageName;   // The "message" value when it is neither
+    private Action action;
+    private int sequenceNumber;
+    private int sequence;
+    private int ackMask;
+    private int positionMm;
+    private int frontGapMm;
+    private int rearGapMm;
+    private long traceNanos;
+    private long timestamp;
+    private int streamEpoch;
+    private int groupSequence;
+
+    private JsonPullParser() {
+    }
+
+    // The message in data, or null when it has to go through JSONProcessor.decode
+    static McpMessage parse(byte[] data, int offset, int length) {
+        return PARSERS.get().read(data, offset, length);
+    }
+
+    private McpMessage read(byte[] data, int offset, int length) {
+        this.data = data;
+        this.pos = offset;
+        this.end = offset + length;
+        failed = false;
+        seen = 0;
+        keyCount = 0;
+        clientType = clientId = status = codec = messageName = null;
+        messageType = null;
+        messageAction = action = null;
+        sequenceNumber = sequence = McpMessage.NO_SEQUENCE;
+        ackMask = 0;
+        positionMm = frontGapMm = rearGapMm = McpMessage.NO_POSITION;
+        traceNanos = McpMessage.NO_TRACE;
+        timestamp = 0;
+        streamEpoch = McpMessage.NO_EPOCH;
+        groupSequence = McpMessage.NO_SEQUENCE;
+
+        readObject();
+        skipWhitespace();
+        this.data = null;
+        if (failed || pos != end) {
+            return null;
+        }
+        return build();
+    }
+
+    // Mirrors JSONProcessor.fromJSON
+    private McpMessage build() {
+        MessageType type = messageType;
+        Action messageActionOrAction = action;
+        String rawType = null;
+        if (type == null) {
+            // Status replies carry the executed action as the message, e.g. "STOPC"
+            type = messageAction != null ? MessageType.ACTION_STATUS : MessageType.UNKNOWN;
+            if (messageAction != null) {
+                messageActionOrAction = messageAction;
+            } else {
+                rawType = messageName;
+            }
+        }
+        int sequenceValue = (seen & (1 << SEQUENCE_NUMBER)) != 0 ? sequenceNumber : sequence;
+        return McpMessage.builder(clientType, type)
+                .action(messageActionOrAction)
+                .clientId(clientId)
+                .status(status)
+                .sequence(sequenceValue)
+                .timestamp(timestamp)
+                .codec(codec)
+                .rawType(rawType)
+                .ackMask(ackMask)
+                .positionMm(positionMm)
+                .gaps(frontGapMm, rearGapMm)
+                .traceNanos(traceNanos)
+                .streamEpoch(streamEpoch)
+                .groupSequence(groupSequence)
+                .build();
+    }
+
+    private void readObject() {
+        skipWhitespace();
+        if (!consume('{')) {
+            return;
+        }
+        skipWhitespace();
+        if (consumeIf('}')) {
+            return;
+        }
+        while (!failed) {
+            skipWhitespace();
+            int start = stringStart();
+            int close = failed ? -1 : stringEnd(start);
+            skipWhitespace();
+            if (close < 0 || !consume(':')) {
+                return;
+            }
+            skipWhitespace();
+            Object known = KEYS.get(data, start, close);
+            if (known == null) {
+                addKey(0, start, close);
+                skipValue(0);
+            } else {
+                int key = (Integer) known;
+                if ((seen & (1 << key)) != 0) {
+                    failed = true; // org.json rejects duplicate keys
+                    return;
+                }
+                seen |= 1 << key;
+                readValue(key);
+            }
+            skipWhitespace();
+            if (consumeIf('}')) {
+                return;
+            }
+            if (!consume(',')) {
+                return;
+            }
+        }
+    }
+
+    // Remembers a key of the object whose keys start at base, failing on a repeat as org.json does
+    private void addKey(int base, int start, int close) {
+        if (failed) {
+            return;
+        }
+        for (int i = base; i < keyCount; i++) {
+            if (Arrays.equals(data, keySpans[2 * i], keySpans[2 * i + 1], data, start, close)) {
+                failed = true;
+                return;
+            }
+        }
+        if (keyCount - base >= MAX_KEYS_PER_OBJECT) {
+            failed = true;
+            return;
+        }
+        if (2 * keyCount + 2 > keySpans.length) {
+            keySpans = Arrays.copyOf(keySpans, keySpans.length * 2);
+        }
+        keySpans[2 * keyCount] = start;
+        keySpans[2 * keyCount + 1] = close;
+        keyCount++;
+    }
+
+    // Steps over the value of a key no message field comes from. Only strict JSON is
+    // stepped over, anything org.json might read differently fails
+    private void skipValue(int depth) {
+        if (failed || pos >= end) {
+            failed = true;
+            return;
+        }
+        switch (data[pos]) {
+            case '"':
+                skipString();
+                break;
+            case '{':
+                skipObject(depth + 1);
+                break;
+            case '[':
+                skipArray(depth + 1);
+                break;
+            case 't':
+                skipLiteral("true");
+                break;
+            case 'f':
+                skipLiteral("false");
+                break;
+            case 'n':
+                skipLiteral("null");
+                break;
+            default:
+                skipNumber();
+        }
+    }
+
+    private void skipObject(int depth) {
+        if (depth > MAX_DEPTH) {
+            failed = true;
+            return;
+        }
+        pos++;
+        int base = keyCount;
+        skipWhitespace();
+        if (!consumeIf('}')) {
+            while (!failed) {
+                skipWhitespace();
+                int start = stringStart();
+                int close = failed ? -1 : stringEnd(start);
+                skipWhitespace();
+                if (close < 0 || !consume(':')) {
+                    break;
+                }
+                addKey(base, start, close);
+                skipWhitespace();
+                skipValue(depth);
+                skipWhitespace();
+                if (failed || consumeIf('}')) {
+                    break;
+                }
+                consume(',');
+            }
+        }
+        keyCount = base;
+    }
+
+    private void skipArray(int depth) {
+        if (depth > MAX_DEPTH) {
+            failed = true;
+            return;
+        }
+        pos++;
+        skipWhitespace();
+        if (consumeIf(']')) {
+            return;
+        }
+        while (!failed) {
+            skipValue(depth);
+            skipWhitespace();
+            if (failed || consumeIf(']')) {
+                return;
+            }
+            consume(',');
+            skipWhitespace();
+        }
+    }
+
+    // A string with any escapes JSON allows. Raw control characters fail, org.json rejects some
+    private void skipString() {
+        pos++;
+        while (pos < end) {
+            int b = data[pos++] & 0xFF;
+            if (b == '"') {
+                return;
+            }
+            if (b < 0x20) {
+                break;
+            }
+            if (b == '\\') {
+                if (pos >= end) {
+                    break;
+                }
+                byte escaped = data[pos++];
+                if (escaped == 'u') {
+                    if (end - pos < 4 || !isHex(data[pos]) || !isHex(data[pos + 1])
+                            || !isHex(data[pos + 2]) || !isHex(data[pos + 3])) {
+                        break;
+                    }
+                    pos += 4;
+                } else if ("\"\\/bfnrt".indexOf(escaped) < 0) {
+                    break;
+                }
+            }
+        }
+        failed = true;
+    }
+
+    private static boolean isHex(byte b) {
+        return (b >= '0' && b <= '9') || (b >= 'a' && b <= 'f') || (b >= 'A' && b <= 'F');
+    }
+
+    // A number in JSON's own syntax, which org.json accepts whatever its size
+    private void skipNumber() {
+        consumeIf('-');
+        if (!consumeIf('0') && !skipDigits()) {
+            failed = true;
+            return;
+        }
+        if (consumeIf('.') && !skipDigits()) {
+            failed = true;
+            return;
+        }
+        if (consumeIf('e') || consumeIf('E')) {
+            if (!consumeIf('+')) {
+                consumeIf('-');
+            }
+            if (!skipDigits()) {
+                failed = true;
+            }
+        }
+    }
+
+    private boolean skipDigits() {
+        int start = pos;
+        while (pos < end && data[pos] >= '0' && data[pos] <= '9') {
+            pos++;
+        }
+        return pos > start;
+    }
+
+    private void skipLiteral(String literal) {
+        if (end - pos < literal.length() || !matches(literal, data, pos, pos + literal.length())) {
+            failed = true;
+            return;
+        }
+        pos += literal.length();
+    }
+
+    private void readValue(int key) {
+        if (isNull()) {
+            return; // JSONObject.opt* treat null as absent
+        }
+        switch (key) {
+            case CLIENT_TYPE:
+                clientType = readConstantOrInterned();
+                break;
+            case MESSAGE:
+                readMessageName();
+                break;
+            case CLIENT_ID:
+                clientId = readInterned();
+                break;
+            case STATUS:
+                status = readConstantOrInterned();
+                break;
+            case ACTION:
+                readAction();
+                break;
+            case CODEC:
+                codec = readConstantOrInterned();
+                break;
+            case SEQUENCE_NUMBER:
+                sequenceNumber = readInt();
+                break;
+            case SEQUENCE:
+                sequence = readInt();
+                break;
+            case ACK_MASK:
+                ackMask = readInt();
+                break;
+            case POSITION_MM:
+                positionMm = readInt();
+                break;
+            case FRONT_GAP_MM:
+                frontGapMm = readInt();
+                break;
+            case REAR_GAP_MM:
+                rearGapMm = readInt();
+                break;
+            case TRACE_NS:
+                traceNanos = readLong();
+                break;
+            case TIMESTAMP:
+                timestamp = readLong(); // ISO strings from older peers go through org.json
+                break;
+            case ACTIONS:
+                failed = true; // BATCH steps are left to org.json
+                break;
+            case STREAM_EPOCH:
+                streamEpoch = readInt();
+                break;
+            case GROUP_SEQUENCE:
+                groupSequence = readInt();
+                break;
+        }
+    }
+
+    private void readMessageName() {
+        int start = stringStart();
+        int close = failed ? -1 : stringEnd(start);
+        if (close < 0) {
+            return;
+        }
+        messageType = (MessageType) MESSAGE_TYPES.get(data, start, close);
+        if (messageType == null) {
+            messageAction = (Action) ACTIONS_BY_NAME.get(data, start, close);
+            if (messageAction == null) {
+                messageName = INTERNED.intern(data, start, close);
+            }
+        }
+    }
+
+    private void readAction() {
+        int start = stringStart();
+        int close = failed ? -1 : stringEnd(start);
+        if (close >= 0) {
+            action = (Action) ACTIONS_BY_NAME.get(data, start, close); // Unknown names read as no action
+        }
+    }
+
+    private String readConstantOrInterned() {
+        int start = stringStart();
+        int close = failed ? -1 : stringEnd(start);
+        if (close < 0) {
+            return null;
+        }
+        String constant = (String) CONSTANTS.get(data, start, close);
+        return constant != null ? constant : INTERNED.intern(data, start, close);
+    }
+
+    private String readInterned() {
+        int start = stringStart();
+        int close = failed ? -1 : stringEnd(start);
+        return close < 0 ? null : INTERNED.intern(data, start, close);
+    }
+
+    // Opening quote of a string value, after which its first byte starts
+    private int stringStart() {
+        if (!consume('"')) {
+            return -1;
+        }
+        return pos;
+    }
+
+    // Position of the closing quote of a plain string. Escapes and non-ASCII text fail
+    private int stringEnd(int start) {
+        for (int i = start; i < end; i++) {
+            int b = data[i] & 0xFF;
+            if (b == '"') {
+                pos = i + 1;
+                return i;
+            }
+            if (b == '\\' || b < 0x20 || b > 0x7E) {
+                break;
+            }
+        }
+        failed = true;
+        return -1;
+    }
+
+    private int readInt() {
+        long value = readLong();
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            failed = true;
+        }
+        return (int) value;
+    }
+
+    // A plain integer. Fractions, exponents, leading zeros and overflow fail
+    private long readLong() {
+        boolean negative = pos < end && data[pos] == '-';
+        if (negative) {
+            pos++;
+        }
+        int start = pos;
+        long value = 0;
+        while (pos < end && data[pos] >= '0' && data[pos] <= '9') {
+            int digit = data[pos] - '0';
+            if (value > (Long.MAX_VALUE - digit) / 10) {
+                failed = true;
+                return 0;
+            }
+            value = value * 10 + digit;
+            pos++;
+        }
+        int digits = pos - start;
+        if (digits == 0 || (digits > 1 && data[start] == '0') || (pos < end && isNumberPart(data[pos]))) {
+            failed = true;
+            return 0;
+        }
+        return negative ? -value : value;
+    }
+
+    private static boolean isNumberPart(byte b) {
+        return b == '.' || b == 'e' || b == 'E' || b == '+' || b == '-' || (b >= '0' && b <= '9');
+    }
+
+    private boolean isNull() {
+        if (end - pos >= 4 && data[pos] == 'n' && data[pos + 1] == 'u' && data[pos + 2] == 'l' && data[pos + 3] == 'l') {
+            pos += 4;
+            return true;
+        }
+        return false;
+    }
+
+    // Control characters count as whitespace, as in org.json's nextClean, except NUL
+    private void skipWhitespace() {
+        while (pos < end && (data[pos] & 0xFF) <= ' ' && data[pos] != 0) {
+            pos++;
+        }
+    }
+
+    // Consumes the expected byte, or marks the parse failed
+    private boolean consume(char expected) {
+        if (pos < end && data[pos] == expected) {
+            pos++;
+            return true;
+        }
+        failed = true;
+        return false;
+    }
+
+    private boolean consumeIf(char expected) {
+        if (pos < end && data[pos] == expected) {
+            pos++;
+            return true;
+        }
+        return false;
+    }
+
+    private static int hash(byte[] data, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + data[i];
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    private static boolean matches(String name, byte[] data, int start, int end) {
+        if (name.length() != end - start) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (name.charAt(i) != data[start + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Each key maps to its index
+    private static Names keys(String... keys) {
+        Object[] indexes = new Object[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            indexes[i] = i;
+        }
+        return new Names(keys, indexes);
+    }
+
+    // Each value maps to itself, so it is returned without a copy
+    private static Names constants(String... values) {
+        return new Names(values, values);
+    }
+
+    // The names MessageType.fromName accepts
+    private static Names messageTypes() {
+        int count = 0;
+        for (MessageType type : MessageType.values()) {
+            if (MessageType.fromName(type.name()) != null) {
+                count++;
+            }
+        }
+        String[] names = new String[count];
+        Object[] values = new Object[count];
+        int i = 0;
+        for (MessageType type : MessageType.values()) {
+            if (MessageType.fromName(type.name()) != null) {
+                names[i] = type.name();
+                values[i++] = type;
+            }
+        }
+        return new Names(names, values);
+    }
+
+    private static Names actions() {
+        Action[] actions = Action.values();
+        String[] names = new String[actions.length];
+        for (int i = 0; i < actions.length; i++) {
+            names[i] = actions[i].name();
+        }
+        return new Names(names, actions);
+    }
+
+    // Fixed lookup from name bytes to a value, open addressing
+    private static final class Names {
+        private final String[] names;
+        private final Object[] values;
+        private final int mask;
+
+        private Names(String[] names, Object[] values) {
+            int capacity = Integer.highestOneBit(Math.max(4, names.length * 4) - 1) << 1;
+            this.names = new String[capacity];
+            this.values = new Object[capacity];
+            this.mask = capacity - 1;
+            for (int i = 0; i < names.length; i++) {
+                byte[] bytes = names[i].getBytes(StandardCharsets.US_ASCII);
+                int slot = hash(bytes, 0, bytes.length) & mask;
+                while (this.names[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                this.names[slot] = names[i];
+                this.values[slot] = values[i];
+            }
+        }
+
+        private Object get(byte[] data, int start, int end) {
+            int slot = hash(data, start, end) & mask;
+            while (names[slot] != null) {
+                if (matches(names[slot], data, start, end)) {
+                    return values[slot];
+                }
+                slot = (slot + 1) & mask;
+            }
+            return null;
+        }
+    }
+
+    // Direct-mapped cache of Strings built from bytes. A collision just replaces the entry
+    private static final class Interner {
+        private final AtomicReferenceArray<String> slots;
+        private final int mask;
+
+        private Interner(int capacity) {
+            this.slots = new AtomicReferenceArray<>(capacity);
+            this.mask = capacity - 1;
+        }
+
+        private String intern(byte[] data, int start, int end) {
+            int slot = hash(data, start, end) & mask;
+            String cached = slots.get(slot);
+            if (cached != null && matches(cached, data, start, end)) {
+                return cached;
+            }
+            String value = new String(data, start, end - start, StandardCharsets.US_ASCII);
+            slots.lazySet(slot, value);
+            return value;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package CCP;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+// Drives the status LEDs. Every controller shares one scheduler thread, ON/OFF
+// phases are scheduled rather than slept, and starting a new pattern cancels
+// the previous one, so the thread count stays constant however often the
+// state changes.
+public class LEDController {
+
+    private static final long PHASE_MILLIS = 500; // ON for 0.5 s, OFF for 0.5 s
+
+    private static final ScheduledExecutorService SHARED_SCHEDULER = createSharedScheduler();
+
+    private final ScheduledExecutorService scheduler;
+    private Pattern currentPattern; // Guarded by this
+
+    public LEDController() {
+        this(SHARED_SCHEDULER);
+    }
+
+    public LEDController(ScheduledExecutorService scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    // Flashes an LED flashCount times, replacing whatever pattern was running
+    public synchronized void flash(int ledIndex, int flashCount) {
+        cancelCurrentPattern();
+        if (flashCount <= 0) {
+            return;
+        }
+        Log.info("Flashing LED " + ledIndex);
+        Pattern pattern = new Pattern(ledIndex, flashCount * 2);
+        currentPattern = pattern;
+        pattern.future = scheduler.scheduleAtFixedRate(pattern, 0, PHASE_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    // Turns an LED on steadily, cancelling any flashing pattern
+    public synchronized void turnOn(int ledIndex) {
+        cancelCurrentPattern();
+        Log.info("LED " + ledIndex + " ON");
+    }
+
+    // Stops any flashing pattern
+    public synchronized void stop() {
+        cancelCurrentPattern();
+    }
+
+    public synchronized boolean isFlashing() {
+        return currentPattern != null && !currentPattern.isDone();
+    }
+
+    private void cancelCurrentPattern() {
+        if (currentPattern != null) {
+            currentPattern.cancel();
+            currentPattern = null;
+        }
+    }
+
+    private static ScheduledExecutorService createSharedScheduler() {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "led-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.setRemoveOnCancelPolicy(true); // Replaced patterns leave the queue immediately
+        return executor;
+    }
+
+    // One flashing pattern. Each run is one ON or OFF phase
+    private static class Pattern implements Runnable {
+        private final int ledIndex;
+        private final int phases;
+        private int phase; // Only touched by the scheduler thread
+        private volatile boolean cancelled;
+        private volatile ScheduledFuture<?> future;
+
+        private Pattern(int ledIndex, int phases) {
+            this.ledIndex = ledIndex;
+            this.phases = phases;
+        }
+
+        @Override
+        public void run() {
+            if (cancelled) {
+                return;
+            }
+            if (phase >= phases) {
+                cancel(); // Pattern finished
+                return;
+            }
+            Log.debug(() -> "LED " + ledIndex + (phase % 2 == 0 ? " ON" : " OFF"));
+            phase++;
+        }
+
+        private void cancel() {
+            cancelled = true;
+            ScheduledFuture<?> scheduled = future;
+            if (scheduled != null) {
+                scheduled.cancel(false);
+            }
+        }
+
+        private boolean isDone() {
+            return cancelled;
+        }
+    }
+}
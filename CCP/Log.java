@@ -0,0 +1,186 @@
+package CCP;
+
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+// Asynchronous console logging. Callers only check the level and drop an entry
+// into a lock-free ring buffer; a background thread does the actual printing.
+// Messages that are expensive to build should use the Supplier overloads so
+// they are only built when their level is enabled.
+//
+// The level defaults to INFO and can be set with -Dbladerunner.log.level=DEBUG.
+public final class Log {
+
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR
+    }
+
+    private static final int CAPACITY = 8192; // Entries buffered before new ones are dropped
+    private static final long IDLE_PARK_NANOS = 1_000_000L;
+
+    private static final AtomicReferenceArray<Entry> RING = new AtomicReferenceArray<>(CAPACITY);
+    private static final AtomicLong HEAD = new AtomicLong(); // Next slot to claim, shared by producers
+    private static final AtomicLong TAIL = new AtomicLong(); // Next slot to print, only advanced by the writer
+    private static final AtomicLong DROPPED = new AtomicLong();
+    private static volatile long printed; // Entries before this have reached the console
+
+    private static volatile Level level = parseLevel(System.getProperty("bladerunner.log.level"));
+    private static final Thread WRITER = startWriter();
+
+    private Log() {
+    }
+
+    public static void setLevel(Level newLevel) {
+        level = newLevel;
+    }
+
+    public static Level getLevel() {
+        return level;
+    }
+
+    public static boolean isEnabled(Level candidate) {
+        return candidate.ordinal() >= level.ordinal();
+    }
+
+    public static boolean isDebugEnabled() {
+        return isEnabled(Level.DEBUG);
+    }
+
+    public static void debug(String message) {
+        log(Level.DEBUG, message, null);
+    }
+
+    public static void debug(Supplier<String> message) {
+        if (isEnabled(Level.DEBUG)) {
+            log(Level.DEBUG, message.get(), null);
+        }
+    }
+
+    public static void info(String message) {
+        log(Level.INFO, message, null);
+    }
+
+    public static void info(Supplier<String> message) {
+        if (isEnabled(Level.INFO)) {
+            log(Level.INFO, message.get(), null);
+        }
+    }
+
+    public static void warn(String message) {
+        log(Level.WARN, message, null);
+    }
+
+    public static void error(String message) {
+        log(Level.ERROR, message, null);
+    }
+
+    public static void error(String message, Throwable error) {
+        log(Level.ERROR, message, error);
+    }
+
+    // Number of entries dropped because the ring buffer was full
+    public static long getDroppedCount() {
+        return DROPPED.get();
+    }
+
+    // Blocks until every entry logged so far has been printed
+    public static void flush() {
+        long target = HEAD.get();
+        while (printed < target && WRITER.isAlive()) {
+            LockSupport.unpark(WRITER);
+            LockSupport.parkNanos(IDLE_PARK_NANOS);
+        }
+    }
+
+    private static void log(Level entryLevel, String message, Throwable error) {
+        if (!isEnabled(entryLevel)) {
+            return;
+        }
+        long slot;
+        do {
+            slot = HEAD.get();
+            if (slot - TAIL.get() >= CAPACITY) {
+                DROPPED.incrementAndGet(); // Never block the caller on a slow console
+                return;
+            }
+        } while (!HEAD.compareAndSet(slot, slot + 1));
+        RING.lazySet((int) (slot % CAPACITY), new Entry(entryLevel, message, error));
+    }
+
+    private static Thread startWriter() {
+        Thread writer = new Thread(Log::drain, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::flush, "log-flush"));
+        return writer;
+    }
+
+    // Prints entries in order. A claimed slot that is not written yet is waited for
+    private static void drain() {
+        StringBuilder out = new StringBuilder();
+        StringBuilder err = new StringBuilder();
+        while (true) {
+            long tail = TAIL.get();
+            int index = (int) (tail % CAPACITY);
+            Entry entry = RING.get(index);
+            if (entry == null) {
+                print(System.out, out);
+                print(System.err, err);
+                printed = tail;
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+                continue;
+            }
+            RING.lazySet(index, null);
+            TAIL.lazySet(tail + 1);
+
+            StringBuilder target = entry.level.ordinal() >= Level.WARN.ordinal() ? err : out;
+            target.append(entry.message).append(System.lineSeparator());
+            if (entry.error != null) {
+                StringWriter trace = new StringWriter();
+                entry.error.printStackTrace(new PrintWriter(trace));
+                target.append(trace);
+            }
+            if (out.length() + err.length() > 64 * 1024) {
+                print(System.out, out);
+                print(System.err, err);
+                printed = tail + 1;
+            }
+        }
+    }
+
+    private static void print(PrintStream stream, StringBuilder buffer) {
+        if (buffer.length() > 0) {
+            stream.print(buffer);
+            stream.flush();
+            buffer.setLength(0);
+        }
+    }
+
+    private static Level parseLevel(String name) {
+        if (name != null) {
+            try {
+                return Level.valueOf(name.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                System.err.println("Unknown log level " + name + ", using INFO.");
+            }
+        }
+        return Level.INFO;
+    }
+
+    private static final class Entry {
+        private final Level level;
+        private final String message;
+        private final Throwable error;
+
+        private Entry(Level level, String message, Throwable error) {
+            this.level = level;
+            this.message = message;
+            this.error = error;
+        }
+    }
+}
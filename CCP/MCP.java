@@ -4,208 +4,611 @@ import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.SocketException;
-import java.net.UnknownHostException;
+import java.net.StandardSocketOptions;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
-
-import org.json.JSONObject;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class MCP {
 
-    private InetAddress ccpAddress;
-    private int ccpPort;
-    private DatagramSocket mcpSocket;
-    private int sequenceNumber = new Random().nextInt(29001) + 1000; // Sequence number between 1000 and 30000
+    private static final long HEARTBEAT_INTERVAL_MILLIS = 2000; // Matches the CCP heartbeat
+    private static final int MAX_MISSED_HEARTBEATS = 3;
+    private static final long ACK_FLUSH_MILLIS = 200; // AKSTs are batched over this window when coalescing
+    private static final int TRACK_LOOP_LENGTH_MM = 0;      // 0 while the track is treated as a line
+    private static final int GAP_RESOLUTION_MM = 50;         // Smaller gap changes are not sent to the CCPs
+    private static final long MAX_BATCH_DELAY_MILLIS = 1000; // A batch runs on the CCP for at most this long before it reports
 
-    public MCP(String ccpIp, int ccpPort) throws SocketException, UnknownHostException {
-        this.ccpAddress = InetAddress.getByName(ccpIp);
-        this.ccpPort = ccpPort;
+    private DatagramSocket mcpSocket;
+    private CarriageRegistry carriageRegistry; // Carriages that have sent CCIN, keyed by client_id
+    private boolean binaryCodecEnabled = true; // Offer the binary codec to CCPs that advertise it
+    private AtomicInteger sequenceNumber = new AtomicInteger(new Random().nextInt(29001) + 1000); // Sequence number between 1000 and 30000
+    private ExecutionMode executionMode = ExecutionMode.PLATFORM;
+    private Executor commandExecutor = ExecutionMode.PLATFORM.commandExecutor("mcp");
+    private Map<String, Executor> carriageExecutors = new ConcurrentHashMap<>(); // Keeps each carriage's messages in order
+    private HashedTimerWheel timer; // One timer thread for heartbeat deadlines and command retransmits
+    private CarriageLivenessMonitor livenessMonitor;
+    private ReliableSender reliableSender; // Sequences, tracks and retransmits EXEC commands per carriage
+    private GroupSender groupSender; // Group commands, acknowledged per carriage
+    private volatile InetSocketAddress groupAddress; // Multicast or broadcast target, null to fan out by unicast
+    private TrackOccupancy trackOccupancy; // Carriage positions from STAT, ordered along the track
+    private volatile boolean coalesceHeartbeats = false; // Acknowledge all carriage traffic with batched AKSTs
+    private Set<String> pendingStatusAcks = ConcurrentHashMap.newKeySet(); // Carriages owed an AKST
+    private AtomicInteger statusAckFlushRound = new AtomicInteger(); // Flushes of an older round stop rescheduling
+    private TraceRecorder traceRecorder = new TraceRecorder(); // Per-hop timing of commands, once tracing is on
+    private Metrics metrics = new Metrics("mcp", "mcp"); // Served by MetricsServer when a metrics port is configured
+    private Metrics.Counter[] messagesReceived = metrics.counters("messages_received_total", "type",
+            MessageType.values(), "Messages received from CCPs");
+    private Metrics.Counter messagesSent = metrics.counter("messages_sent_total", "Datagrams sent to CCPs");
+    private Metrics.Counter malformedMessages = metrics.counter("malformed_messages_total",
+            "Datagrams that could not be decoded");
+    private Metrics.Counter unroutableMessages = metrics.counter("messages_unroutable_total",
+            "Messages dropped because their carriage has not sent CCIN");
+    private Metrics.Counter carriageTimeouts = metrics.counter("carriage_timeouts_total",
+            "Carriages dropped after missing heartbeats");
+    private Metrics.Histogram parseTime = metrics.histogram("message_parse_seconds", "Time to decode a datagram");
+    private Metrics.Histogram handlingTime = metrics.histogram("message_handling_seconds",
+            "Time to handle a CCP message, replies included");
+
+    // Carriages are addressed from the CCIN they send, so there is no CCP address to configure
+    public MCP() throws SocketException {
         this.mcpSocket = new DatagramSocket(2000); // MCP listens on port 2000
+        this.carriageRegistry = new CarriageRegistry();
+        this.timer = new HashedTimerWheel(50, 512, "mcp-timer");
+        this.livenessMonitor = new CarriageLivenessMonitor(timer,
+                HEARTBEAT_INTERVAL_MILLIS, MAX_MISSED_HEARTBEATS, this::onCarriageTimedOut);
+        this.reliableSender = new ReliableSender(this::sendMessage, timer,
+                HEARTBEAT_INTERVAL_MILLIS * MAX_MISSED_HEARTBEATS); // Gives up when a silent carriage would be dropped
+        this.trackOccupancy = new TrackOccupancy(TRACK_LOOP_LENGTH_MM, CarriageGroup.SEGMENT_LENGTH_MM, GAP_RESOLUTION_MM);
+        this.groupSender = new GroupSender(new GroupSender.Transmitter() {
+            @Override
+            public void fanOut(McpMessage message, Set<String> members) throws IOException {
+                fanOutMessage(message, members);
+            }
+
+            @Override
+            public void sendTo(String ccpId, McpMessage message) throws IOException {
+                sendMessageTo(ccpId, message.withClientId(CarriageGroup.memberAddress(ccpId)));
+            }
+        }, timer);
+        metrics.counter("command_retransmits_total", "EXEC commands sent again for want of an ACK",
+                reliableSender::getRetransmitCount);
+        metrics.counter("commands_abandoned_total", "EXEC commands given up on: unacknowledged past the liveness timeout, or to a dropped carriage",
+                reliableSender::getAbandonedCount);
+        metrics.gauge("group_commands_outstanding", "Group commands waiting for a GACK", groupSender::getOutstanding);
+        metrics.gauge("carriages_registered", "Carriages that have sent CCIN", carriageRegistry::size);
+        metrics.gauge("carriages_positioned", "Carriages with a known track position", trackOccupancy::size);
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    // When enabled, EXEC and BATCH commands carry a trace stamp and their hops are recorded
+    public void setTracing(boolean enabled) {
+        reliableSender.setTraceRecorder(enabled ? traceRecorder : null);
+    }
+
+    public TraceRecorder getTraceRecorder() {
+        return traceRecorder;
+    }
+
+    public CarriageRegistry getCarriageRegistry() {
+        return carriageRegistry;
+    }
+
+    public CarriageLivenessMonitor getLivenessMonitor() {
+        return livenessMonitor;
+    }
+
+    public ReliableSender getReliableSender() {
+        return reliableSender;
+    }
+
+    public GroupSender getGroupSender() {
+        return groupSender;
+    }
+
+    public TrackOccupancy getTrackOccupancy() {
+        return trackOccupancy;
     }
 
     // Send initiation response to CCP initiation request
     public void sendInitiationAck(String ccpId) throws IOException {
-        JSONObject message = new JSONObject();
-        message.put("client_type", "MCP");
-        message.put("message", "AKIN");
-        message.put("client_id", ccpId);
-        message.put("sequence_number", sequenceNumber++);
+        sendInitiationAck(ccpId, null);
+    }
 
-        sendMessage(message);
+    // Send initiation response, confirming the codec the CCP will be addressed with. It names
+    // the carriage's command stream and where to resume it, so a retried CCIN loses nothing
+    private void sendInitiationAck(String ccpId, String codec) throws IOException {
+        sendMessage(reliableSender.resync(McpMessage.of("MCP", MessageType.AKIN, ccpId))
+                .withGroupSequence(groupSender.resumeSequence(ccpId))
+                .withCodec(codec));
+        if (carriageRegistry.isRegistered(ccpId)) {
+            reliableSender.connect(ccpId); // Commands only follow the AKIN that names their stream
+        }
     }
 
     // Send status request (heartbeat) to CCP
     public void sendStatusRequest(String ccpId) throws IOException {
-        JSONObject message = new JSONObject();
-        message.put("client_type", "MCP");
-        message.put("message", "STRQ");
-        message.put("client_id", ccpId);
-        message.put("sequence_number", sequenceNumber++);
+        livenessMonitor.statusRequested(ccpId);
+        sendMessage(McpMessage.of("MCP", MessageType.STRQ, ccpId)
+                .withSequence(sequenceNumber.getAndIncrement()));
+    }
+
+    // Generic method to send an EXEC command to CCP, retransmitted until the CCP acknowledges it
+    private void sendCommand(Action action, String ccpId) throws IOException {
+        reliableSender.send(McpMessage.exec("MCP", action, ccpId)
+                .withSequence(reliableSender.nextSequence(ccpId)));
+    }
+
+    // Sends one command to a group of carriages in a single datagram. The future completes
+    // with the carriages that never acknowledged it, empty when every one did
+    public CompletableFuture<Set<String>> sendGroupCommand(CarriageGroup group, Action action) throws IOException {
+        Set<String> members = group.resolve(carriageRegistry);
+        return groupSender.send(McpMessage.exec("MCP", action, group.address()), members);
+    }
 
-        sendMessage(message);
+    // Stops and closes every registered carriage at once
+    public CompletableFuture<Set<String>> sendEmergencyStop() throws IOException {
+        return sendGroupCommand(CarriageGroup.all(), Action.STOPC);
     }
 
-    // Generic method to send an EXEC command to CCP
-    private void sendCommand(String action, String ccpId) throws IOException {
-        JSONObject message = new JSONObject();
-        message.put("client_type", "MCP");
-        message.put("message", "EXEC");
-        message.put("client_id", ccpId);
-        message.put("sequence_number", sequenceNumber++);
-        message.put("action", action);
+    // Sends group commands to a multicast group, or as a broadcast when the address is not a
+    // multicast one. CCPs must joinGroup the same address and port. Without it, group commands
+    // go out as one unicast per carriage
+    public void setGroupAddress(String address, int port) throws IOException {
+        setGroupAddress(address, port, null);
+    }
 
-        sendMessage(message);
+    // Same, choosing the interface multicast leaves by, e.g. "127.0.0.1" for a single host
+    public void setGroupAddress(String address, int port, String interfaceAddress) throws IOException {
+        if (address == null) {
+            groupAddress = null;
+            return;
+        }
+        InetAddress group = InetAddress.getByName(address);
+        if (group.isMulticastAddress()) {
+            InetAddress local = interfaceAddress == null ? null : InetAddress.getByName(interfaceAddress);
+            mcpSocket.setOption(StandardSocketOptions.IP_MULTICAST_IF, UDPCommunicationHandler.multicastInterface(local));
+        } else {
+            mcpSocket.setBroadcast(true);
+        }
+        groupAddress = new InetSocketAddress(group, port);
     }
 
     // Command methods to cover CCP functionalities
     public void sendStopAndCloseCommand(String ccpId) throws IOException {
-        sendCommand("STOPC", ccpId);
+        sendCommand(Action.STOPC, ccpId);
     }
 
     public void sendStopAndOpenCommand(String ccpId) throws IOException {
-        sendCommand("STOPO", ccpId);
+        sendCommand(Action.STOPO, ccpId);
     }
 
     public void sendMoveForwardSlowCommand(String ccpId) throws IOException {
-        sendCommand("FSLOWC", ccpId);
+        sendCommand(Action.FSLOWC, ccpId);
     }
 
     public void sendMoveForwardFastCommand(String ccpId) throws IOException {
-        sendCommand("FFASTC", ccpId);
+        sendCommand(Action.FFASTC, ccpId);
     }
 
     public void sendMoveBackwardSlowCommand(String ccpId) throws IOException {
-        sendCommand("RSLOWC", ccpId);
+        sendCommand(Action.RSLOWC, ccpId);
     }
 
     public void sendDisconnectCommand(String ccpId) throws IOException {
-        sendCommand("DISCONNECT", ccpId);
+        sendCommand(Action.DISCONNECT, ccpId);
     }
 
     public void sendHazardCommand(String ccpId) throws IOException {
-        sendCommand("HAZARD_DETECTED", ccpId);
+        sendCommand(Action.HAZARD_DETECTED, ccpId);
+    }
+
+    // The carriage stays STOPPED after a hazard until this is sent, movement commands alone are refused
+    public void sendClearHazardCommand(String ccpId) throws IOException {
+        sendCommand(Action.CLEAR_HAZARD, ccpId);
     }
 
     // Send specific commands for LED and IR controls
     public void sendFlashLedCommand(String ccpId) throws IOException {
-        sendCommand("FLASH_LED", ccpId);
+        sendCommand(Action.FLASH_LED, ccpId);
     }
 
     public void sendIRLedOnCommand(String ccpId) throws IOException {
-        JSONObject data = new JSONObject();
-        data.put("status", "ON");
-        sendCommandWithData("IRLD", ccpId, data);
+        sendCommandWithStatus(Action.IRLD, ccpId, "ON");
     }
 
     public void sendIRLedOffCommand(String ccpId) throws IOException {
-        JSONObject data = new JSONObject();
-        data.put("status", "OFF");
-        sendCommandWithData("IRLD", ccpId, data);
+        sendCommandWithStatus(Action.IRLD, ccpId, "OFF");
     }
 
-    // Command with additional data
-    private void sendCommandWithData(String action, String ccpId, JSONObject additionalData) throws IOException {
-        JSONObject message = new JSONObject();
-        message.put("client_type", "MCP");
-        message.put("message", "EXEC");
-        message.put("client_id", ccpId);
-        message.put("sequence_number", sequenceNumber++);
-        message.put("action", action);
+    // Command with an additional status field
+    private void sendCommandWithStatus(Action action, String ccpId, String status) throws IOException {
+        reliableSender.send(McpMessage.exec("MCP", action, ccpId)
+                .withSequence(reliableSender.nextSequence(ccpId))
+                .withStatus(status));
+    }
 
-        if (additionalData != null) {
-            for (String key : additionalData.keySet()) {
-                message.put(key, additionalData.get(key));
+    // Starts a BATCH command: several actions sent in one datagram and run in order by the
+    // CCP, e.g. mcp.batch("BR12").then(Action.FSLOWC).after(200).then(Action.STOPC).send()
+    public BatchBuilder batch(String ccpId) {
+        return new BatchBuilder(ccpId);
+    }
+
+    // Collects the steps of one BATCH command
+    public class BatchBuilder {
+        private final String ccpId;
+        private final List<BatchStep> steps = new ArrayList<>();
+        private long pendingDelayMillis = 0;
+        private long totalDelayMillis = 0;
+
+        private BatchBuilder(String ccpId) {
+            this.ccpId = ccpId;
+        }
+
+        public BatchBuilder then(Action action) {
+            return then(action, null);
+        }
+
+        // Action with a status field, e.g. IRLD "ON"
+        public BatchBuilder then(Action action, String status) {
+            steps.add(new BatchStep(action, status, pendingDelayMillis));
+            pendingDelayMillis = 0;
+            return this;
+        }
+
+        // Waits before the next action
+        public BatchBuilder after(long delayMillis) {
+            if (delayMillis < 0) {
+                throw new IllegalArgumentException("Negative batch delay: " + delayMillis);
+            }
+            totalDelayMillis += delayMillis;
+            if (totalDelayMillis > MAX_BATCH_DELAY_MILLIS) {
+                throw new IllegalArgumentException("Batch delays exceed " + MAX_BATCH_DELAY_MILLIS + " ms");
             }
+            pendingDelayMillis += delayMillis;
+            return this;
         }
 
-        sendMessage(message);
+        // Sends the batch, retransmitted until the CCP acknowledges it like any EXEC
+        public void send() throws IOException {
+            if (steps.isEmpty()) {
+                throw new IllegalStateException("Batch for " + ccpId + " has no actions");
+            }
+            reliableSender.send(McpMessage.batch("MCP", ccpId, steps)
+                    .withSequence(reliableSender.nextSequence(ccpId)));
+        }
+    }
+
+    // Records a carriage's reported position and tells the carriages whose spacing changed
+    private void updateTrackPosition(String ccpId, int positionMm) {
+        carriageRegistry.setSegment(ccpId, CarriageGroup.segmentOf(positionMm)); // As the CCP works it out
+        sendGaps(trackOccupancy.update(ccpId, positionMm));
+    }
+
+    // Sends each carriage the distances to its nearest neighbours, and nothing about the rest
+    private void sendGaps(List<String> ccpIds) {
+        for (String ccpId : ccpIds) {
+            TrackOccupancy.Gaps gaps = trackOccupancy.getGaps(ccpId);
+            if (gaps == null) {
+                continue;
+            }
+            try {
+                sendMessage(McpMessage.of("MCP", MessageType.GAPS, ccpId)
+                        .withSequence(sequenceNumber.getAndIncrement())
+                        .withGaps(gaps.getFrontMm(), gaps.getRearMm()));
+            } catch (IOException e) {
+                Log.warn("Failed to send gaps to " + ccpId + ": " + e.getMessage());
+            }
+        }
     }
 
     // Send status acknowledgment for CCP status updates
     public void sendStatusAck(String ccpId) throws IOException {
-        JSONObject message = new JSONObject();
-        message.put("client_type", "MCP");
-        message.put("message", "AKST");
-        message.put("client_id", ccpId);
-        message.put("sequence_number", sequenceNumber++);
+        sendMessage(McpMessage.of("MCP", MessageType.AKST, ccpId)
+                .withSequence(sequenceNumber.getAndIncrement()));
+    }
 
-        sendMessage(message);
+    // Chooses how received messages are handled. Call before listenForMessages
+    public void setExecutionMode(ExecutionMode executionMode) {
+        this.executionMode = executionMode;
+        this.commandExecutor = executionMode.commandExecutor("mcp-command");
+        this.carriageExecutors.clear();
     }
 
-    // Generic method to send messages
-    private void sendMessage(JSONObject message) throws IOException {
-        byte[] buffer = message.toString().getBytes("UTF-8");
-        DatagramPacket packet = new DatagramPacket(
-                buffer, buffer.length, ccpAddress, ccpPort);
-        mcpSocket.send(packet);
-        System.out.println("Sent message: " + message.toString());
+    public ExecutionMode getExecutionMode() {
+        return executionMode;
     }
 
-    // Receive incoming messages from CCP
+    // When enabled, heartbeat AKSTs are batched: one per carriage per flush window, however
+    // many STRQ/STAT messages it sent. Enable on the CCPs too, so they stop sending STRQ
+    // while commands and statuses are flowing. Each change starts a new flush round, so
+    // toggling quickly never leaves two flush chains running
+    public void setCoalesceHeartbeats(boolean coalesceHeartbeats) {
+        boolean wasEnabled = this.coalesceHeartbeats;
+        this.coalesceHeartbeats = coalesceHeartbeats;
+        if (coalesceHeartbeats == wasEnabled) {
+            return;
+        }
+        int round = statusAckFlushRound.incrementAndGet();
+        if (coalesceHeartbeats) {
+            timer.schedule(() -> flushStatusAcks(round), ACK_FLUSH_MILLIS);
+        } else {
+            sendPendingStatusAcks(); // Owed from the last window, not sent by a flush any more
+        }
+    }
+
+    // Runs on the timer: sends the AKSTs collected since the last flush
+    private void flushStatusAcks(int round) {
+        if (round != statusAckFlushRound.get()) {
+            return;
+        }
+        sendPendingStatusAcks();
+        timer.schedule(() -> flushStatusAcks(round), ACK_FLUSH_MILLIS);
+    }
+
+    private void sendPendingStatusAcks() {
+        for (String ccpId : pendingStatusAcks) {
+            if (pendingStatusAcks.remove(ccpId)) {
+                try {
+                    sendStatusAck(ccpId);
+                } catch (IOException e) {
+                    Log.warn("Failed to acknowledge " + ccpId + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // Acknowledges a heartbeat now, or in the next batch when coalescing
+    private void acknowledgeStatus(String ccpId) throws IOException {
+        if (coalesceHeartbeats) {
+            pendingStatusAcks.add(ccpId);
+            if (coalesceHeartbeats) {
+                return; // The next batch sends it
+            }
+            // Coalescing was turned off meanwhile, and its last flush may have run before the add
+            if (!pendingStatusAcks.remove(ccpId)) {
+                return; // The flush took it and sent it
+            }
+        }
+        sendStatusAck(ccpId);
+    }
+
+    // Enables or disables offering the binary codec to CCPs that ask for it
+    public void setBinaryCodecEnabled(boolean enabled) {
+        this.binaryCodecEnabled = enabled;
+    }
+
+    // Generic method to send messages, routed to the carriage named in client_id and
+    // encoded with the codec negotiated for it
+    private void sendMessage(McpMessage message) throws IOException {
+        sendMessageTo(message.getClientId(), message);
+    }
+
+    // Sends a message to one carriage, which for a group command need not be its client_id.
+    // A carriage that has not sent CCIN has no address, so its messages are dropped: any other
+    // CCP would drop them too, or worse, act on them
+    private void sendMessageTo(String ccpId, McpMessage message) throws IOException {
+        InetSocketAddress target = carriageRegistry.lookup(ccpId);
+        if (target == null) {
+            unroutableMessages.increment();
+            Log.debug(() -> "Dropping " + message.getMessageName() + " for unregistered carriage " + ccpId + ".");
+            return;
+        }
+        byte[] buffer = encode(message, carriageRegistry.usesBinaryCodec(ccpId));
+        mcpSocket.send(new DatagramPacket(buffer, buffer.length, target));
+        messagesSent.increment();
+        Log.debug(() -> "Sent message: " + message);
+    }
+
+    // One datagram for the whole group when a group address is set, otherwise one per member.
+    // Binary only when every member negotiated it. An ID list has no shared address, so its
+    // members are always sent their own copy
+    private void fanOutMessage(McpMessage message, Set<String> members) throws IOException {
+        if (message.getClientId() == null) {
+            for (String ccpId : members) {
+                sendMessageTo(ccpId, message.withClientId(CarriageGroup.memberAddress(ccpId)));
+            }
+            return;
+        }
+        boolean binary = true;
+        for (String ccpId : members) {
+            binary &= carriageRegistry.usesBinaryCodec(ccpId);
+        }
+        byte[] buffer = encode(message, binary);
+        InetSocketAddress group = groupAddress;
+        if (group != null) {
+            mcpSocket.send(new DatagramPacket(buffer, buffer.length, group));
+            messagesSent.increment();
+        } else {
+            for (String ccpId : members) {
+                InetSocketAddress target = carriageRegistry.lookup(ccpId);
+                if (target != null) {
+                    mcpSocket.send(new DatagramPacket(buffer, buffer.length, target));
+                    messagesSent.increment();
+                }
+            }
+        }
+        Log.debug(() -> "Sent group message to " + members.size() + " carriages: " + message);
+    }
+
+    private static byte[] encode(McpMessage message, boolean binary) throws IOException {
+        if (binary && BinaryCodec.canEncode(message)) {
+            return BinaryCodec.encode(message);
+        }
+        return JSONProcessor.encode(message).getBytes("UTF-8");
+    }
+
+    // Receive incoming messages from CCP, until close
     public void listenForMessages() {
         byte[] buffer = new byte[2048];
         DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
 
-        while (true) {
+        while (!mcpSocket.isClosed()) {
             try {
                 mcpSocket.receive(packet);
-                String received = new String(packet.getData(), 0, packet.getLength());
-                System.out.println("Received message: " + received);
+                McpMessage message;
+                long startNanos = System.nanoTime();
+                try {
+                    // Decoded once here and passed through as a typed message
+                    message = McpMessage.decode(packet.getData(), 0, packet.getLength());
+                } catch (RuntimeException e) {
+                    malformedMessages.increment();
+                    Log.info("Malformed message received: " + e.getMessage());
+                    continue;
+                }
+                parseTime.recordSince(startNanos);
+                messagesReceived[message.getType().ordinal()].increment();
+                Log.debug(() -> "Received message: " + message);
+                dispatch(message, (InetSocketAddress) packet.getSocketAddress());
+            } catch (IOException e) {
+                if (!mcpSocket.isClosed()) {
+                    Log.error("Error receiving message.", e);
+                }
+            }
+        }
+    }
 
-                JSONObject message = new JSONObject(received);
-                processReceivedMessage(message);
+    // Handles the message inline (PLATFORM) or on its own thread, in order per carriage (VIRTUAL)
+    private void dispatch(McpMessage message, InetSocketAddress source) throws IOException {
+        if (executionMode == ExecutionMode.PLATFORM || message.getClientId() == null) {
+            handle(message, source);
+            return;
+        }
+        Executor executor = carriageExecutors.computeIfAbsent(message.getClientId(),
+                id -> new OrderedExecutor(commandExecutor));
+        executor.execute(() -> {
+            try {
+                handle(message, source);
             } catch (IOException e) {
-                e.printStackTrace();
+                Log.error("Error processing message from " + message.getClientId() + ".", e);
             }
+        });
+    }
+
+    // Method to time the handling of one message
+    private void handle(McpMessage message, InetSocketAddress source) throws IOException {
+        long startNanos = System.nanoTime();
+        try {
+            processReceivedMessage(message, source);
+        } finally {
+            handlingTime.recordSince(startNanos);
         }
     }
 
-    // Process received message based on its type
-    private void processReceivedMessage(JSONObject message) throws IOException {
-        String msgType = message.optString("message", null);
-        String ccpId = message.optString("client_id", null);
+    // Process received message based on its type. Package-private for the receive benchmark
+    void processReceivedMessage(McpMessage message, InetSocketAddress source) throws IOException {
+        String ccpId = message.getClientId();
 
-        if (msgType == null || ccpId == null) {
-            System.out.println("Invalid message received.");
+        if (message.getMessageName() == null || ccpId == null) {
+            Log.info("Invalid message received.");
             return;
         }
 
-        switch (msgType) {
-            case "CCIN": // Initiation from CCP
-                sendInitiationAck(ccpId);
+        livenessMonitor.heard(ccpId); // Every message from a carriage counts as a heartbeat
+
+        switch (message.getType()) {
+            case CCIN: // Initiation from CCP
+                carriageRegistry.register(ccpId, source);
+                livenessMonitor.track(ccpId);
+                carriageRegistry.setBinaryCodec(ccpId, false); // AKIN always goes out as JSON
+                boolean binary = binaryCodecEnabled && BinaryCodec.NAME.equals(message.getCodec());
+                sendInitiationAck(ccpId, binary ? BinaryCodec.NAME : null);
+                carriageRegistry.setBinaryCodec(ccpId, binary);
+                break;
+            case STAT: // CCP Status Update
+                livenessMonitor.statusReceived(ccpId);
+                if (message.getPositionMm() != McpMessage.NO_POSITION) {
+                    updateTrackPosition(ccpId, message.getPositionMm());
+                }
+                acknowledgeStatus(ccpId);
+                break;
+            case STRQ: // CCP heartbeat
+                if (message.getPositionMm() != McpMessage.NO_POSITION) {
+                    updateTrackPosition(ccpId, message.getPositionMm());
+                }
+                acknowledgeStatus(ccpId);
+                break;
+            case ACK: // Cumulative and selective acknowledgment of EXEC commands
+                reliableSender.acknowledge(ccpId, message.getSequence(), message.getAckMask());
                 break;
-            case "STAT": // CCP Status Update
-                sendStatusAck(ccpId);
+            case GACK: // One carriage acknowledging a group command
+                groupSender.acknowledge(ccpId, message.getSequence());
                 break;
-            case "FSLOWC":
-            case "FFASTC":
-            case "RSLOWC":
-            case "STOPC":
-            case "STOPO":
-            case "FLASH_LED":
-            case "IRLD":
-            case "HAZARD_DETECTED":
-            case "DISCONNECT":
+            case BATCH: // Aggregate status of a BATCH command
+                Log.debug(() -> "Carriage " + ccpId + " ran batch " + message.getSequence() + ": "
+                        + message.getSteps().size() + " actions.");
+                break;
+            case ACTION_STATUS:
+                if (message.getAction() == Action.DISCONNECT) {
+                    Log.info("Carriage " + ccpId + " disconnected.");
+                    carriageRegistry.unregister(ccpId);
+                    carriageExecutors.remove(ccpId);
+                    livenessMonitor.untrack(ccpId);
+                    reliableSender.forget(ccpId);
+                    groupSender.forget(ccpId);
+                    sendGaps(trackOccupancy.remove(ccpId));
+                    pendingStatusAcks.remove(ccpId);
+                    break;
+                }
                 // Handle action messages if needed
-                System.out.println("Received action status from CCP: " + msgType);
+                Log.debug(() -> "Received action status from CCP: " + message.getMessageName());
                 // You can implement additional logic here if necessary
                 break;
             default:
-                System.out.println("Unknown message type received: " + msgType);
+                Log.info("Unknown message type received: " + message.getMessageName());
         }
     }
 
+    // Called on the liveness timer thread when a carriage stops sending heartbeats. Its AKSTs
+    // are unroutable from now on, so a CCP that is still running soon finds the MCP silent,
+    // stops itself and sends CCIN again, which registers it afresh
+    private void onCarriageTimedOut(String ccpId, long silentMillis) {
+        Log.warn("Carriage " + ccpId + " missed " + MAX_MISSED_HEARTBEATS + " heartbeats (silent for "
+                + silentMillis + " ms), dropping it.");
+        carriageTimeouts.increment();
+        carriageRegistry.unregister(ccpId);
+        carriageExecutors.remove(ccpId);
+        reliableSender.forget(ccpId);
+        groupSender.forget(ccpId);
+        sendGaps(trackOccupancy.remove(ccpId));
+        pendingStatusAcks.remove(ccpId);
+    }
+
+    // Closes the socket, which ends listenForMessages, and stops the timer
+    public void close() {
+        mcpSocket.close();
+        timer.stop();
+    }
+
     // Main method for testing all MCP commands
     public static void main(String[] args) {
         try {
-            String ccpIp = "10.20.30.153"; // CCP IP address
-            int ccpPort = 3000;         // CCP Port
-            String ccpId = "BR12";      // Blade Runner ID
+            String ccpId = "BR12";      // Blade Runner ID, addressed once its CCP sends CCIN
 
-            MCP mcp = new MCP(ccpIp, ccpPort);
+            MCP mcp = new MCP();
+            mcp.setCoalesceHeartbeats(Boolean.getBoolean(HeartbeatMonitor.COALESCE_PROPERTY));
+            String groupAddress = System.getProperty(CarriageGroup.ADDRESS_PROPERTY);
+            if (groupAddress != null) {
+                mcp.setGroupAddress(groupAddress, CarriageGroup.DEFAULT_PORT);
+            }
 
             // Start listening for responses from CCP in a separate thread
-            new Thread(() -> mcp.listenForMessages()).start();
+            mcp.getExecutionMode().threadFactory("mcp-listener").newThread(mcp::listenForMessages).start();
+            MetricsServer.startIfConfigured(mcp.getMetrics());
+            if (TraceRecorder.isConfigured()) {
+                mcp.setTracing(true);
+                TraceRecorder.writeOnExit(mcp.getTraceRecorder(), "mcp");
+            }
 
             // Give the CCP some time to start and connect
             Thread.sleep(2000);
@@ -247,7 +650,7 @@ public class MCP {
             Thread.sleep(5000);
 
         } catch (Exception e) {
-            e.printStackTrace();
+            Log.error("MCP stopped with an error.", e);
         }
     }
 }
@@ -0,0 +1,388 @@
+package CCP;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.json.JSONObject;
+
+// Immutable, codec-independent form of a message exchanged between MCP, CCP and ESP32
+public final class McpMessage {
+
+    public static final int NO_SEQUENCE = -1;
+    public static final int NO_POSITION = -1;
+    public static final long NO_TRACE = 0;
+    public static final int NO_EPOCH = -1;
+
+    private final String clientType;
+    private final MessageType type;
+    private final Action action;    // Set for EXEC and ACTION_STATUS
+    private final String clientId;
+    private final String status;    // IRLD "ON"/"OFF"
+    private final int sequence;     // NO_SEQUENCE when absent
+    private final long timestamp;   // Epoch millis, 0 when unknown
+    private final String codec;     // Codec advertised in CCIN/AKIN, null for JSON only
+    private final String rawType;   // Original "message" value, kept for UNKNOWN messages
+    private final int ackMask;      // ACK only: bit i acknowledges sequence + 1 + i
+    private final List<BatchStep> steps; // BATCH only, null otherwise
+    private final int positionMm;   // CCP STAT/STRQ: carriage position along the track, NO_POSITION when unknown
+    private final int frontGapMm;   // GAPS only: distance to the carriage ahead, NO_POSITION when none
+    private final int rearGapMm;    // GAPS only: distance to the carriage behind, NO_POSITION when none
+    private final long traceNanos;  // Traced commands: the MCP's System.nanoTime at first send, NO_TRACE otherwise
+    private final int streamEpoch;  // AKIN only: identifies the command stream, NO_EPOCH when absent
+    private final int groupSequence; // AKIN only: first group command sequence to accept, NO_SEQUENCE when absent
+
+    private McpMessage(Builder builder) {
+        this.clientType = builder.clientType;
+        this.type = builder.type;
+        this.action = builder.action;
+        this.clientId = builder.clientId;
+        this.status = builder.status;
+        this.sequence = builder.sequence;
+        this.timestamp = builder.timestamp;
+        this.codec = builder.codec;
+        this.rawType = builder.rawType;
+        this.ackMask = builder.ackMask;
+        this.steps = builder.steps == null ? null : Collections.unmodifiableList(new ArrayList<>(builder.steps));
+        this.positionMm = builder.positionMm;
+        this.frontGapMm = builder.frontGapMm;
+        this.rearGapMm = builder.rearGapMm;
+        this.traceNanos = builder.traceNanos;
+        this.streamEpoch = builder.streamEpoch;
+        this.groupSequence = builder.groupSequence;
+    }
+
+    // Builds a message field by field, e.g. in the codecs. Unset fields are absent
+    public static Builder builder(String clientType, MessageType type) {
+        return new Builder(clientType, type);
+    }
+
+    // A builder holding every field of this message
+    public Builder toBuilder() {
+        Builder builder = new Builder(clientType, type);
+        builder.action = action;
+        builder.clientId = clientId;
+        builder.status = status;
+        builder.sequence = sequence;
+        builder.timestamp = timestamp;
+        builder.codec = codec;
+        builder.rawType = rawType;
+        builder.ackMask = ackMask;
+        builder.steps = steps;
+        builder.positionMm = positionMm;
+        builder.frontGapMm = frontGapMm;
+        builder.rearGapMm = rearGapMm;
+        builder.traceNanos = traceNanos;
+        builder.streamEpoch = streamEpoch;
+        builder.groupSequence = groupSequence;
+        return builder;
+    }
+
+    public static McpMessage of(String clientType, MessageType type, String clientId) {
+        return builder(clientType, type).clientId(clientId).build();
+    }
+
+    // EXEC command carrying an action
+    public static McpMessage exec(String clientType, Action action, String clientId) {
+        return builder(clientType, MessageType.EXEC).action(action).clientId(clientId).build();
+    }
+
+    // Status reply echoing an action, e.g. {"message":"STOPC"}
+    public static McpMessage actionStatus(String clientType, Action action, String clientId) {
+        return builder(clientType, MessageType.ACTION_STATUS).action(action).clientId(clientId).build();
+    }
+
+    // BATCH command running several actions in order
+    public static McpMessage batch(String clientType, String clientId, List<BatchStep> steps) {
+        return builder(clientType, MessageType.BATCH).clientId(clientId).steps(steps).build();
+    }
+
+    // Builds a message from a raw "message" value, classifying it as a type, an action status or UNKNOWN
+    public static McpMessage fromWireName(String clientType, String messageName, String clientId) {
+        MessageType type = MessageType.fromName(messageName);
+        if (type != null) {
+            return of(clientType, type, clientId);
+        }
+        Action action = Action.fromName(messageName);
+        if (action != null) {
+            return actionStatus(clientType, action, clientId);
+        }
+        return builder(clientType, MessageType.UNKNOWN).clientId(clientId).rawType(messageName).build();
+    }
+
+    // Decodes a received datagram in whichever codec it was sent with. JSON is read in place
+    // by JsonPullParser, and only what it cannot vouch for goes through org.json
+    public static McpMessage decode(byte[] data, int offset, int length) {
+        if (BinaryCodec.isBinary(data, offset, length)) {
+            return BinaryCodec.decode(data, offset, length);
+        }
+        McpMessage message = JsonPullParser.parse(data, offset, length);
+        if (message != null) {
+            return message;
+        }
+        return JSONProcessor.decode(new String(data, offset, length, StandardCharsets.UTF_8));
+    }
+
+    public McpMessage withClientId(String clientId) {
+        return toBuilder().clientId(clientId).build();
+    }
+
+    public McpMessage withAction(Action action) {
+        return toBuilder().action(action).build();
+    }
+
+    public McpMessage withStatus(String status) {
+        return toBuilder().status(status).build();
+    }
+
+    public McpMessage withSequence(int sequence) {
+        return toBuilder().sequence(sequence).build();
+    }
+
+    public McpMessage withTimestamp(long timestamp) {
+        return toBuilder().timestamp(timestamp).build();
+    }
+
+    public McpMessage withCodec(String codec) {
+        return toBuilder().codec(codec).build();
+    }
+
+    // Selective acknowledgment of sequences above the cumulative one carried in sequence
+    public McpMessage withAckMask(int ackMask) {
+        return toBuilder().ackMask(ackMask).build();
+    }
+
+    // Carriage position reported in STAT and the CCP heartbeat
+    public McpMessage withPosition(int positionMm) {
+        return toBuilder().positionMm(positionMm).build();
+    }
+
+    // Distances to the nearest carriages, sent in GAPS
+    public McpMessage withGaps(int frontGapMm, int rearGapMm) {
+        return toBuilder().gaps(frontGapMm, rearGapMm).build();
+    }
+
+    // Trace stamp for per-hop latency, see TraceRecorder
+    public McpMessage withTrace(long traceNanos) {
+        return toBuilder().traceNanos(traceNanos).build();
+    }
+
+    // Command stream an AKIN's sequence belongs to, see ReliableSender.resync
+    public McpMessage withStreamEpoch(int streamEpoch) {
+        return toBuilder().streamEpoch(streamEpoch).build();
+    }
+
+    // Where an AKIN's receiver starts its group command window, see GroupSender.resumeSequence
+    public McpMessage withGroupSequence(int groupSequence) {
+        return toBuilder().groupSequence(groupSequence).build();
+    }
+
+    // The value of the JSON "message" field
+    public String getMessageName() {
+        switch (type) {
+            case ACTION_STATUS:
+                return action != null ? action.name() : null;
+            case UNKNOWN:
+                return rawType;
+            default:
+                return type.name();
+        }
+    }
+
+    public String getClientType() {
+        return clientType;
+    }
+
+    public MessageType getType() {
+        return type;
+    }
+
+    public Action getAction() {
+        return action;
+    }
+
+    public String getClientId() {
+        return clientId;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public int getSequence() {
+        return sequence;
+    }
+
+    public boolean hasSequence() {
+        return sequence != NO_SEQUENCE;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public String getCodec() {
+        return codec;
+    }
+
+    public int getAckMask() {
+        return ackMask;
+    }
+
+    public List<BatchStep> getSteps() {
+        return steps;
+    }
+
+    public int getPositionMm() {
+        return positionMm;
+    }
+
+    public int getFrontGapMm() {
+        return frontGapMm;
+    }
+
+    public int getRearGapMm() {
+        return rearGapMm;
+    }
+
+    public long getTraceNanos() {
+        return traceNanos;
+    }
+
+    public boolean isTraced() {
+        return traceNanos != NO_TRACE;
+    }
+
+    public int getStreamEpoch() {
+        return streamEpoch;
+    }
+
+    public boolean hasStreamEpoch() {
+        return streamEpoch != NO_EPOCH;
+    }
+
+    public int getGroupSequence() {
+        return groupSequence;
+    }
+
+    public boolean hasGroupSequence() {
+        return groupSequence != NO_SEQUENCE;
+    }
+
+    public boolean hasTrackFields() {
+        return positionMm != NO_POSITION || frontGapMm != NO_POSITION || rearGapMm != NO_POSITION;
+    }
+
+    // The JSON form, with the timestamp shown in ISO-8601 rather than as it goes on the wire
+    @Override
+    public String toString() {
+        JSONObject json = JSONProcessor.toJSON(this);
+        if (timestamp != 0) {
+            json.put("timestamp", Timestamps.format(timestamp));
+        }
+        return json.toString();
+    }
+
+    // Mutable counterpart of McpMessage, see builder and toBuilder
+    public static final class Builder {
+        private final String clientType;
+        private final MessageType type;
+        private Action action;
+        private String clientId;
+        private String status;
+        private int sequence = NO_SEQUENCE;
+        private long timestamp;
+        private String codec;
+        private String rawType;
+        private int ackMask;
+        private List<BatchStep> steps;
+        private int positionMm = NO_POSITION;
+        private int frontGapMm = NO_POSITION;
+        private int rearGapMm = NO_POSITION;
+        private long traceNanos = NO_TRACE;
+        private int streamEpoch = NO_EPOCH;
+        private int groupSequence = NO_SEQUENCE;
+
+        private Builder(String clientType, MessageType type) {
+            this.clientType = clientType;
+            this.type = type;
+        }
+
+        public Builder action(Action action) {
+            this.action = action;
+            return this;
+        }
+
+        public Builder clientId(String clientId) {
+            this.clientId = clientId;
+            return this;
+        }
+
+        public Builder status(String status) {
+            this.status = status;
+            return this;
+        }
+
+        public Builder sequence(int sequence) {
+            this.sequence = sequence;
+            return this;
+        }
+
+        public Builder timestamp(long timestamp) {
+            this.timestamp = timestamp;
+            return this;
+        }
+
+        public Builder codec(String codec) {
+            this.codec = codec;
+            return this;
+        }
+
+        // The original "message" value of an UNKNOWN message
+        public Builder rawType(String rawType) {
+            this.rawType = rawType;
+            return this;
+        }
+
+        public Builder ackMask(int ackMask) {
+            this.ackMask = ackMask;
+            return this;
+        }
+
+        public Builder steps(List<BatchStep> steps) {
+            this.steps = steps;
+            return this;
+        }
+
+        public Builder positionMm(int positionMm) {
+            this.positionMm = positionMm;
+            return this;
+        }
+
+        public Builder gaps(int frontGapMm, int rearGapMm) {
+            this.frontGapMm = frontGapMm;
+            this.rearGapMm = rearGapMm;
+            return this;
+        }
+
+        public Builder traceNanos(long traceNanos) {
+            this.traceNanos = traceNanos;
+            return this;
+        }
+
+        public Builder streamEpoch(int streamEpoch) {
+            this.streamEpoch = streamEpoch;
+            return this;
+        }
+
+        public Builder groupSequence(int groupSequence) {
+            this.groupSequence = groupSequence;
+            return this;
+        }
+
+        public McpMessage build() {
+            return new McpMessage(this);
+        }
+    }
+}
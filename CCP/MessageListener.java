@@ -1,5 +1,5 @@
 package CCP;
 
 public interface MessageListener {
-    void onMessageReceived(String message);
+    void onMessageReceived(McpMessage message);
 }
@@ -0,0 +1,62 @@
+package CCP;
+
+// Values of the "message" field. Wire codes are used by BinaryCodec and must never be reused
+public enum MessageType {
+    CCIN(1),           // CCP initiation request
+    AKIN(2),           // MCP acknowledges initiation
+    STRQ(3),           // Status request / heartbeat
+    STAT(4),           // CCP status reply
+    AKST(5),           // MCP acknowledges status
+    EXEC(6),           // MCP command, see Action
+    ACTION_STATUS(7),  // CCP reply echoing the action it executed, e.g. "STOPC"
+    HAZARD_STOPPED(8), // CCP tells the ESP32 it stopped for a hazard
+    ACK(9),            // ESP32 acknowledgment, also the CCP's acknowledgment of MCP commands
+    BATCH(10),         // MCP command carrying several actions, see BatchStep. Also the CCP's aggregate reply
+    GACK(11),          // CCP acknowledges one group-addressed command, see CarriageGroup
+    GAPS(12),          // MCP tells a CCP how far away its nearest carriages are, see TrackOccupancy
+    UNKNOWN(0);
+
+    private static final MessageType[] BY_CODE = new MessageType[16];
+
+    static {
+        for (MessageType type : values()) {
+            BY_CODE[type.code] = type;
+        }
+    }
+
+    private final byte code;
+
+    MessageType(int code) {
+        this.code = (byte) code;
+    }
+
+    public byte getCode() {
+        return code;
+    }
+
+    public static MessageType fromCode(byte code) {
+        MessageType type = code >= 0 && code < BY_CODE.length ? BY_CODE[code] : null;
+        return type != null ? type : UNKNOWN;
+    }
+
+    // Returns the matching type, or null when the name is not a plain message type
+    public static MessageType fromName(String name) {
+        if (name == null) {
+            return null;
+        }
+        switch (name) {
+            case "CCIN": return CCIN;
+            case "AKIN": return AKIN;
+            case "STRQ": return STRQ;
+            case "STAT": return STAT;
+            case "AKST": return AKST;
+            case "EXEC": return EXEC;
+            case "HAZARD_STOPPED": return HAZARD_STOPPED;
+            case "ACK": return ACK;
+            case "BATCH": return BATCH;
+            case "GACK": return GACK;
+            case "GAPS": return GAPS;
+            default: return null;
+        }
+    }
+}
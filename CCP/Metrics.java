@@ -0,0 +1,263 @@
+package CCP;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+// Counters, gauges and latency histograms for one MCP or CCP, written out in the
+// Prometheus text format by MetricsServer. Recording never locks: counters are
+// LongAdders and histograms are arrays of atomic buckets, striped per thread so
+// threads on different CPUs rarely increment the same bucket. A message pays a few
+// nanoseconds per metric on top of the System.nanoTime calls that time it.
+// Components that already count something (retransmits, missed heartbeats) are
+// exposed through suppliers instead of being counted twice.
+public class Metrics {
+
+    // Monotonic count, e.g. messages received
+    public static final class Counter {
+        private final LongAdder value = new LongAdder();
+
+        public void increment() {
+            value.increment();
+        }
+
+        public void add(long amount) {
+            value.add(amount);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+    }
+
+    // Latency distribution in nanoseconds with log-linear buckets, as HdrHistogram does:
+    // each power of two is split into 16 buckets, so a quantile is off by at most 1/16
+    public static final class Histogram {
+        private static final int SUB_BUCKET_BITS = 4;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private static final int MAX_EXPONENT = 42; // About 73 minutes, longer values share the last bucket
+        private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+        // One run of BUCKETS per stripe, the CPU count rounded up to a power of two and at most 8 so a
+        // histogram stays a few tens of KB. A thread records in the stripe its id picks
+        private static final int STRIPES = Math.min(
+                Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1), 8);
+
+        private final AtomicLongArray buckets = new AtomicLongArray(STRIPES * BUCKETS);
+        private final LongAdder sum = new LongAdder();
+
+        public void record(long nanos) {
+            if (nanos < 0) {
+                nanos = 0;
+            }
+            int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+            buckets.incrementAndGet(stripe * BUCKETS + index(nanos));
+            sum.add(nanos);
+        }
+
+        // Records the time since startNanos, a System.nanoTime value
+        public void recordSince(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        public long getCount() {
+            long count = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                count += buckets.get(i);
+            }
+            return count;
+        }
+
+        public long getSumNanos() {
+            return sum.sum();
+        }
+
+        // The value below which the given fraction of recordings fall, in nanos
+        public long getPercentile(double fraction) {
+            long[] counts = snapshot();
+            long total = 0;
+            for (long count : counts) {
+                total += count;
+            }
+            return percentile(counts, total, fraction);
+        }
+
+        // Counts per bucket, summed over the stripes
+        private long[] snapshot() {
+            long[] counts = new long[BUCKETS];
+            for (int i = 0; i < buckets.length(); i++) {
+                counts[i % BUCKETS] += buckets.get(i);
+            }
+            return counts;
+        }
+
+        private static long percentile(long[] counts, long total, double fraction) {
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(fraction * total));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return upperBound(i);
+                }
+            }
+            return upperBound(counts.length - 1);
+        }
+
+        private static int index(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int exponent = Math.min(63 - Long.numberOfLeadingZeros(value), MAX_EXPONENT);
+            int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+            return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+        }
+
+        // Largest value that falls in a bucket
+        private static long upperBound(int index) {
+            if (index < SUB_BUCKETS) {
+                return index;
+            }
+            int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+            long subBucket = index % SUB_BUCKETS;
+            long width = 1L << (exponent - SUB_BUCKET_BITS);
+            return (1L << exponent) + (subBucket + 1) * width - 1;
+        }
+    }
+
+    private enum Kind { COUNTER, GAUGE, SUMMARY }
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final String labels; // e.g. component="ccp",id="BR12"
+    private final List<Entry> entries = new CopyOnWriteArrayList<>();
+
+    public Metrics(String component, String id) {
+        this.labels = "component=\"" + escape(component) + "\",id=\"" + escape(id) + "\"";
+    }
+
+    // Registers a counter. Names get the bladerunner_ prefix and should end in _total
+    public Counter counter(String name, String help) {
+        return counter(name, null, help);
+    }
+
+    // Registers one series of a counter, e.g. label "type=\"EXEC\""
+    public Counter counter(String name, String label, String help) {
+        Counter counter = new Counter();
+        entries.add(new Entry(name, label, help, Kind.COUNTER, counter::get, null));
+        return counter;
+    }
+
+    // Registers one counter series per enum constant, indexed by ordinal, e.g. messages by MessageType
+    public Counter[] counters(String name, String labelName, Enum<?>[] values, String help) {
+        Counter[] counters = new Counter[values.length];
+        for (Enum<?> value : values) {
+            counters[value.ordinal()] = counter(name, labelName + "=\"" + value.name() + "\"", help);
+        }
+        return counters;
+    }
+
+    // Exposes a count kept elsewhere, e.g. ReliableSender.getRetransmitCount
+    public void counter(String name, String help, LongSupplier value) {
+        entries.add(new Entry(name, null, help, Kind.COUNTER, value, null));
+    }
+
+    // Exposes a value that can go down, e.g. commands awaiting an ACK
+    public void gauge(String name, String help, LongSupplier value) {
+        entries.add(new Entry(name, null, help, Kind.GAUGE, value, null));
+    }
+
+    // Registers a latency histogram, exported in seconds as a summary
+    public Histogram histogram(String name, String help) {
+        Histogram histogram = new Histogram();
+        entries.add(new Entry(name, null, help, Kind.SUMMARY, null, histogram));
+        return histogram;
+    }
+
+    // Appends every metric in the Prometheus text exposition format
+    public void writePrometheus(StringBuilder out) {
+        Map<String, StringBuilder> families = new LinkedHashMap<>();
+        collect(families);
+        for (StringBuilder family : families.values()) {
+            out.append(family);
+        }
+    }
+
+    // Adds this registry's series to families, keyed by metric name. The format wants every
+    // series of a name together under one HELP/TYPE, even when several CCPs share a server
+    public void collect(Map<String, StringBuilder> families) {
+        for (Entry entry : entries) {
+            String name = "bladerunner_" + entry.name;
+            StringBuilder out = families.get(name);
+            if (out == null) {
+                out = new StringBuilder();
+                out.append("# HELP ").append(name).append(' ').append(entry.help).append('\n');
+                out.append("# TYPE ").append(name).append(' ')
+                        .append(entry.kind.name().toLowerCase(Locale.ROOT)).append('\n');
+                families.put(name, out);
+            }
+            String seriesLabels = entry.label == null ? labels : labels + "," + entry.label;
+            if (entry.kind != Kind.SUMMARY) {
+                out.append(name).append('{').append(seriesLabels).append("} ")
+                        .append(entry.value.getAsLong()).append('\n');
+                continue;
+            }
+            long[] counts = entry.histogram.snapshot();
+            long total = 0;
+            for (long count : counts) {
+                total += count;
+            }
+            for (double quantile : QUANTILES) {
+                out.append(name).append('{').append(seriesLabels).append(",quantile=\"").append(quantile).append("\"} ")
+                        .append(seconds(Histogram.percentile(counts, total, quantile))).append('\n');
+            }
+            out.append(name).append("_sum{").append(seriesLabels).append("} ")
+                    .append(seconds(entry.histogram.getSumNanos())).append('\n');
+            out.append(name).append("_count{").append(seriesLabels).append("} ").append(total).append('\n');
+        }
+    }
+
+    // Metric names, in registration order
+    public List<String> getNames() {
+        List<String> names = new ArrayList<>();
+        for (Entry entry : entries) {
+            names.add(entry.name);
+        }
+        return names;
+    }
+
+    private static String seconds(long nanos) {
+        return Double.toString(nanos / 1_000_000_000.0);
+    }
+
+    private static String escape(String value) {
+        return value == null ? "" : value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    // One registered series
+    private static final class Entry {
+        private final String name;
+        private final String label;
+        private final String help;
+        private final Kind kind;
+        private final LongSupplier value;
+        private final Histogram histogram;
+
+        private Entry(String name, String label, String help, Kind kind, LongSupplier value, Histogram histogram) {
+            this.name = name;
+            this.label = label;
+            this.help = help;
+            this.kind = kind;
+            this.value = value;
+            this.histogram = histogram;
+        }
+    }
+}
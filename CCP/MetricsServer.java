@@ -0,0 +1,91 @@
+package CCP;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+// Serves GET /metrics in the Prometheus text format for every registered
+// Metrics, on the loopback interface only. Scrapes run on one daemon thread and
+// only read the counters, so they never hold up message handling.
+//
+// Enabled by -Dbladerunner.metrics.port=9400 in MCP.main and CCP.main, or by
+// --metrics-port in ScenarioRunner.
+public class MetricsServer {
+
+    public static final String PORT_PROPERTY = "bladerunner.metrics.port";
+
+    private final HttpServer server;
+    private final List<Metrics> registries = new CopyOnWriteArrayList<>();
+
+    public MetricsServer(int port) throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        this.server.createContext("/metrics", this::handle);
+        this.server.setExecutor(Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "metrics-server");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        this.server.start();
+        Log.info("Metrics served on http://127.0.0.1:" + port + "/metrics");
+    }
+
+    // Starts a server when the port property is set, otherwise returns null
+    public static MetricsServer startIfConfigured(Metrics... metrics) throws IOException {
+        Integer port = Integer.getInteger(PORT_PROPERTY);
+        if (port == null) {
+            return null;
+        }
+        MetricsServer server = new MetricsServer(port);
+        for (Metrics registry : metrics) {
+            server.register(registry);
+        }
+        return server;
+    }
+
+    public void register(Metrics metrics) {
+        registries.add(metrics);
+    }
+
+    public void stop() {
+        server.stop(0);
+    }
+
+    // Everything the endpoint would return, e.g. for a report at the end of a run
+    public String scrape() {
+        Map<String, StringBuilder> families = new LinkedHashMap<>();
+        for (Metrics metrics : registries) {
+            metrics.collect(families);
+        }
+        StringBuilder out = new StringBuilder();
+        for (StringBuilder family : families.values()) {
+            out.append(family);
+        }
+        return out.toString();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package CCP;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Consumer;
+
+// Non-blocking alternative to UDPCommunicationHandler. One event-loop thread
+// serves the MCP channel and any extra channels (e.g. the ESP32 socket)
+// registered on the same selector, and all buffers are reused between packets.
+// The decoded McpMessage is the only allocation per datagram.
+public class NIOCommunicationHandler implements CommunicationHandler {
+
+    // Receives the raw bytes of each datagram on an extra channel. They are only
+    // valid during the call
+    public interface DatagramHandler {
+        void onDatagram(byte[] data, int length);
+    }
+
+    private static final int BUFFER_SIZE = 2048;
+
+    private final Selector selector;
+    private final DatagramChannel mcpChannel;
+    private final InetSocketAddress mcpAddress;
+    private final MessageListener listener;
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final ByteBuffer sendBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final byte[] decodeBuffer = new byte[BUFFER_SIZE];
+    private final Queue<Runnable> pendingRegistrations = new ConcurrentLinkedQueue<>();
+    private final Consumer<SelectionKey> keyHandler = this::handleKey; // Allocated once, reused on every select
+    private final DatagramHandler decoder = this::decodeAndDeliver;     // Attached to the MCP and group channels
+    private volatile boolean running = true;
+    private volatile Metrics.Histogram parseTime;    // Null until registerMetrics
+    private volatile Metrics.Counter malformedMessages;
+    private volatile Metrics.Counter messagesSent;
+
+    // Constructor
+    public NIOCommunicationHandler(String mcpAddress, int mcpPort,
+                                   String ccpAddress, int ccpPort,
+                                   MessageListener listener) throws Exception {
+        this(mcpAddress, mcpPort, ccpAddress, ccpPort, listener, runnable -> {
+            Thread eventLoop = new Thread(runnable, "ccp-nio-event-loop");
+            eventLoop.setDaemon(true);
+            return eventLoop;
+        });
+    }
+
+    // Constructor with the factory used to create the event-loop thread
+    public NIOCommunicationHandler(String mcpAddress, int mcpPort,
+                                   String ccpAddress, int ccpPort,
+                                   MessageListener listener, ThreadFactory threadFactory) throws Exception {
+        this.mcpAddress = new InetSocketAddress(mcpAddress, mcpPort);
+        this.listener = listener;
+        this.selector = Selector.open();
+        this.mcpChannel = openChannel(new InetSocketAddress(ccpAddress, ccpPort));
+        this.mcpChannel.register(selector, SelectionKey.OP_READ, decoder);
+
+        // Start the event loop in a new thread
+        threadFactory.newThread(this::listenForMessages).start();
+    }
+
+    // Binds another UDP port on the same event loop, e.g. the ESP32 socket
+    public DatagramChannel addChannel(int port, DatagramHandler handler) throws IOException {
+        DatagramChannel channel = openChannel(new InetSocketAddress(port));
+        pendingRegistrations.add(() -> {
+            try {
+                channel.register(selector, SelectionKey.OP_READ, handler);
+            } catch (IOException e) {
+                Log.warn("Failed to register channel on port " + port + ": " + e.getMessage());
+            }
+        });
+        selector.wakeup(); // Registration must happen on the event-loop thread
+        return channel;
+    }
+
+    // Also receives group commands sent to a multicast group, or broadcast when the
+    // address is not a multicast one, on the same event loop
+    @Override
+    public void joinGroup(String groupAddress, int port) throws IOException {
+        InetAddress group = InetAddress.getByName(groupAddress);
+        DatagramChannel channel = DatagramChannel.open(StandardProtocolFamily.INET);
+        channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        channel.bind(new InetSocketAddress(port));
+        channel.configureBlocking(false);
+        if (group.isMulticastAddress()) {
+            InetAddress local = ((InetSocketAddress) mcpChannel.getLocalAddress()).getAddress();
+            channel.join(group, UDPCommunicationHandler.multicastInterface(local));
+        }
+        pendingRegistrations.add(() -> {
+            try {
+                channel.register(selector, SelectionKey.OP_READ, decoder);
+            } catch (IOException e) {
+                Log.warn("Failed to register group channel on port " + port + ": " + e.getMessage());
+            }
+        });
+        selector.wakeup();
+        Log.info("Listening for group commands on " + groupAddress + ":" + port);
+    }
+
+    // Sends a message to the MCP
+    @Override
+    public void sendMessage(String message) throws Exception {
+        send(mcpChannel, message, mcpAddress);
+        countSent();
+        Log.debug(() -> "Message sent to MCP: " + message);
+    }
+
+    // Sends a binary encoded message to the MCP
+    @Override
+    public void sendMessage(byte[] data) throws Exception {
+        sendMessage(data, data.length);
+    }
+
+    // Sends the first length bytes of a reused buffer, e.g. from StatusEncoder
+    @Override
+    public void sendMessage(byte[] data, int length) throws Exception {
+        send(mcpChannel, data, length, mcpAddress);
+        countSent();
+    }
+
+    // Records parse times, malformed datagrams and sends from now on
+    @Override
+    public void registerMetrics(Metrics metrics) {
+        parseTime = metrics.histogram("message_parse_seconds", "Time to decode one received datagram");
+        malformedMessages = metrics.counter("malformed_messages_total", "Datagrams that could not be decoded");
+        messagesSent = metrics.counter("messages_sent_total", "Datagrams sent to the MCP");
+    }
+
+    private void countSent() {
+        Metrics.Counter sent = messagesSent;
+        if (sent != null) {
+            sent.increment();
+        }
+    }
+
+    // Sends a message from any channel owned by this handler
+    public void send(DatagramChannel channel, String message, SocketAddress target) throws IOException {
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        send(channel, bytes, bytes.length, target);
+    }
+
+    public void send(DatagramChannel channel, byte[] bytes, int length, SocketAddress target) throws IOException {
+        synchronized (sendBuffer) {
+            sendBuffer.clear();
+            sendBuffer.put(bytes, 0, length);
+            sendBuffer.flip();
+            if (channel.send(sendBuffer, target) == 0) {
+                Log.warn("Send buffer full, " + length + " byte message dropped.");
+            }
+        }
+    }
+
+    // Runs the event loop and passes each datagram to the handler attached to its channel
+    @Override
+    public void listenForMessages() {
+        try {
+            while (running) {
+                Runnable registration;
+                while ((registration = pendingRegistrations.poll()) != null) {
+                    registration.run();
+                }
+                selector.select(keyHandler);
+            }
+        } catch (IOException e) {
+            if (running) {
+                Log.error("NIO event loop stopped.", e);
+            }
+        }
+    }
+
+    // Drains every datagram waiting on a readable channel
+    private void handleKey(SelectionKey key) {
+        if (!key.isValid() || !key.isReadable()) {
+            return;
+        }
+        DatagramChannel channel = (DatagramChannel) key.channel();
+        DatagramHandler handler = (DatagramHandler) key.attachment();
+        try {
+            while (true) {
+                receiveBuffer.clear();
+                if (channel.receive(receiveBuffer) == null) {
+                    break; // Nothing left to read
+                }
+                receiveBuffer.flip();
+                int length = receiveBuffer.remaining();
+                receiveBuffer.get(decodeBuffer, 0, length);
+                handler.onDatagram(decodeBuffer, length);
+            }
+        } catch (IOException e) {
+            if (running) {
+                Log.warn("Error receiving datagram: " + e.getMessage());
+            }
+        }
+    }
+
+    // Decodes a datagram from the MCP or a group and notifies the listener
+    private void decodeAndDeliver(byte[] data, int length) {
+        McpMessage message;
+        long parseStart = System.nanoTime();
+        try {
+            message = McpMessage.decode(data, 0, length);
+        } catch (RuntimeException e) {
+            Metrics.Counter malformed = malformedMessages;
+            if (malformed != null) {
+                malformed.increment();
+            }
+            Log.warn("Dropping malformed message: " + e.getMessage());
+            return;
+        }
+        Metrics.Histogram parse = parseTime;
+        if (parse != null) {
+            parse.recordSince(parseStart);
+        }
+        listener.onMessageReceived(message);
+    }
+
+    // Stops the event loop and closes every channel
+    @Override
+    public void close() {
+        running = false;
+        selector.wakeup();
+        try {
+            for (SelectionKey key : selector.keys()) {
+                key.channel().close();
+            }
+            mcpChannel.close();
+            selector.close();
+        } catch (IOException e) {
+            Log.warn("Error closing NIO handler: " + e.getMessage());
+        }
+    }
+
+    private static DatagramChannel openChannel(InetSocketAddress bindAddress) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        channel.bind(bindAddress);
+        channel.configureBlocking(false);
+        return channel;
+    }
+}
@@ -0,0 +1,46 @@
+package CCP;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Runs tasks one at a time, in submission order, on an underlying executor.
+// Each task is handed to the executor separately, so with a thread-per-task
+// executor every command gets its own thread while order is still preserved.
+public class OrderedExecutor implements Executor {
+
+    private final Executor executor;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean running = new AtomicBoolean(false);
+
+    public OrderedExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        tasks.add(task);
+        scheduleNext();
+    }
+
+    private void scheduleNext() {
+        if (!tasks.isEmpty() && running.compareAndSet(false, true)) {
+            executor.execute(this::runNext);
+        }
+    }
+
+    private void runNext() {
+        try {
+            Runnable task = tasks.poll();
+            if (task != null) {
+                task.run();
+            }
+        } catch (RuntimeException e) {
+            Log.warn("Command failed: " + e.getMessage());
+        } finally {
+            running.set(false);
+            scheduleNext();
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package CCP;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntSupplier;
+
+// Receive side of the reliable EXEC stream, placed between a CommunicationHandler
+// and the listener it delivers to. Sequenced EXEC and BATCH commands are checked against
+// the sending peer's SequenceWindow: new ones are delivered straight away, even
+// past a gap, and duplicates are dropped. Every EXEC is answered with an ACK
+// carrying the window's cumulative sequence and ACK mask, so the sender can
+// tell exactly which commands still need resending.
+//
+// AKIN names the sender's stream by its epoch and carries the oldest sequence
+// still to be accepted. An AKIN for the stream the window already follows, e.g.
+// answering a retried CCIN, only skips the window forward to that sequence, so
+// commands already delivered are not delivered again. An AKIN for any other
+// stream starts a new window there. Commands are dropped unanswered until the
+// first AKIN, and again from each CCIN until its AKIN: they may belong to a
+// stream the window does not follow yet, and acknowledging them against the old
+// window could tell a new MCP they arrived when they were never delivered.
+//
+// Group-addressed commands (see CarriageGroup) have their own sequence space and
+// window, which AKIN starts at the oldest group sequence the MCP still expects a
+// GACK for from this carriage. Those not addressed to this carriage, or to the
+// track segment it is in now, are ignored. The rest are answered with a GACK for
+// that one sequence, then delivered as if they had been sent to this carriage
+// alone. Before any AKIN has set the group window, a command the window rejects
+// gets no GACK, as it may never have been delivered. Anything whose client_id
+// names another carriage is dropped unanswered, so a stray AKIN, EXEC or AKST can neither move this
+// carriage nor make the MCP believe its real target got it.
+public class ReliableReceiver implements MessageListener {
+
+    // Sends an ACK back to the peer
+    public interface AckSender {
+        void sendAck(int cumulative, int ackMask);
+    }
+
+    // Acknowledges one group command
+    public interface GroupAckSender {
+        void sendGroupAck(int sequence);
+    }
+
+    private final String localId;
+    private final MessageListener delegate;
+    private final AckSender ackSender;
+    private final GroupAckSender groupAckSender;
+    private final IntSupplier segment; // This carriage's track segment, CarriageGroup.NO_SEGMENT when unknown
+    private final Map<String, SequenceWindow> windows = new ConcurrentHashMap<>(); // Keyed by client_type
+    private final Map<String, Integer> epochs = new ConcurrentHashMap<>();         // Stream each window follows
+    private final Map<String, SequenceWindow> groupWindows = new ConcurrentHashMap<>();
+    private volatile boolean resynced = false; // Set by AKIN, cleared by awaitResync
+
+    public ReliableReceiver(String localId, MessageListener delegate,
+                            AckSender ackSender, GroupAckSender groupAckSender, IntSupplier segment) {
+        this.localId = localId;
+        this.delegate = delegate;
+        this.ackSender = ackSender;
+        this.groupAckSender = groupAckSender;
+        this.segment = segment;
+    }
+
+    @Override
+    public void onMessageReceived(McpMessage message) {
+        String peer = message.getClientType();
+        if (CarriageGroup.isGroupAddress(message.getClientId())) {
+            onGroupMessage(message, peer);
+            return;
+        }
+        String clientId = message.getClientId();
+        if (clientId != null && !clientId.equals(localId)) {
+            Log.debug(() -> "Dropping " + message.getMessageName() + " addressed to " + clientId + ".");
+            return;
+        }
+        if (message.getType() == MessageType.AKIN && message.hasSequence() && peer != null) {
+            resync(peer, message);
+            resynced = true;
+        } else if (isCommand(message.getType()) && message.hasSequence() && peer != null) {
+            if (!resynced) {
+                Log.debug(() -> "Dropping " + message.getMessageName() + " sequence " + message.getSequence() + " until AKIN.");
+                return; // The sender resends it once we know which stream it belongs to
+            }
+            SequenceWindow window = windows.computeIfAbsent(peer, p -> new SequenceWindow());
+            boolean fresh = window.accept(message.getSequence());
+            ackSender.sendAck(window.getCumulative(), window.getAckMask());
+            if (!fresh) {
+                Log.debug(() -> "Dropping duplicate " + (message.getAction() != null ? message.getAction() : message.getMessageName()) + " sequence " + message.getSequence() + ".");
+                return;
+            }
+        }
+        delegate.onMessageReceived(message);
+    }
+
+    // The CCP sent CCIN: accept no more commands until the AKIN answering it
+    public void awaitResync() {
+        resynced = false;
+    }
+
+    private void resync(String peer, McpMessage message) {
+        SequenceWindow window = windows.get(peer);
+        Integer epoch = epochs.get(peer);
+        boolean sameStream = window != null && message.hasStreamEpoch() && epoch != null
+                && epoch == message.getStreamEpoch();
+        if (sameStream) {
+            window.skipTo(message.getSequence()); // Keep what was already delivered
+        } else {
+            windows.put(peer, new SequenceWindow(message.getSequence())); // A new command stream
+            if (message.hasStreamEpoch()) {
+                epochs.put(peer, message.getStreamEpoch());
+            } else {
+                epochs.remove(peer);
+            }
+            Log.debug(() -> "Command stream from " + peer + " starts at sequence " + message.getSequence() + ".");
+        }
+        SequenceWindow groupWindow = groupWindows.get(peer);
+        if (!message.hasGroupSequence()) {
+            if (!sameStream) {
+                groupWindows.remove(peer);
+            }
+        } else if (sameStream && groupWindow != null) {
+            groupWindow.skipTo(message.getGroupSequence());
+        } else {
+            groupWindows.put(peer, new SequenceWindow(message.getGroupSequence()));
+        }
+    }
+
+    private void onGroupMessage(McpMessage message, String peer) {
+        if (!CarriageGroup.includes(message.getClientId(), localId, segment.getAsInt())) {
+            return; // Multicast to other carriages or another segment
+        }
+        if (isCommand(message.getType()) && message.hasSequence() && peer != null) {
+            SequenceWindow window = groupWindows.computeIfAbsent(peer, p -> new SequenceWindow());
+            boolean fresh = window.accept(message.getSequence());
+            if (!fresh && !window.isSeeded()) {
+                // Maybe only older than the first one seen, so neither run it nor tell the MCP it arrived
+                Log.debug(() -> "Dropping group " + message.getMessageName() + " sequence " + message.getSequence()
+                        + " before AKIN set the group window.");
+                return;
+            }
+            groupAckSender.sendGroupAck(message.getSequence());
+            if (!fresh) {
+                Log.debug(() -> "Dropping duplicate group " + message.getMessageName() + " sequence " + message.getSequence() + ".");
+                return;
+            }
+        }
+        delegate.onMessageReceived(message.withClientId(localId));
+    }
+
+    // EXEC and BATCH share the command stream
+    private static boolean isCommand(MessageType type) {
+        return type == MessageType.EXEC || type == MessageType.BATCH;
+    }
+}
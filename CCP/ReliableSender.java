@@ -0,0 +1,335 @@
+package CCP;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Send side of the reliable EXEC stream. Every peer gets its own sequence
+// numbers, and each command stays outstanding until the peer's cumulative ACK
+// or ACK mask covers it. Only commands that are actually missing are sent
+// again: on their own timeout, or at once when the ACK mask shows that later
+// commands already arrived. Commands are never held back behind a missing one.
+//
+// At most WINDOW sequences are in flight per peer, counted from the oldest one
+// not yet acknowledged, so every command sent can be acknowledged selectively
+// by the receiver's ACK mask. Later commands wait in a queue until acknowledgments, or a
+// command given up on, make room. The receiver's window can therefore only
+// slide past a sequence this side has already given up on.
+//
+// A stream is named by a random epoch. The peer learns it, with the sequence
+// to resume from, in every AKIN (see resync), so a retried CCIN leaves the
+// stream and its outstanding commands alone while a new stream, after forget
+// or an MCP restart, resets the peer's window.
+//
+// Commands are only accepted for a peer that is connected: from its first AKIN
+// (see connect) until it is forgotten. Anything else is refused with an
+// IOException, since the peer has no address to retransmit to. A command is
+// given up on once it has gone unacknowledged for giveUpMillis, which the MCP
+// sets to its carriage liveness timeout. Forgetting a peer gives up on
+// everything still outstanding for it.
+public class ReliableSender {
+
+    // Puts a message on the wire, e.g. MCP.sendMessage
+    public interface Transmitter {
+        void transmit(McpMessage message) throws IOException;
+    }
+
+    private static final long RETRANSMIT_TIMEOUT_MILLIS = 300;
+    public static final int WINDOW = SequenceWindow.ACK_MASK_BITS; // Sequences in flight per peer
+
+    private final Transmitter transmitter;
+    private final HashedTimerWheel timer;
+    private final long giveUpNanos;
+    private final Map<String, Stream> streams = new ConcurrentHashMap<>();
+    private final Random random = new Random();
+    private final AtomicLong retransmits = new AtomicLong();
+    private final AtomicLong abandoned = new AtomicLong();
+    private volatile TraceRecorder traceRecorder; // Stamps and records commands when set
+
+    public ReliableSender(Transmitter transmitter, HashedTimerWheel timer, long giveUpMillis) {
+        this.transmitter = transmitter;
+        this.timer = timer;
+        this.giveUpNanos = TimeUnit.MILLISECONDS.toNanos(giveUpMillis);
+    }
+
+    // Stamps an AKIN with the peer's stream, starting one if there is none: its epoch, and
+    // the oldest sequence the peer must still accept. Outstanding commands are kept
+    public McpMessage resync(McpMessage initiationAck) {
+        Stream stream = stream(initiationAck.getClientId());
+        synchronized (stream) {
+            return initiationAck.withSequence(stream.oldestUnacknowledged())
+                    .withStreamEpoch(stream.epoch);
+        }
+    }
+
+    // The AKIN from resync went out: commands to the peer are sent from now on
+    public void connect(String peerId) {
+        Stream stream = stream(peerId);
+        synchronized (stream) {
+            stream.connected = true;
+        }
+    }
+
+    // Forgets a peer, e.g. after DISCONNECT, and gives up on its outstanding commands.
+    // Its next command is refused until it connects again, with a new stream
+    public void forget(String peerId) {
+        Stream stream = streams.remove(peerId);
+        if (stream == null) {
+            return;
+        }
+        int dropped;
+        synchronized (stream) {
+            dropped = stream.pending.size() + stream.queued.get();
+            stream.clear();
+        }
+        if (dropped > 0) {
+            abandoned.addAndGet(dropped);
+            Log.warn("Gave up on " + dropped + " commands to " + peerId + ", which is no longer connected.");
+        }
+    }
+
+    // Next sequence number for a command to the peer, reserved until it is sent
+    public int nextSequence(String peerId) {
+        Stream stream = stream(peerId);
+        synchronized (stream) {
+            int sequence = stream.nextSequence++;
+            stream.outstanding.add(sequence);
+            return sequence;
+        }
+    }
+
+    // Traces every command sent from now on, null to stop
+    public void setTraceRecorder(TraceRecorder traceRecorder) {
+        this.traceRecorder = traceRecorder;
+    }
+
+    // Sends a message stamped with nextSequence and keeps it until acknowledged. It waits in
+    // the queue while WINDOW sequences are already in flight. Refused when the peer is not connected
+    public void send(McpMessage message) throws IOException {
+        TraceRecorder tracer = traceRecorder;
+        if (tracer != null && !message.isTraced()) {
+            long sentNanos = System.nanoTime();
+            message = message.withTrace(sentNanos); // Retransmits carry the first send's stamp
+            tracer.record(TraceRecorder.Hop.MCP_SENT, message, sentNanos);
+        }
+        Stream stream = stream(message.getClientId());
+        Pending pending = new Pending(message);
+        synchronized (stream) {
+            if (!stream.connected) {
+                stream.complete(message.getSequence());
+                throw new IOException(message.getClientId() + " is not connected, "
+                        + message.getMessageName() + " sequence " + message.getSequence() + " not sent.");
+            }
+            if (!stream.queue.isEmpty() || !stream.admits(message.getSequence())) {
+                stream.queue.add(pending);
+                stream.queued.incrementAndGet();
+                pending = null;
+            } else {
+                Pending sent = pending;
+                sent.firstSentNanos = System.nanoTime();
+                sent.timeout = timer.schedule(() -> onTimeout(stream, sent), RETRANSMIT_TIMEOUT_MILLIS);
+                stream.pending.put(message.getSequence(), sent);
+            }
+        }
+        try {
+            if (pending != null) {
+                transmitter.transmit(message);
+            }
+        } catch (IOException e) {
+            if (stream.pending.remove(message.getSequence(), pending)) {
+                stream.complete(message.getSequence());
+            }
+            pending.timeout.cancel();
+            throw e;
+        } finally {
+            sendQueued(stream); // Sends this command too when it was queued and there is room now
+        }
+    }
+
+    // Applies an ACK: everything up to cumulative arrived, plus each sequence set in ackMask
+    public void acknowledge(String peerId, int cumulative, int ackMask) {
+        Stream stream = streams.get(peerId);
+        if (stream == null) {
+            return;
+        }
+        int highestSelective = 31 - Integer.numberOfLeadingZeros(ackMask); // -1 when the mask is empty
+        boolean removed = false;
+        Iterator<Pending> it = stream.pending.values().iterator();
+        while (it.hasNext()) {
+            Pending pending = it.next();
+            int offset = pending.message.getSequence() - cumulative - 1;
+            if (offset < 0 || (offset < WINDOW && (ackMask & (1 << offset)) != 0)) {
+                it.remove();
+                removed = true;
+                pending.timeout.cancel();
+                stream.complete(pending.message.getSequence());
+                TraceRecorder tracer = traceRecorder;
+                if (tracer != null) {
+                    tracer.record(TraceRecorder.Hop.MCP_ACKED, pending.message);
+                }
+            } else if (offset < highestSelective && !pending.fastRetransmitted) {
+                // A later command arrived, so this one was lost: resend without waiting for the timeout
+                pending.fastRetransmitted = true;
+                retransmit(pending);
+            }
+        }
+        if (removed) {
+            sendQueued(stream);
+        }
+    }
+
+    // Commands sent to the peer, or queued for it, that are not acknowledged yet
+    public int getOutstanding(String peerId) {
+        Stream stream = streams.get(peerId);
+        return stream == null ? 0 : stream.pending.size() + stream.queued.get();
+    }
+
+    // Commands on the wire to the peer and not acknowledged yet, at most WINDOW
+    public int getInFlight(String peerId) {
+        Stream stream = streams.get(peerId);
+        return stream == null ? 0 : stream.pending.size();
+    }
+
+    // Total retransmissions to every peer, timeouts and fast retransmits alike
+    public long getRetransmitCount() {
+        return retransmits.get();
+    }
+
+    // Commands given up on, to every peer: unacknowledged for too long, or outstanding when forgotten
+    public long getAbandonedCount() {
+        return abandoned.get();
+    }
+
+    // Runs on the timer thread when a command was not acknowledged in time
+    private void onTimeout(Stream stream, Pending pending) {
+        int sequence = pending.message.getSequence();
+        if (stream.pending.get(sequence) != pending) {
+            return; // Acknowledged or cleared meanwhile
+        }
+        if (System.nanoTime() - pending.firstSentNanos >= giveUpNanos) {
+            if (stream.pending.remove(sequence, pending)) {
+                stream.complete(sequence);
+                abandoned.incrementAndGet();
+                Log.warn("No acknowledgment from " + pending.message.getClientId() + " for "
+                        + pending.message.getMessageName() + " sequence " + sequence + ", giving up.");
+                sendQueued(stream);
+            }
+            return;
+        }
+        retransmit(pending);
+        pending.timeout = timer.schedule(() -> onTimeout(stream, pending), RETRANSMIT_TIMEOUT_MILLIS);
+    }
+
+    // Sends queued commands that now fit in the window, oldest first
+    private void sendQueued(Stream stream) {
+        while (true) {
+            Pending next;
+            synchronized (stream) {
+                next = stream.queue.peek();
+                if (next == null || stream.cleared || !stream.admits(next.message.getSequence())) {
+                    return;
+                }
+                stream.queue.poll();
+                stream.queued.decrementAndGet();
+                next.firstSentNanos = System.nanoTime();
+                next.timeout = timer.schedule(() -> onTimeout(stream, next), RETRANSMIT_TIMEOUT_MILLIS);
+                stream.pending.put(next.message.getSequence(), next);
+            }
+            try {
+                transmitter.transmit(next.message);
+            } catch (IOException e) {
+                Log.warn("Send to " + next.message.getClientId() + " failed: " + e.getMessage()); // Retried on its timeout
+            }
+        }
+    }
+
+    private void retransmit(Pending pending) {
+        retransmits.incrementAndGet();
+        try {
+            transmitter.transmit(pending.message);
+            Log.debug(() -> "Retransmitted sequence " + pending.message.getSequence()
+                    + " to " + pending.message.getClientId() + ".");
+        } catch (IOException e) {
+            Log.warn("Retransmit to " + pending.message.getClientId() + " failed: " + e.getMessage());
+        }
+    }
+
+    private Stream stream(String peerId) {
+        return streams.computeIfAbsent(peerId,
+                id -> new Stream(random.nextInt() & Integer.MAX_VALUE, random.nextInt(29001) + 1000));
+    }
+
+    // Sequence numbers and outstanding commands for one peer
+    private static class Stream {
+        private final int epoch;
+        private final Map<Integer, Pending> pending = new ConcurrentHashMap<>(); // In flight
+        private final AtomicInteger queued = new AtomicInteger();              // Size of queue, read without the lock
+
+        // Guarded by this
+        private int nextSequence;
+        private int oldest; // Oldest sequence in outstanding, nextSequence when it is empty
+        private final Set<Integer> outstanding = new HashSet<>(); // From nextSequence: reserved, queued or in flight
+        private final PriorityQueue<Pending> queue = new PriorityQueue<>(
+                (a, b) -> Integer.signum(a.message.getSequence() - b.message.getSequence()));
+        private boolean cleared;
+        private boolean connected; // Set by connect
+
+        private Stream(int epoch, int firstSequence) {
+            this.epoch = epoch;
+            this.nextSequence = firstSequence;
+            this.oldest = firstSequence;
+        }
+
+        // True when sending this sequence keeps every sequence in flight within WINDOW
+        private boolean admits(int sequence) {
+            return sequence - oldestUnacknowledged() < WINDOW;
+        }
+
+        // The oldest sequence that is reserved, queued or in flight, else the next one
+        private int oldestUnacknowledged() {
+            return oldest;
+        }
+
+        // The sequence was acknowledged or given up on. Moves oldest past it and past any
+        // later ones already done, so each sequence is stepped over once
+        private synchronized void complete(int sequence) {
+            if (outstanding.remove(sequence)) {
+                while (oldest != nextSequence && !outstanding.contains(oldest)) {
+                    oldest++;
+                }
+            }
+        }
+
+        private void clear() {
+            cleared = true;
+            for (Pending entry : pending.values()) {
+                entry.timeout.cancel();
+            }
+            pending.clear();
+            queue.clear();
+            queued.set(0);
+            outstanding.clear();
+            oldest = nextSequence;
+        }
+    }
+
+    // A command waiting for its ACK
+    private static class Pending {
+        private final McpMessage message;
+        private volatile HashedTimerWheel.Timeout timeout;
+        private volatile boolean fastRetransmitted;
+        private volatile long firstSentNanos; // When it was first transmitted, for the give-up deadline
+
+        private Pending(McpMessage message) {
+            this.message = message;
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package CCP;
+
+import java.util.concurrent.TimeUnit;
+
+// Smoothed round trip time as TCP keeps it (SRTT): each sample moves the
+// estimate an eighth of the way towards it. Used by HeartbeatMonitor on the CCP
+// and by CarriageLivenessMonitor on the MCP, so both ends smooth alike.
+public class RttEstimator {
+
+    private static final double GAIN = 0.125; // Weight of a new sample
+
+    // Guarded by this
+    private long lastNanos = -1;
+    private double smoothedNanos = -1;
+
+    public synchronized void sample(long rttNanos) {
+        lastNanos = rttNanos;
+        smoothedNanos = smoothedNanos < 0 ? rttNanos : smoothedNanos + GAIN * (rttNanos - smoothedNanos);
+    }
+
+    // The last sample, -1 before the first
+    public synchronized long getLastMillis() {
+        return lastNanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(lastNanos);
+    }
+
+    // The smoothed round trip time, -1 before the first sample
+    public synchronized double getSmoothedMillis() {
+        return smoothedNanos < 0 ? -1 : smoothedNanos / 1_000_000.0;
+    }
+}
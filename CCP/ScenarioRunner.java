@@ -0,0 +1,289 @@
+package CCP;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Drives MCP -> CCP -> ESP32 on localhost through two ImpairmentProxies, one
+// on the MCP <-> CCP link and one on the CCP -> ESP32 link, and reports how
+// long commands took to reach the ESP32 and how many never did. The ESP32s
+// are emulated by Esp32Emulator, whose photodiodes feed each CCP's alignment
+// and whose emulated motion feeds each CCP's track position. Carriages start
+// CARRIAGE_SPACING_MM apart.
+//
+// Usage: java CCP.ScenarioRunner [--carriages 4] [--commands 200] [--interval 10]
+//        [--latency 5] [--jitter 5] [--loss 0.05] [--duplicate 0.01] [--reorder 0.02]
+//        [--bandwidth 0] [--seed 42] [--settle 3000] [--esp-delay 0] [--esp-time-scale 0]
+//        [--metrics-port 9400] [--trace] [--transport udp|nio] [--coalesce] [--group 239.1.2.3]
+//
+// With --metrics-port the MCP's and every CCP's metrics are served at
+// http://127.0.0.1:<port>/metrics for the length of the run. With --trace
+// every command is traced and TraceReport breaks its latency down by hop.
+// --transport nio runs every CCP on NIOCommunicationHandler, UDP by default.
+// --coalesce batches heartbeat AKSTs on the MCP and lets traffic stand in for STRQ.
+// --group has every CCP join that multicast group, and ends the run with an
+// emergency stop sent to it once, bypassing the MCP proxy, then retried by unicast.
+//
+// Ports used: MCP 2000, MCP proxy 2100, group commands 2500, CCPs 3000+, ESP proxy 4100,
+// ESP32 emulator 4200, CCP ESP sockets 4500+.
+public class ScenarioRunner {
+
+    private static final int MCP_PROXY_PORT = 2100;
+    private static final int ESP_PROXY_PORT = 4100;
+    private static final int ESP_SINK_PORT = 4200;
+    private static final int FIRST_CCP_PORT = 3000;
+    private static final int FIRST_CCP_ESP_PORT = 4500;
+    private static final int CARRIAGE_SPACING_MM = 20_000;
+
+    private final Map<String, Long> sentAt = new ConcurrentHashMap<>();   // "BR1:seq" -> send time, nanos
+    private final Map<String, Long> arrivedAt = new ConcurrentHashMap<>(); // First arrival at the ESP32, nanos
+    private final AtomicLong espDuplicates = new AtomicLong();
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        if (!options.containsKey("verbose")) {
+            Log.setLevel(Log.Level.WARN);
+        }
+        new ScenarioRunner().run(options);
+        System.exit(0);
+    }
+
+    private void run(Map<String, String> options) throws Exception {
+        int carriages = intOption(options, "carriages", 4);
+        int commands = intOption(options, "commands", 200);
+        long intervalMillis = intOption(options, "interval", 10);
+        long settleMillis = intOption(options, "settle", 3000);
+        long seed = Long.parseLong(options.getOrDefault("seed", "42"));
+        ImpairmentProxy.Impairment impairment = ImpairmentProxy.Impairment.none()
+                .withLatency(intOption(options, "latency", 5), intOption(options, "jitter", 5))
+                .withLoss(doubleOption(options, "loss", 0.05))
+                .withDuplication(doubleOption(options, "duplicate", 0.01))
+                .withReordering(doubleOption(options, "reorder", 0.02), 20)
+                .withBandwidth(intOption(options, "bandwidth", 0));
+        Transport transport = Transport.valueOf(options.getOrDefault("transport", "udp").toUpperCase(Locale.ROOT));
+        boolean coalesce = options.containsKey("coalesce");
+        System.out.println("Scenario: " + carriages + " carriages, " + commands + " commands, " + impairment
+                + ", seed " + seed + ", " + transport + " transport" + (coalesce ? ", coalesced heartbeats" : ""));
+
+        Map<String, CCP> ccpsById = new ConcurrentHashMap<>();
+        Esp32Emulator emulator = new Esp32Emulator(seed + 200);
+        emulator.setProcessingDelayMillis(intOption(options, "esp-delay", 0));
+        emulator.setTimeScale(doubleOption(options, "esp-time-scale", 0));
+        emulator.setLenient(true); // Act on the EXEC envelopes the CCPs forward, so carriages move
+        emulator.setCommandListener(this::onEspCommand);
+        emulator.setAlignmentListener((esp, aligned) -> {
+            CCP ccp = ccpsById.get(esp.getEspId());
+            if (ccp != null) {
+                ccp.setAlignedWithPhotodiode(aligned);
+            }
+        });
+        emulator.setPositionListener((esp, travelledMm) -> {
+            CCP ccp = ccpsById.get(esp.getEspId());
+            if (ccp != null) {
+                ccp.setTrackPosition(startPositionMm(esp.getEspId()) + travelledMm);
+            }
+        });
+        emulator.addSharedPort(ESP_SINK_PORT);
+        TraceRecorder espTrace = new TraceRecorder();
+        boolean tracing = options.containsKey("trace");
+        if (tracing) {
+            emulator.setTraceRecorder(espTrace);
+        }
+
+        MCP mcp = new MCP();
+        Thread listener = new Thread(mcp::listenForMessages, "scenario-mcp-listener");
+        listener.setDaemon(true);
+        listener.start();
+        mcp.setTracing(tracing);
+        mcp.setCoalesceHeartbeats(coalesce);
+        String group = options.get("group");
+        if (group != null) {
+            mcp.setGroupAddress(group, CarriageGroup.DEFAULT_PORT, "127.0.0.1");
+        }
+
+        ImpairmentProxy mcpProxy = new ImpairmentProxy(MCP_PROXY_PORT,
+                new InetSocketAddress("127.0.0.1", 2000), impairment, impairment, seed);
+        ImpairmentProxy espProxy = new ImpairmentProxy(ESP_PROXY_PORT,
+                new InetSocketAddress("127.0.0.1", ESP_SINK_PORT), impairment, impairment, seed + 100);
+
+        List<CCP> ccps = new ArrayList<>();
+        String[] ids = new String[carriages];
+        for (int i = 0; i < carriages; i++) {
+            ids[i] = "BR" + (i + 1);
+            CCP ccp = new CCP(ids[i], "127.0.0.1", MCP_PROXY_PORT, "127.0.0.1", FIRST_CCP_PORT + i,
+                    "127.0.0.1", ESP_PROXY_PORT, FIRST_CCP_ESP_PORT + i, 1, ExecutionMode.PLATFORM, transport);
+            ccps.add(ccp);
+            ccpsById.put(ids[i], ccp);
+            ccp.setTrackPosition(startPositionMm(ids[i]));
+            ccp.setCoalesceHeartbeats(coalesce);
+            if (group != null) {
+                ccp.joinGroup(group, CarriageGroup.DEFAULT_PORT);
+            }
+            ccp.connect();
+        }
+        MetricsServer metricsServer = null;
+        if (options.containsKey("metrics-port")) {
+            metricsServer = new MetricsServer(intOption(options, "metrics-port", 9400));
+            metricsServer.register(mcp.getMetrics());
+            for (CCP ccp : ccps) {
+                metricsServer.register(ccp.getMetrics());
+            }
+        }
+        ids = waitForRegistration(mcp, ids, 5000);
+        if (ids.length == 0) {
+            System.out.println("No carriage registered, nothing to run.");
+            return;
+        }
+
+        ReliableSender sender = mcp.getReliableSender();
+        Action[] cycle = {Action.FFASTC, Action.FSLOWC, Action.STOPC, Action.STOPO, Action.FLASH_LED};
+        long started = System.nanoTime();
+        for (int n = 0; n < commands; n++) {
+            String id = ids[n % ids.length];
+            int sequence = sender.nextSequence(id);
+            sentAt.put(id + ":" + sequence, System.nanoTime());
+            sender.send(McpMessage.exec("MCP", cycle[n % cycle.length], id).withSequence(sequence));
+            Thread.sleep(intervalMillis);
+        }
+        long sendMillis = (System.nanoTime() - started) / 1_000_000L;
+        Thread.sleep(settleMillis);
+
+        report(commands, sendMillis, sender, ids, mcpProxy, espProxy);
+        if (group != null) {
+            int members = mcp.getCarriageRegistry().size();
+            Set<String> missed = mcp.sendEmergencyStop().get(5, TimeUnit.SECONDS);
+            System.out.println("Group STOPC:          acknowledged by " + (members - missed.size())
+                    + " of " + members + (missed.isEmpty() ? "" : ", missed " + missed));
+        }
+        System.out.println("ESP32 emulator:       " + emulator.getStatistics());
+        if (tracing) {
+            List<TraceRecorder.Event> events = new ArrayList<>(mcp.getTraceRecorder().getEvents());
+            for (CCP ccp : ccps) {
+                events.addAll(ccp.getTraceRecorder().getEvents());
+            }
+            events.addAll(espTrace.getEvents());
+            System.out.println();
+            System.out.print(TraceReport.report(events));
+        }
+
+        for (CCP ccp : ccps) {
+            ccp.stop();
+        }
+        mcpProxy.close();
+        espProxy.close();
+        emulator.close();
+        if (metricsServer != null) {
+            metricsServer.stop();
+        }
+    }
+
+    // Carriage "BR<n>" starts (n - 1) * CARRIAGE_SPACING_MM along the track
+    private static int startPositionMm(String id) {
+        return (Integer.parseInt(id.substring(2)) - 1) * CARRIAGE_SPACING_MM;
+    }
+
+    // Records when each forwarded command first reaches its ESP32
+    private void onEspCommand(Esp32Emulator.EmulatedEsp esp, McpMessage message, long receivedNanos) {
+        if (message.getType() != MessageType.EXEC || !message.hasSequence()) {
+            return;
+        }
+        if (arrivedAt.putIfAbsent(message.getClientId() + ":" + message.getSequence(), receivedNanos) != null) {
+            espDuplicates.incrementAndGet();
+        }
+    }
+
+    private void report(int commands, long sendMillis, ReliableSender sender, String[] ids,
+                        ImpairmentProxy mcpProxy, ImpairmentProxy espProxy) {
+        long[] latencies = new long[sentAt.size()];
+        int delivered = 0;
+        for (Map.Entry<String, Long> sent : sentAt.entrySet()) {
+            Long arrived = arrivedAt.get(sent.getKey());
+            if (arrived != null) {
+                latencies[delivered++] = arrived - sent.getValue();
+            }
+        }
+        Arrays.sort(latencies, 0, delivered);
+        int outstanding = 0;
+        for (String id : ids) {
+            outstanding += sender.getOutstanding(id);
+        }
+
+        System.out.println();
+        System.out.println("Commands sent:        " + commands + " in " + sendMillis + " ms");
+        System.out.println("Reached ESP32:        " + delivered + " (" + percent(delivered, commands) + ")");
+        System.out.println("Never reached ESP32:  " + (commands - delivered) + " (" + percent(commands - delivered, commands) + ")");
+        System.out.println("Duplicates at ESP32:  " + espDuplicates.get());
+        System.out.println("MCP retransmits:      " + sender.getRetransmitCount());
+        System.out.println("Still unacknowledged: " + outstanding);
+        if (delivered > 0) {
+            System.out.println("Latency MCP -> ESP32: p50 " + millis(percentile(latencies, delivered, 0.50))
+                    + ", p90 " + millis(percentile(latencies, delivered, 0.90))
+                    + ", p99 " + millis(percentile(latencies, delivered, 0.99))
+                    + ", max " + millis(latencies[delivered - 1]));
+        }
+        System.out.println(mcpProxy.getUpstream());
+        System.out.println(mcpProxy.getDownstream());
+        System.out.println(espProxy.getUpstream());
+        System.out.println("Log entries dropped:  " + Log.getDroppedCount());
+    }
+
+    // Returns the carriages that registered. CCPs retry CCIN until AKIN arrives, so only a
+    // carriage that stays unreachable for the whole timeout is left out of the run
+    private String[] waitForRegistration(MCP mcp, String[] ids, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        List<String> registered = new ArrayList<>();
+        for (String id : ids) {
+            while (!mcp.getCarriageRegistry().isRegistered(id) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            if (mcp.getCarriageRegistry().isRegistered(id)) {
+                registered.add(id);
+            } else {
+                System.out.println("Carriage " + id + " did not register in time, leaving it out.");
+            }
+        }
+        return registered.toArray(new String[0]);
+    }
+
+    private static long percentile(long[] sorted, int count, double fraction) {
+        int index = (int) Math.ceil(fraction * count) - 1;
+        return sorted[Math.max(0, Math.min(count - 1, index))];
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.2f ms", nanos / 1_000_000.0);
+    }
+
+    private static String percent(long part, long whole) {
+        return whole == 0 ? "0%" : String.format("%.2f%%", 100.0 * part / whole);
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--")) {
+                throw new IllegalArgumentException("Unexpected argument: " + args[i]);
+            }
+            String key = args[i].substring(2);
+            boolean hasValue = i + 1 < args.length && !args[i + 1].startsWith("--");
+            options.put(key, hasValue ? args[++i] : "true");
+        }
+        return options;
+    }
+
+    private static int intOption(Map<String, String> options, String key, int defaultValue) {
+        return options.containsKey(key) ? Integer.parseInt(options.get(key)) : defaultValue;
+    }
+
+    private static double doubleOption(Map<String, String> options, String key, double defaultValue) {
+        return options.containsKey(key) ? Double.parseDouble(options.get(key)) : defaultValue;
+    }
+}
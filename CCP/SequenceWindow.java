@@ -0,0 +1,96 @@
+package CCP;
+
+// Receive-side sliding window over one peer's sequence numbers. Everything up
+// to the cumulative sequence has been received; a 64-bit bitset records what
+// arrived above it. A sequence that is at or below the cumulative one, or
+// whose bit is already set, is a duplicate. Sequence arithmetic wraps, so the
+// window keeps working across int overflow.
+//
+// The ACK mask only reports the ACK_MASK_BITS sequences after the cumulative
+// one, so ReliableSender keeps no more than that in flight, counted from the
+// oldest one it still waits for. A sequence SIZE or more ahead of the cumulative
+// one therefore only arrives once the sender has given up on the missing ones.
+// The window then slides past them, as the sender already has.
+public class SequenceWindow {
+
+    public static final int SIZE = 64;
+    public static final int ACK_MASK_BITS = 32; // Sequences after the cumulative one an ACK can report
+
+    private int cumulative;  // Highest sequence with nothing missing at or below it
+    private long received;   // Bit i set when cumulative + 1 + i has arrived
+    private boolean started;
+    private final boolean seeded; // The first sequence was given rather than taken from the first arrival
+
+    // Window that starts at the first sequence it sees
+    public SequenceWindow() {
+        this.seeded = false;
+    }
+
+    // Window whose first expected sequence is known, e.g. from AKIN
+    public SequenceWindow(int firstSequence) {
+        this.cumulative = firstSequence - 1;
+        this.started = true;
+        this.seeded = true;
+    }
+
+    // Records a sequence. Returns false when it is a duplicate and must not be processed again
+    public synchronized boolean accept(int sequence) {
+        if (!started) {
+            cumulative = sequence - 1;
+            started = true;
+        }
+        int offset = sequence - cumulative - 1;
+        if (offset < 0) {
+            return false;
+        }
+        if (offset >= SIZE) {
+            // Too far ahead: the sender gave up on what is skipped, so slide to make this the newest slot
+            skipTo(sequence - SIZE + 1);
+            offset = sequence - cumulative - 1;
+        }
+        long bit = 1L << offset;
+        if ((received & bit) != 0) {
+            return false;
+        }
+        received |= bit;
+        advance();
+        return true;
+    }
+
+    // Treats every sequence before first as received, e.g. when the sender resyncs from it.
+    // Does nothing when the window is already past it
+    public synchronized void skipTo(int first) {
+        int shift = first - cumulative - 1;
+        if (!started) {
+            cumulative = first - 1;
+            started = true;
+        } else if (shift > 0) {
+            received = shift >= SIZE ? 0 : received >>> shift;
+            cumulative += shift;
+            advance();
+        }
+    }
+
+    // False when the window started at the first sequence it saw. A sequence before that
+    // one is then rejected although it may never have arrived
+    public boolean isSeeded() {
+        return seeded;
+    }
+
+    public synchronized int getCumulative() {
+        return cumulative;
+    }
+
+    // The ACK_MASK_BITS sequences after the cumulative one, bit i for cumulative + 1 + i
+    public synchronized int getAckMask() {
+        return (int) received;
+    }
+
+    // Moves the cumulative sequence past every contiguous sequence that has arrived
+    private void advance() {
+        while ((received & 1) != 0) {
+            received >>>= 1;
+            cumulative++;
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package CCP;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// Chooses between FULL_SPEED and MAINTAINING_PACE from the neighbour gaps the
+// MCP sends in GAPS. Two thresholds give hysteresis: the carriage keeps pace
+// once a neighbour is closer than slowDownGapMm, and only speeds up again once
+// every neighbour is further than resumeGapMm, so a gap hovering around one
+// value cannot flip the state. Speeding up is also rate-limited to once per
+// minDwellMillis; a resume that comes too soon is deferred on the timer rather
+// than dropped. Slowing down is never delayed. The controller only acts while
+// the carriage is cruising, so it never starts a stopped carriage.
+public class SpeedController {
+
+    private final StateManager stateManager;
+    private final HashedTimerWheel timer;
+    private final int slowDownGapMm;
+    private final int resumeGapMm;
+    private final long minDwellMillis;
+
+    // Guarded by this
+    private int frontGapMm = McpMessage.NO_POSITION;
+    private int rearGapMm = McpMessage.NO_POSITION;
+    private boolean near;
+    private long lastChangeNanos;
+    private HashedTimerWheel.Timeout pendingResume;
+
+    private final AtomicLong updates = new AtomicLong();       // GAPS received
+    private final AtomicLong unchanged = new AtomicLong();     // Same gaps as before, nothing evaluated
+    private final AtomicLong held = new AtomicLong();          // Hysteresis kept the previous decision
+    private final AtomicLong deferred = new AtomicLong();      // Resumes postponed by the dwell time
+    private final AtomicLong transitions = new AtomicLong();   // State changes made
+
+    public SpeedController(StateManager stateManager, HashedTimerWheel timer,
+                           int slowDownGapMm, int resumeGapMm, long minDwellMillis) {
+        if (resumeGapMm < slowDownGapMm) {
+            throw new IllegalArgumentException("Resume gap must not be below the slow-down gap");
+        }
+        this.stateManager = stateManager;
+        this.timer = timer;
+        this.slowDownGapMm = slowDownGapMm;
+        this.resumeGapMm = resumeGapMm;
+        this.minDwellMillis = minDwellMillis;
+        // A command that sets FULL_SPEED while a neighbour is close is corrected straight away
+        stateManager.addListener((oldState, newState) -> {
+            if (newState == StateManager.CCPState.FULL_SPEED) {
+                onCruising();
+            }
+        });
+    }
+
+    // New distances to the nearest carriages, NO_POSITION when there is none
+    public synchronized void onGaps(int frontGapMm, int rearGapMm) {
+        updates.incrementAndGet();
+        if (frontGapMm == this.frontGapMm && rearGapMm == this.rearGapMm) {
+            unchanged.incrementAndGet();
+            return;
+        }
+        this.frontGapMm = frontGapMm;
+        this.rearGapMm = rearGapMm;
+
+        boolean close = isClose(frontGapMm) || isClose(rearGapMm);
+        boolean clear = isClear(frontGapMm) && isClear(rearGapMm);
+        boolean wasNear = near;
+        near = wasNear ? !clear : close;
+        if (near == wasNear && close != clear) {
+            held.incrementAndGet(); // Between the two thresholds
+        }
+        apply();
+    }
+
+    // True while a neighbour is too close for full speed
+    public synchronized boolean isNear() {
+        return near;
+    }
+
+    public long getUpdates() {
+        return updates.get();
+    }
+
+    public long getUnchanged() {
+        return unchanged.get();
+    }
+
+    public long getHeld() {
+        return held.get();
+    }
+
+    public long getDeferred() {
+        return deferred.get();
+    }
+
+    public long getTransitions() {
+        return transitions.get();
+    }
+
+    private synchronized void onCruising() {
+        if (near) {
+            apply();
+        }
+    }
+
+    // Runs on the timer once the dwell time after the last change has passed
+    private synchronized void onResumeDue() {
+        pendingResume = null;
+        apply();
+    }
+
+    private void apply() {
+        StateManager.CCPState current = stateManager.getCurrentState();
+        if (current != StateManager.CCPState.FULL_SPEED && current != StateManager.CCPState.MAINTAINING_PACE) {
+            cancelResume();
+            return; // Stopped, creeping or not connected: MCP commands decide
+        }
+        StateManager.CCPState target = near
+                ? StateManager.CCPState.MAINTAINING_PACE : StateManager.CCPState.FULL_SPEED;
+        if (current == target) {
+            cancelResume();
+            return;
+        }
+        if (target == StateManager.CCPState.FULL_SPEED) {
+            long waitNanos = lastChangeNanos + minDwellMillis * 1_000_000L - System.nanoTime();
+            if (lastChangeNanos != 0 && waitNanos > 0) {
+                if (pendingResume == null) {
+                    deferred.incrementAndGet();
+                    pendingResume = timer.schedule(this::onResumeDue, waitNanos / 1_000_000L + 1);
+                }
+                return;
+            }
+        }
+        cancelResume();
+        if (stateManager.updateState(target)) {
+            transitions.incrementAndGet();
+            lastChangeNanos = System.nanoTime();
+        }
+    }
+
+    private void cancelResume() {
+        if (pendingResume != null) {
+            pendingResume.cancel();
+            pendingResume = null;
+        }
+    }
+
+    private boolean isClose(int gapMm) {
+        return gapMm != McpMessage.NO_POSITION && gapMm < slowDownGapMm;
+    }
+
+    private boolean isClear(int gapMm) {
+        return gapMm == McpMessage.NO_POSITION || gapMm > resumeGapMm;
+    }
+}
@@ -1,5 +1,18 @@
 package CCP;
 
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
 public class StateManager {
 
     public enum CCPState {
@@ -7,18 +20,200 @@ public class StateManager {
         MAINTAINING_PACE, SLOW_FORWARD, SLOW_BACKWARD
     }
 
-    private CCPState currentState;
+    // Notified after every state change, one change at a time and in the order the changes
+    // were made. Usually on the thread that made the change, but when two threads change the
+    // state at once, the first one to notify also delivers the other's change
+    public interface StateListener {
+        void onStateChanged(CCPState oldState, CCPState newState);
+    }
+
+    private static final CCPState[] STATES = CCPState.values();
+    private static final int HAZARD_LATCHED = 0x100; // Set above the state ordinal while a hazard stop is active
+    private static final int STATE_MASK = 0xFF;
+    private static final long TRANSITION = 1L << 16; // Transitions are counted above the latch
+
+    // States each state may move to. STOPPED is reachable from everywhere so a stop is never refused
+    private static final Map<CCPState, Set<CCPState>> ALLOWED_TRANSITIONS = new EnumMap<>(CCPState.class);
+
+    // The same while a hazard stop is latched. The carriage is then STOPPED and stays so, e.g. a
+    // FULL_SPEED sent before the MCP knew of the hazard is refused, until clearHazard()
+    private static final Map<CCPState, Set<CCPState>> ALLOWED_WHILE_HAZARD = new EnumMap<>(CCPState.class);
+
+    static {
+        Set<CCPState> moving = EnumSet.of(CCPState.STOPPED, CCPState.FULL_SPEED,
+                CCPState.MAINTAINING_PACE, CCPState.SLOW_FORWARD, CCPState.SLOW_BACKWARD);
+        ALLOWED_TRANSITIONS.put(CCPState.STARTED, EnumSet.of(CCPState.CONNECTED, CCPState.STOPPED));
+        ALLOWED_TRANSITIONS.put(CCPState.CONNECTED, moving);
+        ALLOWED_TRANSITIONS.put(CCPState.STOPPED, moving);
+        ALLOWED_TRANSITIONS.put(CCPState.FULL_SPEED, moving);
+        ALLOWED_TRANSITIONS.put(CCPState.MAINTAINING_PACE, moving);
+        ALLOWED_TRANSITIONS.put(CCPState.SLOW_FORWARD, moving);
+        ALLOWED_TRANSITIONS.put(CCPState.SLOW_BACKWARD, moving);
+        for (CCPState state : STATES) {
+            ALLOWED_WHILE_HAZARD.put(state, EnumSet.of(CCPState.STOPPED));
+        }
+    }
+
+    // State ordinal, hazard latch and transition count, updated together with a single CAS
+    private final AtomicLong stateBits;
+    private final List<StateListener> listeners = new CopyOnWriteArrayList<>();
+
+    // Transitions made but not yet delivered to the listeners, in the order their threads queued them
+    private final Queue<Transition> undelivered = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger deliveryRequests = new AtomicInteger(); // The thread raising it from 0 delivers
+
+    // Only touched by the delivering thread. Taking over from deliveryRequests makes them visible
+    private final Queue<Transition> early = new PriorityQueue<>(Comparator.comparingLong(t -> t.count));
+    private long delivered; // Count of the last transition delivered
 
     public StateManager() {
-        this.currentState = CCPState.STARTED;
+        this.stateBits = new AtomicLong(CCPState.STARTED.ordinal());
+    }
+
+    public void addListener(StateListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(StateListener listener) {
+        listeners.remove(listener);
+    }
+
+    // Moves to newState if the transition table allows it. Returns false when refused.
+    // Updating to the current state is accepted but does not notify listeners
+    public boolean updateState(CCPState newState) {
+        while (true) {
+            long bits = stateBits.get();
+            CCPState current = STATES[(int) bits & STATE_MASK];
+            if (current == newState) {
+                return true;
+            }
+            boolean hazard = (bits & HAZARD_LATCHED) != 0;
+            if (!isTransitionAllowed(current, newState, hazard)) {
+                if (hazard) {
+                    Log.info("State change to " + newState + " refused: hazard stop not cleared.");
+                    return false;
+                }
+                Log.info("State change " + current + " -> " + newState + " is not allowed.");
+                return false;
+            }
+            long next = transitioned(bits, bits & HAZARD_LATCHED, newState);
+            if (stateBits.compareAndSet(bits, next)) {
+                onTransition(next, current, newState);
+                return true;
+            }
+        }
+    }
+
+    // Stops and latches the hazard, so only an explicit clearHazard() allows moving again
+    public void stopForHazard() {
+        while (true) {
+            long bits = stateBits.get();
+            CCPState current = STATES[(int) bits & STATE_MASK];
+            long next = current == CCPState.STOPPED
+                    ? bits | HAZARD_LATCHED
+                    : transitioned(bits, HAZARD_LATCHED, CCPState.STOPPED);
+            if (stateBits.compareAndSet(bits, next)) {
+                if (current != CCPState.STOPPED) {
+                    onTransition(next, current, CCPState.STOPPED);
+                }
+                return;
+            }
+        }
     }
 
-    public void updateState(CCPState newState) {
-        this.currentState = newState;
-        System.out.println("State updated to: " + newState);
+    // Releases a hazard stop. The carriage stays STOPPED until told to move
+    public void clearHazard() {
+        long bits;
+        do {
+            bits = stateBits.get();
+            if ((bits & HAZARD_LATCHED) == 0) {
+                return;
+            }
+        } while (!stateBits.compareAndSet(bits, bits & ~HAZARD_LATCHED));
+        Log.info("Hazard stop cleared.");
+    }
+
+    public boolean isHazardLatched() {
+        return (stateBits.get() & HAZARD_LATCHED) != 0;
+    }
+
+    public static boolean isTransitionAllowed(CCPState from, CCPState to) {
+        return isTransitionAllowed(from, to, false);
+    }
+
+    public static boolean isTransitionAllowed(CCPState from, CCPState to, boolean hazardLatched) {
+        return from == to || (hazardLatched ? ALLOWED_WHILE_HAZARD : ALLOWED_TRANSITIONS).get(from).contains(to);
     }
 
     public CCPState getCurrentState() {
-        return currentState;
+        return STATES[(int) stateBits.get() & STATE_MASK];
+    }
+
+    // The bits after one more transition to newState, with the given latch
+    private static long transitioned(long bits, long latch, CCPState newState) {
+        return ((bits & ~(TRANSITION - 1)) + TRANSITION) | latch | newState.ordinal();
+    }
+
+    // Queues the transition, then delivers queued ones in count order unless another thread
+    // already is. A listener that changes the state has its change delivered after it returns
+    private void onTransition(long bits, CCPState oldState, CCPState newState) {
+        undelivered.offer(new Transition(bits / TRANSITION, oldState, newState));
+        if (deliveryRequests.getAndIncrement() != 0) {
+            return;
+        }
+        int requests = 1;
+        while (true) {
+            Transition transition;
+            while ((transition = nextInOrder()) != null) {
+                deliver(transition);
+            }
+            // The next transition is not queued yet, its thread delivers it unless more requests came in
+            requests = deliveryRequests.addAndGet(-requests);
+            if (requests == 0) {
+                return;
+            }
+        }
+    }
+
+    // The transition after the last delivered one, or null when it is not queued yet. Threads can
+    // queue out of count order, those queued early wait in a heap
+    private Transition nextInOrder() {
+        Transition transition = early.peek();
+        if (transition != null && transition.count == delivered + 1) {
+            early.poll();
+            delivered++;
+            return transition;
+        }
+        while ((transition = undelivered.poll()) != null) {
+            if (transition.count == delivered + 1) {
+                delivered++;
+                return transition;
+            }
+            early.offer(transition);
+        }
+        return null;
+    }
+
+    private void deliver(Transition transition) {
+        Log.info("State updated to: " + transition.newState);
+        for (StateListener listener : listeners) {
+            try {
+                listener.onStateChanged(transition.oldState, transition.newState);
+            } catch (RuntimeException e) {
+                Log.error("State listener failed on " + transition.newState + ".", e);
+            }
+        }
+    }
+
+    private static final class Transition {
+        final long count;
+        final CCPState oldState;
+        final CCPState newState;
+
+        Transition(long count, CCPState oldState, CCPState newState) {
+            this.count = count;
+            this.oldState = oldState;
+            this.newState = newState;
+        }
     }
 }
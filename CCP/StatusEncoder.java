@@ -0,0 +1,192 @@
+package CCP;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.json.JSONObject;
+
+// Writes the CCP's four-field status message {client_type, message, client_id,
+// timestamp} straight into a reused byte buffer, byte for byte what
+// JSONProcessor.encodeMessage builds with a JSONObject. JSONObject is a HashMap,
+// so its key order comes from the key hashes. That order is taken from org.json
+// once, when the class loads, rather than written down here. The keys, the
+// client_type and client_id and every known message and action name are encoded
+// once as constant fragments, so encoding a status only copies fragments and
+// writes the timestamp digits, with no allocation. Names that are not known are
+// copied when they need no escaping, and anything else is left to org.json.
+//
+// One instance per sender. It is not thread-safe, so callers send from the
+// buffer while they still hold the instance.
+public final class StatusEncoder {
+
+    // The keys in the order JSONProcessor.encodeMessage puts them
+    private static final String[] KEYS = {"client_type", "message", "client_id", "timestamp"};
+    private static final int CLIENT_TYPE = 0;
+    private static final int MESSAGE = 1;
+    private static final int CLIENT_ID = 2;
+    private static final int TIMESTAMP = 3;
+
+    private static final int[] WIRE_ORDER = wireOrder();
+    private static final byte[][] KEY_FRAGMENTS = keyFragments(); // '{"key":' first, then ',"key":'
+    private static final Map<String, byte[]> NAMES = knownNames(); // "STAT" -> '"STAT"'
+
+    private static final int MAX_NAME_LENGTH = 64; // Longer unknown names go through org.json
+    private static final int MAX_LONG_DIGITS = 20;
+
+    private final byte[] clientType;
+    private final byte[] clientId;
+    private final byte[] buffer;
+
+    // When clientType or clientId would need escaping, every encode returns -1
+    public StatusEncoder(String clientType, String clientId) {
+        this.clientType = quote(clientType);
+        this.clientId = quote(clientId);
+        int length = 2 + MAX_NAME_LENGTH + MAX_LONG_DIGITS;
+        for (byte[] key : KEY_FRAGMENTS) {
+            length += key.length;
+        }
+        length += this.clientType == null ? 0 : this.clientType.length;
+        length += this.clientId == null ? 0 : this.clientId.length;
+        this.buffer = new byte[length];
+    }
+
+    // Encodes a status into the buffer and returns its length, or -1 when it needs org.json.
+    // The bytes stay valid until the next call
+    public int encode(String messageName, long timestamp) {
+        if (clientType == null || clientId == null || messageName == null) {
+            return -1;
+        }
+        int pos = 0;
+        for (int i = 0; i < WIRE_ORDER.length; i++) {
+            byte[] key = KEY_FRAGMENTS[i];
+            System.arraycopy(key, 0, buffer, pos, key.length);
+            pos += key.length;
+            switch (WIRE_ORDER[i]) {
+                case CLIENT_TYPE:
+                    pos = copy(clientType, pos);
+                    break;
+                case MESSAGE:
+                    pos = writeName(messageName, pos);
+                    if (pos < 0) {
+                        return -1;
+                    }
+                    break;
+                case CLIENT_ID:
+                    pos = copy(clientId, pos);
+                    break;
+                case TIMESTAMP:
+                    pos = writeLong(timestamp, pos);
+                    break;
+            }
+        }
+        buffer[pos++] = '}';
+        return pos;
+    }
+
+    // The bytes written by the last encode
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    private int copy(byte[] fragment, int pos) {
+        System.arraycopy(fragment, 0, buffer, pos, fragment.length);
+        return pos + fragment.length;
+    }
+
+    private int writeName(String name, int pos) {
+        byte[] known = NAMES.get(name);
+        if (known != null) {
+            return copy(known, pos);
+        }
+        if (name.length() > MAX_NAME_LENGTH || !isPlain(name)) {
+            return -1;
+        }
+        buffer[pos++] = '"';
+        for (int i = 0; i < name.length(); i++) {
+            buffer[pos++] = (byte) name.charAt(i);
+        }
+        buffer[pos++] = '"';
+        return pos;
+    }
+
+    // Decimal digits, as org.json writes a Long
+    private int writeLong(long value, int pos) {
+        if (value == Long.MIN_VALUE) {
+            return copy("-9223372036854775808".getBytes(StandardCharsets.US_ASCII), pos);
+        }
+        if (value < 0) {
+            buffer[pos++] = '-';
+            value = -value;
+        }
+        int start = pos;
+        do {
+            buffer[pos++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        for (int i = start, j = pos - 1; i < j; i++, j--) {
+            byte digit = buffer[i];
+            buffer[i] = buffer[j];
+            buffer[j] = digit;
+        }
+        return pos;
+    }
+
+    // Printable ASCII that JSONObject.quote leaves as it is
+    private static boolean isPlain(String value) {
+        char previous = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x20 || c > 0x7E || c == '"' || c == '\\' || (c == '/' && previous == '<')) {
+                return false;
+            }
+            previous = c;
+        }
+        return true;
+    }
+
+    private static byte[] quote(String value) {
+        return value == null || !isPlain(value) ? null : ('"' + value + '"').getBytes(StandardCharsets.US_ASCII);
+    }
+
+    // Indexes into KEYS in the order JSONObject.toString writes them
+    private static int[] wireOrder() {
+        JSONObject probe = new JSONObject();
+        for (String key : KEYS) {
+            probe.put(key, 0);
+        }
+        String text = probe.toString();
+        Integer[] order = new Integer[KEYS.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingInt(i -> text.indexOf('"' + KEYS[i] + "\":")));
+        int[] result = new int[order.length];
+        for (int i = 0; i < order.length; i++) {
+            result[i] = order[i];
+        }
+        return result;
+    }
+
+    private static byte[][] keyFragments() {
+        byte[][] fragments = new byte[WIRE_ORDER.length][];
+        for (int i = 0; i < WIRE_ORDER.length; i++) {
+            String fragment = (i == 0 ? "{" : ",") + '"' + KEYS[WIRE_ORDER[i]] + "\":";
+            fragments[i] = fragment.getBytes(StandardCharsets.US_ASCII);
+        }
+        return fragments;
+    }
+
+    private static Map<String, byte[]> knownNames() {
+        Map<String, byte[]> names = new HashMap<>();
+        for (MessageType type : MessageType.values()) {
+            names.put(type.name(), quote(type.name()));
+        }
+        for (Action action : Action.values()) {
+            names.put(action.name(), quote(action.name()));
+        }
+        return names;
+    }
+}
@@ -0,0 +1,64 @@
+package CCP;
+
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+
+// Message timestamps as epoch millis, cheap enough to stamp every heartbeat.
+// The wall clock is read once and later times are worked out from
+// System.nanoTime, so a timestamp costs one nanoTime call and no allocation.
+// It is re-read every minute to follow NTP corrections, but only ever moves the
+// timestamps forward, so they never go backwards. Timestamps travel as numbers.
+// format turns one into ISO-8601 UTC for logs and display.
+public final class Timestamps {
+
+    private static final long RESYNC_NANOS = 60_000_000_000L;
+
+    private static volatile Anchor anchor = new Anchor(System.currentTimeMillis(), System.nanoTime());
+
+    private Timestamps() {
+    }
+
+    // Current time in epoch millis
+    public static long nowMillis() {
+        long nanos = System.nanoTime();
+        Anchor current = anchor;
+        long elapsedNanos = nanos - current.nanos;
+        long millis = current.epochMillis + elapsedNanos / 1_000_000L;
+        if (elapsedNanos > RESYNC_NANOS) {
+            anchor = new Anchor(Math.max(System.currentTimeMillis(), millis), nanos);
+        }
+        return millis;
+    }
+
+    // ISO-8601 in UTC, e.g. 2024-10-01T09:30:00.125Z
+    public static String format(long epochMillis) {
+        return Instant.ofEpochMilli(epochMillis).toString();
+    }
+
+    // Reads an ISO timestamp as older peers sent it, with or without a zone. 0 when unreadable
+    public static long parse(String text) {
+        try {
+            return Instant.parse(text).toEpochMilli();
+        } catch (DateTimeException e) {
+            // No zone: the local date-time string JSONProcessor used to send
+        }
+        try {
+            return LocalDateTime.parse(text).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        } catch (DateTimeException e) {
+            return 0;
+        }
+    }
+
+    // Wall-clock time at one System.nanoTime value
+    private static final class Anchor {
+        private final long epochMillis;
+        private final long nanos;
+
+        private Anchor(long epochMillis, long nanos) {
+            this.epochMillis = epochMillis;
+            this.nanos = nanos;
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package CCP;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Records when a traced command passes each hop on its way from the MCP to the
+// ESP32. The MCP stamps a command with its System.nanoTime when it first sends
+// it, and that stamp travels in the message, so the MCP, the CCP and the ESP32
+// emulator can each record their hops against the same command. Every event
+// is stamped with the local monotonic clock and names that clock, and
+// TraceReport only subtracts stamps taken on the same clock: in one JVM, as in
+// ScenarioRunner, every hop is measured, and across machines each process's
+// own spans still are. Wall-clock time is never used.
+//
+// Events go into a fixed-size ring, so recording never blocks or grows, and the
+// oldest events are overwritten once it is full.
+public class TraceRecorder {
+
+    // Hops in the order a command passes them. MCP_ACKED is the end of the round trip, not of the path
+    public enum Hop {
+        MCP_SENT, CCP_RECEIVED, CCP_DISPATCHED, ESP_FORWARDED, ESP_RECEIVED, ESP_ACTUATED, MCP_ACKED
+    }
+
+    // Clock shared by everything in this JVM, e.g. "4242@host"
+    public static final String LOCAL_CLOCK = ManagementFactory.getRuntimeMXBean().getName().replace(' ', '_');
+
+    // Directory MCP.main and CCP.main write their traces to on exit, tracing is off when unset
+    public static final String DIR_PROPERTY = "bladerunner.trace.dir";
+
+    private static final int DEFAULT_CAPACITY = 1 << 16;
+
+    // One command passing one hop
+    public static final class Event {
+        private final String clock;
+        private final String ccpId;
+        private final int sequence;
+        private final long traceNanos; // The MCP's stamp, which tells apart commands that reuse a sequence
+        private final Hop hop;
+        private final long nanos;
+
+        Event(String clock, String ccpId, int sequence, long traceNanos, Hop hop, long nanos) {
+            this.clock = clock;
+            this.ccpId = ccpId;
+            this.sequence = sequence;
+            this.traceNanos = traceNanos;
+            this.hop = hop;
+            this.nanos = nanos;
+        }
+
+        // Reads a line written by toString
+        public static Event parse(String line) {
+            String[] fields = line.trim().split(" ");
+            if (fields.length != 6) {
+                throw new IllegalArgumentException("Not a trace event: " + line);
+            }
+            return new Event(fields[0], fields[1], Integer.parseInt(fields[2]), Long.parseLong(fields[3]),
+                    Hop.valueOf(fields[4]), Long.parseLong(fields[5]));
+        }
+
+        public String getClock() {
+            return clock;
+        }
+
+        public String getCcpId() {
+            return ccpId;
+        }
+
+        public int getSequence() {
+            return sequence;
+        }
+
+        public long getTraceNanos() {
+            return traceNanos;
+        }
+
+        public Hop getHop() {
+            return hop;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+
+        // "clock ccpId sequence trace hop nanos"
+        @Override
+        public String toString() {
+            return clock + " " + ccpId + " " + sequence + " " + traceNanos + " " + hop + " " + nanos;
+        }
+    }
+
+    private final String clock;
+    private final AtomicReferenceArray<Event> ring;
+    private final AtomicLong recorded = new AtomicLong();
+
+    public TraceRecorder() {
+        this(LOCAL_CLOCK, DEFAULT_CAPACITY);
+    }
+
+    public TraceRecorder(String clock, int capacity) {
+        this.clock = clock;
+        this.ring = new AtomicReferenceArray<>(capacity);
+    }
+
+    // Records a hop now. Untraced messages are ignored
+    public void record(Hop hop, McpMessage message) {
+        if (message.isTraced()) {
+            record(hop, message, System.nanoTime());
+        }
+    }
+
+    // Records a hop at a System.nanoTime taken earlier, e.g. when the datagram arrived
+    public void record(Hop hop, McpMessage message, long nanos) {
+        if (!message.isTraced()) {
+            return;
+        }
+        long index = recorded.getAndIncrement();
+        ring.set((int) (index % ring.length()),
+                new Event(clock, message.getClientId(), message.getSequence(), message.getTraceNanos(), hop, nanos));
+    }
+
+    // Events still in the ring, oldest first
+    public List<Event> getEvents() {
+        long end = recorded.get();
+        long start = Math.max(0, end - ring.length());
+        List<Event> events = new ArrayList<>((int) (end - start));
+        for (long i = start; i < end; i++) {
+            Event event = ring.get((int) (i % ring.length()));
+            if (event != null) {
+                events.add(event);
+            }
+        }
+        return events;
+    }
+
+    // Events overwritten before they were read
+    public long getOverwritten() {
+        return Math.max(0, recorded.get() - ring.length());
+    }
+
+    public void writeTo(Writer out) throws IOException {
+        for (Event event : getEvents()) {
+            out.write(event.toString());
+            out.write('\n');
+        }
+        out.flush();
+    }
+
+    // Reads a file written by writeTo
+    public static List<Event> read(Path file) throws IOException {
+        List<Event> events = new ArrayList<>();
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            if (!line.isBlank()) {
+                events.add(Event.parse(line));
+            }
+        }
+        return events;
+    }
+
+    // True when DIR_PROPERTY asks for traces to be written
+    public static boolean isConfigured() {
+        return System.getProperty(DIR_PROPERTY) != null;
+    }
+
+    // Writes the recorder to <DIR_PROPERTY>/<name>.trace when the JVM exits
+    public static void writeOnExit(TraceRecorder recorder, String name) {
+        Path file = Paths.get(System.getProperty(DIR_PROPERTY, "."), name + ".trace");
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try (BufferedWriter out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+                recorder.writeTo(out);
+            } catch (IOException e) {
+                Log.warn("Failed to write trace " + file + ": " + e.getMessage());
+            }
+        }, "trace-writer"));
+    }
+}
@@ -0,0 +1,163 @@
+package CCP;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Breaks command latency down by hop from the events of one or more
+// TraceRecorders. Events are joined per command (carriage, sequence and the
+// MCP's trace stamp), and each stage is the time between two consecutive hops
+// the command was seen at. Stages whose two hops were stamped on different
+// clocks are counted but not measured. MCP_SENT -> MCP_ACKED is reported on its
+// own as the round trip the MCP sees.
+//
+// Usage: java CCP.TraceReport mcp.trace ccp-BR1.trace ccp-BR2.trace ...
+public class TraceReport {
+
+    private static final TraceRecorder.Hop[] PATH = Arrays.copyOf(TraceRecorder.Hop.values(),
+            TraceRecorder.Hop.MCP_ACKED.ordinal());
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.out.println("Usage: java CCP.TraceReport <trace file>...");
+            return;
+        }
+        List<TraceRecorder.Event> events = new ArrayList<>();
+        for (String file : args) {
+            events.addAll(TraceRecorder.read(Paths.get(file)));
+        }
+        System.out.print(report(events));
+    }
+
+    // The report for a set of events, as printed by main
+    public static String report(Collection<TraceRecorder.Event> events) {
+        Map<String, Map<TraceRecorder.Hop, TraceRecorder.Event>> commands = join(events);
+        Map<String, Stage> stages = new LinkedHashMap<>();
+        Stage endToEnd = new Stage("MCP_SENT -> furthest hop");
+        Stage roundTrip = new Stage("MCP_SENT -> MCP_ACKED");
+        int[] reached = new int[TraceRecorder.Hop.values().length];
+
+        for (Map<TraceRecorder.Hop, TraceRecorder.Event> hops : commands.values()) {
+            for (TraceRecorder.Hop hop : hops.keySet()) {
+                reached[hop.ordinal()]++;
+            }
+            TraceRecorder.Event previous = null;
+            for (TraceRecorder.Hop hop : PATH) {
+                TraceRecorder.Event event = hops.get(hop);
+                if (event == null) {
+                    continue;
+                }
+                if (previous != null) {
+                    stages.computeIfAbsent(previous.getHop() + " -> " + hop, Stage::new).add(previous, event);
+                }
+                previous = event;
+            }
+            TraceRecorder.Event sent = hops.get(TraceRecorder.Hop.MCP_SENT);
+            if (sent != null && previous != null && previous != sent) {
+                endToEnd.add(sent, previous);
+            }
+            TraceRecorder.Event acked = hops.get(TraceRecorder.Hop.MCP_ACKED);
+            if (sent != null && acked != null) {
+                roundTrip.add(sent, acked);
+            }
+        }
+
+        StringBuilder out = new StringBuilder();
+        out.append("Traced commands: ").append(commands.size()).append('\n');
+        out.append("Reached:");
+        for (TraceRecorder.Hop hop : TraceRecorder.Hop.values()) {
+            out.append(' ').append(hop).append(' ').append(reached[hop.ordinal()]);
+        }
+        out.append('\n');
+        out.append(String.format("%-36s %7s %10s %10s %10s %10s %7s%n",
+                "Stage", "count", "p50", "p90", "p99", "max", "share"));
+        long totalNanos = 0;
+        for (Stage stage : stages.values()) {
+            totalNanos += stage.sumNanos();
+        }
+        for (Stage stage : stages.values()) {
+            stage.appendTo(out, totalNanos);
+        }
+        endToEnd.appendTo(out, 0);
+        roundTrip.appendTo(out, 0);
+        return out.toString();
+    }
+
+    // Earliest event per hop for each command. Duplicates and retransmits leave the first one
+    private static Map<String, Map<TraceRecorder.Hop, TraceRecorder.Event>> join(Collection<TraceRecorder.Event> events) {
+        Map<String, Map<TraceRecorder.Hop, TraceRecorder.Event>> commands = new LinkedHashMap<>();
+        for (TraceRecorder.Event event : events) {
+            String key = event.getCcpId() + ":" + event.getSequence() + ":" + event.getTraceNanos();
+            Map<TraceRecorder.Hop, TraceRecorder.Event> hops =
+                    commands.computeIfAbsent(key, k -> new EnumMap<>(TraceRecorder.Hop.class));
+            TraceRecorder.Event earlier = hops.get(event.getHop());
+            if (earlier == null || (earlier.getClock().equals(event.getClock()) && event.getNanos() < earlier.getNanos())) {
+                hops.put(event.getHop(), event);
+            }
+        }
+        return commands;
+    }
+
+    // Durations between two hops, across every command that passed both
+    private static final class Stage {
+        private final String name;
+        private long[] nanos = new long[64];
+        private int count;
+        private int otherClock; // Commands whose two hops were timed on different clocks
+
+        private Stage(String name) {
+            this.name = name;
+        }
+
+        private void add(TraceRecorder.Event from, TraceRecorder.Event to) {
+            if (!from.getClock().equals(to.getClock())) {
+                otherClock++;
+                return;
+            }
+            if (count == nanos.length) {
+                nanos = Arrays.copyOf(nanos, count * 2);
+            }
+            nanos[count++] = to.getNanos() - from.getNanos();
+        }
+
+        private long sumNanos() {
+            long sum = 0;
+            for (int i = 0; i < count; i++) {
+                sum += nanos[i];
+            }
+            return sum;
+        }
+
+        private void appendTo(StringBuilder out, long totalNanos) {
+            if (count == 0) {
+                out.append(String.format("%-36s %7d %s%n", name, 0,
+                        otherClock > 0 ? "(" + otherClock + " across clocks, not measured)" : ""));
+                return;
+            }
+            Arrays.sort(nanos, 0, count);
+            out.append(String.format("%-36s %7d %10s %10s %10s %10s %7s", name, count,
+                    millis(percentile(0.50)), millis(percentile(0.90)), millis(percentile(0.99)),
+                    millis(nanos[count - 1]),
+                    totalNanos > 0 ? String.format("%.1f%%", 100.0 * sumNanos() / totalNanos) : ""));
+            if (otherClock > 0) {
+                out.append("  (").append(otherClock).append(" across clocks)");
+            }
+            out.append('\n');
+        }
+
+        private long percentile(double fraction) {
+            int index = (int) Math.ceil(fraction * count) - 1;
+            return nanos[Math.max(0, Math.min(count - 1, index))];
+        }
+
+        private static String millis(long nanos) {
+            return String.format("%.3f ms", nanos / 1_000_000.0);
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package CCP;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+// The MCP's picture of where every carriage is along the track, built from the
+// positions CCPs report in STAT. Carriages are kept in a set ordered by position,
+// so a carriage's nearest neighbours are found in O(log n). When a carriage moves,
+// only it and the carriages that were or now are next to it can see their gaps
+// change, and update returns those whose gaps moved by at least the resolution,
+// so the MCP only tells them.
+public class TrackOccupancy {
+
+    // Distances from one carriage to its nearest neighbours, NO_POSITION when there is none
+    public static final class Gaps {
+        private final int frontMm;
+        private final int rearMm;
+
+        private Gaps(int frontMm, int rearMm) {
+            this.frontMm = frontMm;
+            this.rearMm = rearMm;
+        }
+
+        public int getFrontMm() {
+            return frontMm;
+        }
+
+        public int getRearMm() {
+            return rearMm;
+        }
+
+        // True when the two differ by at least resolutionMm, or a neighbour appeared or left
+        private boolean differsFrom(Gaps other, int resolutionMm) {
+            return other == null
+                    || differs(frontMm, other.frontMm, resolutionMm)
+                    || differs(rearMm, other.rearMm, resolutionMm);
+        }
+
+        private static boolean differs(int a, int b, int resolutionMm) {
+            if (a == McpMessage.NO_POSITION || b == McpMessage.NO_POSITION) {
+                return a != b;
+            }
+            return Math.abs(a - b) >= resolutionMm;
+        }
+
+        @Override
+        public String toString() {
+            return "front " + frontMm + " mm, rear " + rearMm + " mm";
+        }
+    }
+
+    private static final Comparator<Slot> ORDER =
+            Comparator.<Slot>comparingInt(slot -> slot.positionMm).thenComparing(slot -> slot.ccpId);
+
+    private final int loopLengthMm;    // > 0 when the track is a loop of this length, 0 for a line
+    private final int segmentLengthMm; // Segments for CarriageGroup.segment
+    private final int gapResolutionMm; // Smaller gap changes are not reported
+    private final TreeSet<Slot> index = new TreeSet<>(ORDER);
+    private final Map<String, Slot> slots = new HashMap<>();
+    private final Map<String, Gaps> reported = new HashMap<>(); // Gaps each carriage was last told
+
+    public TrackOccupancy(int loopLengthMm, int segmentLengthMm, int gapResolutionMm) {
+        this.loopLengthMm = loopLengthMm;
+        this.segmentLengthMm = segmentLengthMm;
+        this.gapResolutionMm = gapResolutionMm;
+    }
+
+    // Records a carriage's position. Returns the carriages whose gaps changed and should be told
+    public synchronized List<String> update(String ccpId, int positionMm) {
+        if (loopLengthMm > 0) {
+            positionMm = Math.floorMod(positionMm, loopLengthMm);
+        }
+        Set<String> affected = new LinkedHashSet<>();
+        Slot previous = slots.get(ccpId);
+        if (previous != null) {
+            if (previous.positionMm == positionMm) {
+                return new ArrayList<>();
+            }
+            index.remove(previous);
+            addNeighbours(previous, affected);
+        }
+        Slot slot = new Slot(ccpId, positionMm);
+        index.add(slot);
+        slots.put(ccpId, slot);
+        affected.add(ccpId);
+        addNeighbours(slot, affected);
+        return changed(affected);
+    }
+
+    // Forgets a carriage. Returns its former neighbours, whose gaps changed
+    public synchronized List<String> remove(String ccpId) {
+        Slot slot = slots.remove(ccpId);
+        reported.remove(ccpId);
+        if (slot == null) {
+            return new ArrayList<>();
+        }
+        index.remove(slot);
+        Set<String> affected = new LinkedHashSet<>();
+        addNeighbours(slot, affected);
+        return changed(affected);
+    }
+
+    // Current gaps of a carriage, null when its position is unknown
+    public synchronized Gaps getGaps(String ccpId) {
+        Slot slot = slots.get(ccpId);
+        return slot == null ? null : gaps(slot);
+    }
+
+    // Last reported position, NO_POSITION when unknown
+    public synchronized int getPosition(String ccpId) {
+        Slot slot = slots.get(ccpId);
+        return slot == null ? McpMessage.NO_POSITION : slot.positionMm;
+    }
+
+    public int segmentOf(int positionMm) {
+        return Math.floorDiv(positionMm, segmentLengthMm);
+    }
+
+    public synchronized int size() {
+        return slots.size();
+    }
+
+    private void addNeighbours(Slot slot, Set<String> affected) {
+        Slot ahead = ahead(slot);
+        Slot behind = behind(slot);
+        if (ahead != null) {
+            affected.add(ahead.ccpId);
+        }
+        if (behind != null) {
+            affected.add(behind.ccpId);
+        }
+    }
+
+    // Keeps the carriages whose gaps moved past the resolution, and remembers what they are told
+    private List<String> changed(Set<String> candidates) {
+        List<String> changed = new ArrayList<>();
+        for (String ccpId : candidates) {
+            Slot slot = slots.get(ccpId);
+            if (slot == null) {
+                continue;
+            }
+            Gaps gaps = gaps(slot);
+            if (gaps.differsFrom(reported.get(ccpId), gapResolutionMm)) {
+                reported.put(ccpId, gaps);
+                changed.add(ccpId);
+            }
+        }
+        return changed;
+    }
+
+    private Gaps gaps(Slot slot) {
+        Slot ahead = ahead(slot);
+        Slot behind = behind(slot);
+        return new Gaps(ahead == null ? McpMessage.NO_POSITION : distance(slot, ahead),
+                behind == null ? McpMessage.NO_POSITION : distance(behind, slot));
+    }
+
+    // The next carriage forward, wrapping round on a loop. Works for a slot no longer in the index
+    private Slot ahead(Slot slot) {
+        Slot ahead = index.higher(slot);
+        if (ahead == null && loopLengthMm > 0 && !index.isEmpty()) {
+            ahead = index.first();
+        }
+        return ahead == null || ahead.ccpId.equals(slot.ccpId) ? null : ahead;
+    }
+
+    private Slot behind(Slot slot) {
+        Slot behind = index.lower(slot);
+        if (behind == null && loopLengthMm > 0 && !index.isEmpty()) {
+            behind = index.last();
+        }
+        return behind == null || behind.ccpId.equals(slot.ccpId) ? null : behind;
+    }
+
+    private int distance(Slot from, Slot to) {
+        int distance = to.positionMm - from.positionMm;
+        return loopLengthMm > 0 ? Math.floorMod(distance, loopLengthMm) : distance;
+    }
+
+    // One carriage's place in the index
+    private static final class Slot {
+        private final String ccpId;
+        private final int positionMm;
+
+        private Slot(String ccpId, int positionMm) {
+            this.ccpId = ccpId;
+            this.positionMm = positionMm;
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package CCP;
+
+import java.util.Locale;
+
+// How a CCP receives from the MCP and the ESP32. UDP blocks a listener thread
+// per socket; NIO serves the MCP socket, any group socket and the ESP32 socket
+// from one event-loop thread. Chosen with -Dbladerunner.transport=nio, UDP by default.
+public enum Transport {
+    UDP,
+    NIO;
+
+    public static final String PROPERTY = "bladerunner.transport";
+
+    // The transport set by the system property, or UDP when it is not set
+    public static Transport configured() {
+        String value = System.getProperty(PROPERTY);
+        return value == null ? UDP : valueOf(value.trim().toUpperCase(Locale.ROOT));
+    }
+}
@@ -3,6 +3,13 @@ package CCP;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.Enumeration;
+import java.util.concurrent.ThreadFactory;
 
 public class UDPCommunicationHandler implements CommunicationHandler {
 
@@ -10,43 +17,158 @@ public class UDPCommunicationHandler implements CommunicationHandler {
     private InetAddress mcpAddress;
     private int mcpPort;
     private MessageListener messageListener;
+    private ThreadFactory threadFactory;
+    private DatagramSocket groupSocket; // Receives group commands, null until joinGroup
+    private volatile Metrics.Histogram parseTime;    // Null until registerMetrics
+    private volatile Metrics.Counter malformedMessages;
+    private volatile Metrics.Counter messagesSent;
 
     // Constructor
     public UDPCommunicationHandler(String mcpAddress, int mcpPort,
                                    String ccpAddress, int ccpPort,
                                    MessageListener listener) throws Exception {
+        this(mcpAddress, mcpPort, ccpAddress, ccpPort, listener, Thread::new);
+    }
+
+    // Constructor with the factory used to create the listener thread
+    public UDPCommunicationHandler(String mcpAddress, int mcpPort,
+                                   String ccpAddress, int ccpPort,
+                                   MessageListener listener, ThreadFactory threadFactory) throws Exception {
         this.mcpAddress = InetAddress.getByName(mcpAddress);
         this.mcpPort = mcpPort;
         this.socket = new DatagramSocket(ccpPort, InetAddress.getByName(ccpAddress));
         this.messageListener = listener;
+        this.threadFactory = threadFactory;
 
         // Start listening for incoming messages in a new thread
-        new Thread(this::listenForMessages).start();
+        threadFactory.newThread(this::listenForMessages).start();
     }
 
     // Sends a message to the MCP
     @Override
     public void sendMessage(String message) throws Exception {
-        byte[] buffer = message.getBytes();
+        byte[] buffer = message.getBytes(StandardCharsets.UTF_8);
         DatagramPacket packet = new DatagramPacket(buffer, buffer.length, mcpAddress, mcpPort);
         socket.send(packet);
-        System.out.println("Message sent to MCP: " + message);
+        countSent();
+        Log.debug(() -> "Message sent to MCP: " + message);
+    }
+
+    // Sends a binary encoded message to the MCP
+    @Override
+    public void sendMessage(byte[] data) throws Exception {
+        sendMessage(data, data.length);
+    }
+
+    // Sends the first length bytes of a reused buffer, e.g. from StatusEncoder
+    @Override
+    public void sendMessage(byte[] data, int length) throws Exception {
+        DatagramPacket packet = new DatagramPacket(data, length, mcpAddress, mcpPort);
+        socket.send(packet);
+        countSent();
+    }
+
+    // Records parse times, malformed datagrams and sends from now on
+    @Override
+    public void registerMetrics(Metrics metrics) {
+        parseTime = metrics.histogram("message_parse_seconds", "Time to decode one received datagram");
+        malformedMessages = metrics.counter("malformed_messages_total", "Datagrams that could not be decoded");
+        messagesSent = metrics.counter("messages_sent_total", "Datagrams sent to the MCP");
+    }
+
+    private void countSent() {
+        Metrics.Counter sent = messagesSent;
+        if (sent != null) {
+            sent.increment();
+        }
+    }
+
+    // Also receives group commands sent to a multicast group, or broadcast when the
+    // address is not a multicast one. Several CCPs on one host can share the port
+    @Override
+    public void joinGroup(String groupAddress, int port) throws Exception {
+        InetAddress group = InetAddress.getByName(groupAddress);
+        if (group.isMulticastAddress()) {
+            MulticastSocket multicastSocket = new MulticastSocket(port);
+            multicastSocket.joinGroup(new InetSocketAddress(group, 0), multicastInterface(socket.getLocalAddress()));
+            groupSocket = multicastSocket;
+        } else {
+            DatagramSocket broadcastSocket = new DatagramSocket(null);
+            broadcastSocket.setReuseAddress(true);
+            broadcastSocket.bind(new InetSocketAddress(port));
+            groupSocket = broadcastSocket;
+        }
+        DatagramSocket joined = groupSocket;
+        threadFactory.newThread(() -> listen(joined)).start();
+        Log.info("Listening for group commands on " + groupAddress + ":" + port);
+    }
+
+    // The interface that carries multicast for a local address: the one that owns it, or
+    // the first multicast-capable interface when bound to the wildcard address
+    public static NetworkInterface multicastInterface(InetAddress localAddress) throws SocketException {
+        if (localAddress != null && !localAddress.isAnyLocalAddress()) {
+            NetworkInterface owner = NetworkInterface.getByInetAddress(localAddress);
+            if (owner != null) {
+                return owner;
+            }
+        }
+        Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+        while (interfaces.hasMoreElements()) {
+            NetworkInterface candidate = interfaces.nextElement();
+            if (candidate.isUp() && candidate.supportsMulticast() && !candidate.isLoopback()) {
+                return candidate;
+            }
+        }
+        return NetworkInterface.getByInetAddress(InetAddress.getLoopbackAddress());
     }
 
     // Listens for incoming messages and notifies the listener
     @Override
     public void listenForMessages() {
+        listen(socket);
+    }
+
+    // One buffer per listener thread: a decoded McpMessage keeps no reference to it
+    private void listen(DatagramSocket receiveSocket) {
+        byte[] buffer = new byte[2048];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
         try {
             while (true) {
-                byte[] buffer = new byte[2048];
-                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-                socket.receive(packet);
+                packet.setLength(buffer.length);
+                receiveSocket.receive(packet);
 
-                String message = new String(packet.getData(), 0, packet.getLength());
+                McpMessage message;
+                long parseStart = System.nanoTime();
+                try {
+                    message = McpMessage.decode(packet.getData(), 0, packet.getLength());
+                } catch (RuntimeException e) {
+                    Metrics.Counter malformed = malformedMessages;
+                    if (malformed != null) {
+                        malformed.increment();
+                    }
+                    Log.warn("Dropping malformed message: " + e.getMessage());
+                    continue;
+                }
+                Metrics.Histogram parse = parseTime;
+                if (parse != null) {
+                    parse.recordSince(parseStart);
+                }
                 messageListener.onMessageReceived(message);
             }
         } catch (Exception e) {
-            e.printStackTrace();
+            if (!receiveSocket.isClosed()) {
+                Log.error("Error listening for MCP messages.", e);
+            }
+        }
+    }
+
+    // Closes the sockets, which ends the listener threads
+    @Override
+    public void close() {
+        socket.close();
+        DatagramSocket joined = groupSocket;
+        if (joined != null) {
+            joined.close();
         }
     }
 }
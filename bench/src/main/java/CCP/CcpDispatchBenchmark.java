@@ -0,0 +1,71 @@
+package CCP;
+
+import java.net.DatagramSocket;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// CCP.processMCPAction for an already decoded message, replies and the ESP32
+// forward included. The MCP and the ESP32 are sockets on localhost that are
+// never read, so sends cost what they cost on the real link and nothing more.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CcpDispatchBenchmark {
+
+    // EXEC is forwarded to the ESP32 and answered, STRQ is answered, GAPS only updates the speed controller
+    @Param({"EXEC", "STRQ", "GAPS"})
+    public String message;
+
+    private DatagramSocket mcpSink;
+    private DatagramSocket espSink;
+    private CCP ccp;
+    private McpMessage received;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        Log.setLevel(Log.Level.WARN);
+        mcpSink = new DatagramSocket(0);
+        espSink = new DatagramSocket(0);
+        ccp = new CCP("BR1", "127.0.0.1", mcpSink.getLocalPort(), "127.0.0.1", 0,
+                "127.0.0.1", espSink.getLocalPort(), 0, 1, ExecutionMode.PLATFORM);
+        switch (message) {
+            case "EXEC":
+                received = McpMessage.exec("MCP", Action.FLASH_LED, "BR1").withSequence(1000);
+                break;
+            case "STRQ":
+                received = McpMessage.of("MCP", MessageType.STRQ, "BR1").withSequence(1000);
+                break;
+            default:
+                received = McpMessage.of("MCP", MessageType.GAPS, "BR1").withGaps(5000, 5000);
+                break;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        ccp.stop();
+        mcpSink.close();
+        espSink.close();
+    }
+
+    @Benchmark
+    public void processMCPAction() {
+        ccp.processMCPAction(received);
+    }
+}
@@ -0,0 +1,66 @@
+package CCP;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// BinaryCodec against JSONProcessor for the messages the MCP and CCP exchange
+// most: a sequenced EXEC and a STAT. Encoding goes all the way to bytes and
+// decoding starts from bytes, as they leave and reach the socket.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CodecBenchmark {
+
+    @Param({"EXEC", "STAT"})
+    public String message;
+
+    private McpMessage typed;
+    private byte[] json;
+    private byte[] binary;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        typed = "EXEC".equals(message)
+                ? McpMessage.exec("MCP", Action.FFASTC, "BR12").withSequence(12345)
+                : McpMessage.of("ccp", MessageType.STAT, "BR12").withTimestamp(Timestamps.nowMillis());
+        json = JSONProcessor.encode(typed).getBytes(StandardCharsets.UTF_8);
+        binary = BinaryCodec.encode(typed);
+    }
+
+    @Benchmark
+    public byte[] encodeJson() {
+        return JSONProcessor.encode(typed).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public byte[] encodeBinary() {
+        return BinaryCodec.encode(typed);
+    }
+
+    // The org.json path on its own, as before the pull parser
+    @Benchmark
+    public McpMessage decodeJson() {
+        return JSONProcessor.decode(new String(json, StandardCharsets.UTF_8));
+    }
+
+    @Benchmark
+    public McpMessage decodeBinary() {
+        return BinaryCodec.decode(binary, 0, binary.length);
+    }
+}
@@ -0,0 +1,52 @@
+package CCP;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+// What one inbound EXEC cost the CCP before and after McpMessage. Before, the
+// transport handed over a String that onMessageReceived, processMCPAction and
+// updateCarriageDetection each parsed into a JSONObject, and decodeMessage
+// parsed and pretty printed once more for the log. Now the datagram is decoded
+// once into an McpMessage, by JsonPullParser, or by org.json when it falls back.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DecodeOnceBenchmark {
+
+    private final byte[] datagram = JSONProcessor.encode(McpMessage.exec("MCP", Action.FFASTC, "BR12")
+            .withSequence(12345)).getBytes(StandardCharsets.UTF_8);
+
+    @Benchmark
+    public void parsedFourTimes(Blackhole blackhole) {
+        String text = new String(datagram, StandardCharsets.UTF_8);
+        blackhole.consume(new JSONObject(text).optString("message"));   // onMessageReceived
+        blackhole.consume(new JSONObject(text).optString("action"));    // processMCPAction
+        blackhole.consume(new JSONObject(text).optString("client_id")); // updateCarriageDetection
+        blackhole.consume(JSONProcessor.decodeMessage(text));           // Pretty printed for the log
+    }
+
+    @Benchmark
+    public McpMessage decodedOnceWithOrgJson() {
+        return JSONProcessor.decode(new String(datagram, StandardCharsets.UTF_8));
+    }
+
+    @Benchmark
+    public McpMessage decodedOnce() {
+        return McpMessage.decode(datagram, 0, datagram.length);
+    }
+}
@@ -0,0 +1,228 @@
+package CCP;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+// Checks JsonPullParser against org.json on mutated messages. The seeds are the
+// messages the MCP, CCPs and ESP32s send, with and without extra keys whose
+// values are strings, numbers, literals and nested objects and arrays. Each
+// input is a seed with a few random edits: bytes deleted, inserted, replaced or
+// swapped, spans repeated, the end cut off, or another extra key spliced in.
+//
+// Whenever JsonPullParser returns a message, JSONProcessor.decode must accept the
+// same text and give the same fields; when it returns null the message goes to
+// org.json anyway, so only the fallback rate is reported. Every unmutated seed
+// must take the fast path, unknown keys or not. Exits with status 1 otherwise.
+//
+// Usage: java -cp bench/target/benchmarks.jar CCP.DifferentialDecodeTest [--inputs 200000]
+//        [--seed 1] [--max-edits 3]
+public class DifferentialDecodeTest {
+
+    private static final int MAX_REPORTED = 10;
+
+    // Values for keys no message field is read from, spliced into the seeds
+    private static final String[] EXTRA_VALUES = {
+            "\"text\"", "\"esc\\\"aped \\\\ \\/ \\b\\f\\n\\r\\t \\u00e9\\uD83D\\uDE00\"", "\"été ☃\"", "\"\"",
+            "0", "-0", "42", "-17", "3.25", "-0.5e-3", "1E+9", "12345678901234567890123", "true", "false", "null",
+            "{}", "[]", "[1,2,3]", "{\"a\":1,\"b\":[true,false,null],\"c\":{\"d\":\"e\"}}",
+            "[{\"x\":[[[]]]},\"y\",-1.5,{\"z\":{}}]", " { \"k\" : [ 1 , { } ] } "
+    };
+    private static final String[] EXTRA_KEYS = {"extra", "note", "trace", "", "client", "meta", "z"};
+    private static final byte[] INTERESTING = "{}[]\",:\\ \t\n0123456789-+.eEtrufalsné".getBytes(StandardCharsets.UTF_8);
+
+    private final Random random;
+    private final int maxEdits;
+    private final List<String> mismatches = new ArrayList<>();
+    private int mismatchCount;
+    private int fastPath;
+    private int fellBack;
+    private int rejected; // Fell back, and org.json rejected the text too
+
+    private DifferentialDecodeTest(long seed, int maxEdits) {
+        this.random = new Random(seed);
+        this.maxEdits = maxEdits;
+    }
+
+    public static void main(String[] args) {
+        Map<String, String> options = parseOptions(args);
+        Log.setLevel(Log.Level.ERROR);
+        int inputs = intOption(options, "inputs", 200_000);
+        long seed = Long.parseLong(options.getOrDefault("seed", "1"));
+        DifferentialDecodeTest test = new DifferentialDecodeTest(seed, intOption(options, "max-edits", 3));
+        System.exit(test.run(inputs) ? 0 : 1);
+    }
+
+    private boolean run(int inputs) {
+        List<String> seeds = seeds();
+        int seedsOnFastPath = 0;
+        for (String seed : seeds) {
+            byte[] data = seed.getBytes(StandardCharsets.UTF_8);
+            if (JsonPullParser.parse(data, 0, data.length) != null) {
+                seedsOnFastPath++;
+            } else {
+                mismatches.add("Seed fell back: " + seed);
+            }
+            check(data);
+        }
+        for (int i = 0; i < inputs; i++) {
+            check(mutate(seeds.get(random.nextInt(seeds.size())).getBytes(StandardCharsets.UTF_8)));
+        }
+
+        int total = inputs + seeds.size();
+        System.out.println("Seeds on the fast path: " + seedsOnFastPath + " of " + seeds.size());
+        System.out.println(String.format("Inputs %d: fast path %d (%.1f%%), fell back %d, of which org.json rejected %d",
+                total, fastPath, 100.0 * fastPath / total, fellBack, rejected));
+        System.out.println("Mismatches: " + mismatchCount);
+        for (String mismatch : mismatches) {
+            System.out.println("  " + mismatch);
+        }
+        return mismatches.isEmpty();
+    }
+
+    private void check(byte[] data) {
+        McpMessage fast = JsonPullParser.parse(data, 0, data.length);
+        String text = new String(data, StandardCharsets.UTF_8);
+        McpMessage expected;
+        try {
+            expected = JSONProcessor.decode(text);
+        } catch (RuntimeException e) {
+            expected = null;
+        }
+        if (fast == null) {
+            fellBack++;
+            if (expected == null) {
+                rejected++;
+            }
+            return;
+        }
+        fastPath++;
+        String got = describe(fast);
+        String want = expected == null ? "rejected by org.json" : describe(expected);
+        if (!got.equals(want)) {
+            mismatchCount++;
+            if (mismatches.size() < MAX_REPORTED) {
+                mismatches.add(text + "\n    fast path " + got + "\n    org.json  " + want);
+            }
+        }
+    }
+
+    private static String describe(McpMessage message) {
+        return message.getType() + " " + message.getMessageName() + " type=" + message.getClientType()
+                + " id=" + message.getClientId() + " action=" + message.getAction()
+                + " status=" + message.getStatus() + " seq=" + message.getSequence()
+                + " ts=" + message.getTimestamp() + " codec=" + message.getCodec()
+                + " mask=" + message.getAckMask() + " pos=" + message.getPositionMm()
+                + " gaps=" + message.getFrontGapMm() + "/" + message.getRearGapMm()
+                + " trace=" + message.getTraceNanos() + " epoch=" + message.getStreamEpoch()
+                + " group=" + message.getGroupSequence() + " steps=" + message.getSteps();
+    }
+
+    private List<String> seeds() {
+        List<McpMessage> messages = List.of(
+                McpMessage.exec("MCP", Action.FFASTC, "BR12").withSequence(12345),
+                McpMessage.exec("MCP", Action.IRLD, "BR3").withSequence(7).withStatus("ON"),
+                McpMessage.exec("MCP", Action.CLEAR_HAZARD, "BR1").withSequence(0).withTrace(123456789L),
+                McpMessage.actionStatus("ccp", Action.STOPC, "BR7"),
+                McpMessage.builder("ccp", MessageType.ACK).clientId("BR2").sequence(40).ackMask(0x5).build(),
+                McpMessage.builder("MCP", MessageType.AKIN).clientId("BR4").streamEpoch(9).groupSequence(3).build(),
+                McpMessage.builder("MCP", MessageType.GAPS).clientId("BR5").gaps(1200, McpMessage.NO_POSITION).build(),
+                McpMessage.builder("ccp", MessageType.STAT).clientId("BR6").status("STOPPED").positionMm(4500)
+                        .timestamp(1760000000000L).build());
+        List<String> seeds = new ArrayList<>();
+        for (McpMessage message : messages) {
+            String json = JSONProcessor.encode(message);
+            seeds.add(json);
+            for (String value : EXTRA_VALUES) {
+                seeds.add(withExtraKey(json, EXTRA_KEYS[seeds.size() % EXTRA_KEYS.length], value));
+            }
+        }
+        return seeds;
+    }
+
+    // The message with one more key, first or last
+    private String withExtraKey(String json, String key, String value) {
+        String pair = "\"" + key + "\":" + value;
+        return random.nextBoolean()
+                ? "{" + pair + "," + json.substring(1)
+                : json.substring(0, json.length() - 1) + "," + pair + "}";
+    }
+
+    private byte[] mutate(byte[] data) {
+        int edits = 1 + random.nextInt(maxEdits);
+        for (int i = 0; i < edits; i++) {
+            data = edit(data);
+        }
+        return data;
+    }
+
+    private byte[] edit(byte[] data) {
+        int at = random.nextInt(data.length + 1);
+        switch (random.nextInt(7)) {
+            case 0: // Delete a byte
+                return at < data.length ? splice(data, at, 1, new byte[0]) : data;
+            case 1: // Insert a byte
+                return splice(data, at, 0, new byte[] {randomByte()});
+            case 2: // Replace a byte
+                return at < data.length ? splice(data, at, 1, new byte[] {randomByte()}) : data;
+            case 3: // Swap two bytes
+                if (at + 1 < data.length) {
+                    byte[] swapped = data.clone();
+                    swapped[at] = data[at + 1];
+                    swapped[at + 1] = data[at];
+                    return swapped;
+                }
+                return data;
+            case 4: { // Repeat a span, which often repeats a key
+                int length = Math.min(data.length - Math.min(at, data.length), 1 + random.nextInt(24));
+                byte[] span = new byte[length];
+                System.arraycopy(data, Math.min(at, data.length), span, 0, length);
+                return splice(data, random.nextInt(data.length + 1), 0, span);
+            }
+            case 5: // Cut off the end
+                return splice(data, at, data.length - at, new byte[0]);
+            default: { // Another extra key after an opening brace
+                String pair = "\"" + EXTRA_KEYS[random.nextInt(EXTRA_KEYS.length)] + "\":"
+                        + EXTRA_VALUES[random.nextInt(EXTRA_VALUES.length)] + ",";
+                for (int i = at; i < data.length; i++) {
+                    if (data[i] == '{') {
+                        return splice(data, i + 1, 0, pair.getBytes(StandardCharsets.UTF_8));
+                    }
+                }
+                return data;
+            }
+        }
+    }
+
+    private byte randomByte() {
+        return random.nextInt(4) == 0 ? (byte) random.nextInt(256) : INTERESTING[random.nextInt(INTERESTING.length)];
+    }
+
+    private static byte[] splice(byte[] data, int at, int remove, byte[] insert) {
+        byte[] result = new byte[data.length - remove + insert.length];
+        System.arraycopy(data, 0, result, 0, at);
+        System.arraycopy(insert, 0, result, at, insert.length);
+        System.arraycopy(data, at + remove, result, at + insert.length, data.length - at - remove);
+        return result;
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--")) {
+                throw new IllegalArgumentException("Unexpected argument: " + args[i]);
+            }
+            String key = args[i].substring(2);
+            boolean hasValue = i + 1 < args.length && !args[i + 1].startsWith("--");
+            options.put(key, hasValue ? args[++i] : "true");
+        }
+        return options;
+    }
+
+    private static int intOption(Map<String, String> options, String key, int defaultValue) {
+        return options.containsKey(key) ? Integer.parseInt(options.get(key)) : defaultValue;
+    }
+}
@@ -0,0 +1,187 @@
+package CCP;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Runs N CCPs on localhost in each ExecutionMode and drives them with EXECs
+// from a stand-in MCP, which answers CCIN with AKIN and STRQ with AKST and
+// ignores everything else. Every CCP forwards to one ESP32 sink that counts
+// the sequenced EXECs reaching it. For each mode the test reports how many
+// commands got through, the throughput, and the live and peak JVM thread
+// counts, so the cost of a thread per carriage shows against virtual threads.
+//
+// VIRTUAL needs JDK 21 or later. On older JDKs ExecutionMode falls back to
+// platform threads, one per command, and the report says so.
+//
+// Usage: java -cp bench/target/benchmarks.jar CCP.ExecutionModeLoadTest [--carriages 1000]
+//        [--commands 100000] [--modes PLATFORM,VIRTUAL] [--first-port 20000] [--settle 5000]
+public class ExecutionModeLoadTest {
+
+    private static final int SOCKET_BUFFER_BYTES = 4 << 20;
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        Log.setLevel(Log.Level.WARN);
+        int carriages = intOption(options, "carriages", 1000);
+        int commands = intOption(options, "commands", 100_000);
+        int firstPort = intOption(options, "first-port", 20_000);
+        long settleMillis = intOption(options, "settle", 5000);
+        System.out.println("Load: " + carriages + " carriages, " + commands + " commands, JDK "
+                + Runtime.version().feature() + (ExecutionMode.isVirtualThreadSupported()
+                ? "" : ", no virtual threads (VIRTUAL falls back to platform threads)"));
+        for (String mode : options.getOrDefault("modes", "PLATFORM,VIRTUAL").split(",")) {
+            run(ExecutionMode.valueOf(mode.trim()), carriages, commands, firstPort, settleMillis);
+        }
+        System.exit(0);
+    }
+
+    private static void run(ExecutionMode mode, int carriages, int commands, int firstPort,
+                            long settleMillis) throws Exception {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        threads.resetPeakThreadCount();
+        int threadsBefore = threads.getThreadCount();
+
+        try (DatagramSocket mcp = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+             DatagramSocket esp = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+            mcp.setReceiveBufferSize(SOCKET_BUFFER_BYTES);
+            esp.setReceiveBufferSize(SOCKET_BUFFER_BYTES);
+            AtomicInteger initiated = new AtomicInteger();
+            AtomicLong delivered = new AtomicLong();
+            AtomicLong lastArrival = new AtomicLong();
+            daemon(() -> answerAsMcp(mcp, initiated), "load-mcp").start();
+            daemon(() -> countAtEsp(esp, delivered, lastArrival), "load-esp").start();
+
+            List<CCP> ccps = new ArrayList<>();
+            for (int i = 0; i < carriages; i++) {
+                CCP ccp = new CCP("BR" + (i + 1), "127.0.0.1", mcp.getLocalPort(), "127.0.0.1", firstPort + i,
+                        "127.0.0.1", esp.getLocalPort(), 0, 1, mode);
+                ccps.add(ccp);
+                ccp.connect();
+            }
+            long deadline = System.currentTimeMillis() + settleMillis;
+            while (initiated.get() < carriages && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            int idleThreads = threads.getThreadCount();
+
+            InetAddress loopback = InetAddress.getLoopbackAddress();
+            int[] sequences = new int[carriages];
+            long started = System.nanoTime();
+            for (int n = 0; n < commands; n++) {
+                int carriage = n % carriages;
+                byte[] data = JSONProcessor.encode(McpMessage.exec("MCP", Action.FLASH_LED, "BR" + (carriage + 1))
+                        .withSequence(++sequences[carriage])).getBytes(StandardCharsets.UTF_8);
+                mcp.send(new DatagramPacket(data, data.length, loopback, firstPort + carriage));
+            }
+            long sentNanos = System.nanoTime() - started;
+
+            // Done once everything arrived, or nothing arrived for a second
+            long lastCount = -1;
+            deadline = System.currentTimeMillis() + settleMillis;
+            while (delivered.get() < commands && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1000);
+                if (delivered.get() == lastCount) {
+                    break;
+                }
+                lastCount = delivered.get();
+            }
+            long elapsedNanos = Math.max(lastArrival.get() - started, sentNanos);
+
+            System.out.println();
+            System.out.println(mode + ":");
+            System.out.println("  Registered:         " + initiated.get() + " of " + carriages);
+            System.out.println("  Reached ESP32:      " + delivered.get() + " of " + commands);
+            System.out.println(String.format("  Throughput:         %.0f commands/s (sent in %d ms)",
+                    delivered.get() * 1e9 / elapsedNanos, sentNanos / 1_000_000L));
+            System.out.println("  Threads:            " + (idleThreads - threadsBefore) + " live while idle, "
+                    + (threads.getPeakThreadCount() - threadsBefore) + " at peak");
+
+            for (CCP ccp : ccps) {
+                ccp.stop();
+            }
+        }
+    }
+
+    // Stands in for the MCP: AKIN for CCIN so the command stream starts at 1, AKST for heartbeats
+    private static void answerAsMcp(DatagramSocket socket, AtomicInteger initiated) {
+        byte[] buffer = new byte[2048];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        try {
+            while (true) {
+                packet.setLength(buffer.length);
+                socket.receive(packet);
+                McpMessage message = McpMessage.decode(buffer, 0, packet.getLength());
+                if (message == null) {
+                    continue;
+                }
+                if (message.getType() == MessageType.CCIN) {
+                    initiated.incrementAndGet();
+                    reply(socket, packet.getSocketAddress(),
+                            McpMessage.of("MCP", MessageType.AKIN, message.getClientId()).withSequence(1));
+                } else if (message.getType() == MessageType.STRQ) {
+                    reply(socket, packet.getSocketAddress(), McpMessage.of("MCP", MessageType.AKST, message.getClientId()));
+                }
+            }
+        } catch (Exception e) {
+            // Closed at the end of the run
+        }
+    }
+
+    private static void reply(DatagramSocket socket, SocketAddress to, McpMessage message) throws Exception {
+        byte[] data = JSONProcessor.encode(message).getBytes(StandardCharsets.UTF_8);
+        socket.send(new DatagramPacket(data, data.length, to));
+    }
+
+    // Counts the commands the CCPs forward, leaving out the unsequenced STOPC a CCP sends when the MCP goes silent
+    private static void countAtEsp(DatagramSocket socket, AtomicLong delivered, AtomicLong lastArrival) {
+        byte[] buffer = new byte[2048];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        try {
+            while (true) {
+                packet.setLength(buffer.length);
+                socket.receive(packet);
+                McpMessage message = McpMessage.decode(buffer, 0, packet.getLength());
+                if (message != null && message.getType() == MessageType.EXEC && message.hasSequence()) {
+                    delivered.incrementAndGet();
+                    lastArrival.set(System.nanoTime());
+                }
+            }
+        } catch (Exception e) {
+            // Closed at the end of the run
+        }
+    }
+
+    private static Thread daemon(Runnable task, String name) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--")) {
+                throw new IllegalArgumentException("Unexpected argument: " + args[i]);
+            }
+            String key = args[i].substring(2);
+            boolean hasValue = i + 1 < args.length && !args[i + 1].startsWith("--");
+            options.put(key, hasValue ? args[++i] : "true");
+        }
+        return options;
+    }
+
+    private static int intOption(Map<String, String> options, String key, int defaultValue) {
+        return options.containsKey(key) ? Integer.parseInt(options.get(key)) : defaultValue;
+    }
+}
@@ -0,0 +1,200 @@
+package CCP;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Command fan-out from one MCP socket as the number of carriages grows. For
+// each carriage count an MCP is started on port 2000 and that many stand-in
+// carriages register with CCIN, each from its own socket. They speak the
+// binary codec, acknowledge every EXEC through a SequenceWindow as a CCP
+// does, and send a heartbeat every second. The MCP then sends EXECs round
+// robin as fast as it can. The test reports send throughput, the send
+// latency percentiles, and how many commands were acknowledged.
+//
+// Usage: java -cp bench/target/benchmarks.jar CCP.FanOutLoadTest [--carriages 10,100,500,1000]
+//        [--commands 50000] [--settle 3000]
+public class FanOutLoadTest {
+
+    private static final InetSocketAddress MCP_ADDRESS = new InetSocketAddress("127.0.0.1", 2000);
+    private static final long HEARTBEAT_MILLIS = 1000;
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        Log.setLevel(Log.Level.WARN);
+        int commands = intOption(options, "commands", 50_000);
+        long settleMillis = intOption(options, "settle", 3000);
+        System.out.println(String.format("%10s %12s %10s %10s %10s %12s %12s", "carriages", "commands/s",
+                "p50 us", "p99 us", "max us", "acknowledged", "retransmits"));
+        for (String count : options.getOrDefault("carriages", "10,100,500,1000").split(",")) {
+            run(Integer.parseInt(count.trim()), commands, settleMillis);
+        }
+        System.exit(0);
+    }
+
+    private static void run(int carriages, int commands, long settleMillis) throws Exception {
+        MCP mcp = new MCP();
+        Thread listener = new Thread(mcp::listenForMessages, "fan-out-mcp-listener");
+        listener.setDaemon(true);
+        listener.start();
+        Carriages sinks = new Carriages(carriages);
+        Thread sinkThread = new Thread(sinks, "fan-out-carriages");
+        sinkThread.setDaemon(true);
+        sinkThread.start();
+
+        long deadline = System.currentTimeMillis() + settleMillis;
+        while (mcp.getCarriageRegistry().size() < carriages && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        List<String> ids = new ArrayList<>(mcp.getCarriageRegistry().getCarriageIds());
+
+        Metrics.Histogram sendTime = new Metrics.Histogram();
+        long started = System.nanoTime();
+        for (int n = 0; n < commands; n++) {
+            long sendStart = System.nanoTime();
+            mcp.sendFlashLedCommand(ids.get(n % ids.size()));
+            sendTime.recordSince(sendStart);
+        }
+        long elapsedNanos = System.nanoTime() - started;
+
+        ReliableSender sender = mcp.getReliableSender();
+        int outstanding = 0;
+        deadline = System.currentTimeMillis() + settleMillis;
+        do {
+            Thread.sleep(50);
+            outstanding = 0;
+            for (String id : ids) {
+                outstanding += sender.getOutstanding(id);
+            }
+        } while (outstanding > 0 && System.currentTimeMillis() < deadline);
+
+        System.out.println(String.format("%10d %12.0f %10.1f %10.1f %10.1f %11.2f%% %12d", ids.size(),
+                commands * 1e9 / elapsedNanos, sendTime.getPercentile(0.50) / 1000.0,
+                sendTime.getPercentile(0.99) / 1000.0, sendTime.getPercentile(1.0) / 1000.0,
+                100.0 * (commands - outstanding) / commands, sender.getRetransmitCount()));
+
+        sinks.close();
+        mcp.close();
+        listener.join(1000); // Port 2000 is only released once the blocked receive returns
+    }
+
+    // Stand-in CCPs, all served by one selector thread
+    private static final class Carriages implements Runnable {
+        private final Selector selector = Selector.open();
+        private final ByteBuffer buffer = ByteBuffer.allocate(2048);
+        private final byte[] bytes = new byte[2048];
+        private final List<Carriage> carriages = new ArrayList<>();
+        private volatile boolean running = true;
+
+        Carriages(int count) throws Exception {
+            for (int i = 0; i < count; i++) {
+                DatagramChannel channel = DatagramChannel.open();
+                channel.bind(new InetSocketAddress("127.0.0.1", 0));
+                channel.configureBlocking(false);
+                Carriage carriage = new Carriage("BR" + (i + 1), channel);
+                channel.register(selector, SelectionKey.OP_READ, carriage);
+                carriages.add(carriage);
+                send(carriage, McpMessage.of("ccp", MessageType.CCIN, carriage.id).withCodec(BinaryCodec.NAME),
+                        false);
+            }
+        }
+
+        @Override
+        public void run() {
+            long nextHeartbeat = System.currentTimeMillis() + HEARTBEAT_MILLIS;
+            try {
+                while (running) {
+                    selector.select(this::receive, 100);
+                    if (System.currentTimeMillis() >= nextHeartbeat) {
+                        nextHeartbeat += HEARTBEAT_MILLIS;
+                        for (Carriage carriage : carriages) {
+                            send(carriage, McpMessage.of("ccp", MessageType.STRQ, carriage.id), true);
+                        }
+                    }
+                }
+            } catch (Exception e) {
+                if (running) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        private void receive(SelectionKey key) {
+            Carriage carriage = (Carriage) key.attachment();
+            try {
+                while (true) {
+                    buffer.clear();
+                    if (carriage.channel.receive(buffer) == null) {
+                        return;
+                    }
+                    buffer.flip();
+                    int length = buffer.remaining();
+                    buffer.get(bytes, 0, length);
+                    McpMessage message = McpMessage.decode(bytes, 0, length);
+                    if (message.getType() == MessageType.AKIN) {
+                        carriage.window = new SequenceWindow(message.getSequence());
+                    } else if (message.getType() == MessageType.EXEC && message.hasSequence()) {
+                        carriage.window.accept(message.getSequence());
+                        send(carriage, McpMessage.of("ccp", MessageType.ACK, carriage.id)
+                                .withSequence(carriage.window.getCumulative())
+                                .withAckMask(carriage.window.getAckMask()), true);
+                    }
+                }
+            } catch (Exception e) {
+                if (running) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        private static void send(Carriage carriage, McpMessage message, boolean binary) throws Exception {
+            byte[] data = binary ? BinaryCodec.encode(message)
+                    : JSONProcessor.encode(message).getBytes(StandardCharsets.UTF_8);
+            carriage.channel.send(ByteBuffer.wrap(data), MCP_ADDRESS);
+        }
+
+        void close() throws Exception {
+            running = false;
+            selector.wakeup();
+            for (Carriage carriage : carriages) {
+                carriage.channel.close();
+            }
+            selector.close();
+        }
+    }
+
+    private static final class Carriage {
+        private final String id;
+        private final DatagramChannel channel;
+        private SequenceWindow window = new SequenceWindow(); // Replaced by AKIN
+
+        Carriage(String id, DatagramChannel channel) {
+            this.id = id;
+            this.channel = channel;
+        }
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--")) {
+                throw new IllegalArgumentException("Unexpected argument: " + args[i]);
+            }
+            String key = args[i].substring(2);
+            boolean hasValue = i + 1 < args.length && !args[i + 1].startsWith("--");
+            options.put(key, hasValue ? args[++i] : "true");
+        }
+        return options;
+    }
+
+    private static int intOption(Map<String, String> options, String key, int defaultValue) {
+        return options.containsKey(key) ? Integer.parseInt(options.get(key)) : defaultValue;
+    }
+}
@@ -0,0 +1,37 @@
+package CCP;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// The org.json message path as the original CCP and MCP used it: a four-field
+// status built with a JSONObject, and a received message parsed and pretty
+// printed for the log.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class JsonCodecBenchmark {
+
+    private final String status = JSONProcessor.encodeMessage("ccp", "STAT", "BR12");
+
+    @Benchmark
+    public String encodeMessage() {
+        return JSONProcessor.encodeMessage("ccp", "STAT", "BR12");
+    }
+
+    @Benchmark
+    public String decodeMessage() {
+        return JSONProcessor.decodeMessage(status);
+    }
+}
@@ -0,0 +1,70 @@
+package CCP;
+
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// MCP.processReceivedMessage for one registered carriage, replies included:
+// a heartbeat answered with AKST, a STAT carrying a track position, and a
+// command ACK. The carriage is a socket on localhost that is never read.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class McpReceiveBenchmark {
+
+    @Param({"STRQ", "STAT", "ACK"})
+    public String message;
+
+    private DatagramSocket carriage;
+    private InetSocketAddress source;
+    private MCP mcp;
+    private McpMessage received;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        Log.setLevel(Log.Level.WARN);
+        carriage = new DatagramSocket(0);
+        source = new InetSocketAddress("127.0.0.1", carriage.getLocalPort());
+        mcp = new MCP();
+        mcp.processReceivedMessage(McpMessage.of("ccp", MessageType.CCIN, "BR1"), source);
+        switch (message) {
+            case "STRQ":
+                received = McpMessage.of("ccp", MessageType.STRQ, "BR1");
+                break;
+            case "STAT":
+                received = McpMessage.of("ccp", MessageType.STAT, "BR1").withPosition(12_000);
+                break;
+            default:
+                received = McpMessage.of("ccp", MessageType.ACK, "BR1").withSequence(1000);
+                break;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mcp.close();
+        carriage.close();
+    }
+
+    @Benchmark
+    public void processReceivedMessage() throws Exception {
+        mcp.processReceivedMessage(received, source);
+    }
+}
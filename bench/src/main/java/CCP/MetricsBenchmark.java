@@ -0,0 +1,67 @@
+package CCP;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+// What the CCP's metrics add to one received message: the type counter, the
+// queue and handling histograms and the nanoTime calls that time them, as in
+// the CCP constructor. The baseline makes the same nanoTime calls and records
+// nothing, so the difference is the cost of recording. The target is under
+// 100 ns per message, on one thread and with four threads recording at once.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MetricsBenchmark {
+
+    private final Metrics metrics = new Metrics("ccp", "BR1");
+    private final Metrics.Counter[] received = metrics.counters("messages_received_total", "type",
+            MessageType.values(), "Messages received from the MCP");
+    private final Metrics.Histogram queueTime = metrics.histogram("command_queue_seconds", "Queue time");
+    private final Metrics.Histogram handlingTime = metrics.histogram("message_handling_seconds", "Handling time");
+    private final int type = MessageType.EXEC.ordinal();
+
+    @Benchmark
+    public long baseline() {
+        long queuedNanos = System.nanoTime();
+        long startNanos = System.nanoTime();
+        return System.nanoTime() - startNanos + (startNanos - queuedNanos);
+    }
+
+    @Benchmark
+    public void recorded() {
+        record();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public long baselineContended() {
+        return baseline();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void recordedContended() {
+        record();
+    }
+
+    private void record() {
+        received[type].increment();
+        long queuedNanos = System.nanoTime();
+        long startNanos = System.nanoTime();
+        queueTime.record(startNanos - queuedNanos);
+        handlingTime.recordSince(startNanos);
+    }
+}
@@ -0,0 +1,310 @@
+package CCP;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// The reliable EXEC stream over a lossy loopback, through every event that
+// makes the two ends resync. An MCP and several CCPs talk through an
+// ImpairmentProxy that drops, duplicates and reorders datagrams, and the CCPs
+// forward to an emulated ESP32 directly. Commands keep flowing while:
+//
+//   burst        one carriage is sent far more than the window at once
+//   ccp-restart  a CCP is stopped and started again under the same ID
+//   forget       the MCP is told a carriage disconnected, and it re-registers
+//   mcp-restart  the MCP is closed and a new one started on the same port
+//
+// Forgetting a carriage or closing the MCP drops what is outstanding, so those
+// phases wait for the stream to drain first. Commands to the forgotten carriage
+// are refused until it registers again. Every command the MCP did not give up on
+// must reach the ESP32, and no more than ReliableSender.WINDOW commands may ever
+// be in flight to one carriage. While every carriage stays registered, in the
+// steady and burst phases, the MCP must not give up on any command at all.
+// Exits with status 1 when any of these is broken. Duplicates are reported but
+// allowed: a restarted CCP has lost its window, so a command the old one
+// executed but whose ACK was lost is executed again.
+//
+// Usage: java -cp bench/target/benchmarks.jar CCP.ReliableStreamLossTest [--carriages 4]
+//        [--commands 100] [--burst 300] [--loss 0.2] [--duplicate 0.05] [--reorder 0.05] [--seed 7]
+public class ReliableStreamLossTest {
+
+    private static final int MCP_PORT = 2000;
+    private static final int MCP_PROXY_PORT = 2100;
+    private static final int ESP_PORT = 4200;
+    private static final int FIRST_CCP_PORT = 3000;
+    private static final int FIRST_CCP_ESP_PORT = 4500;
+    private static final long SETTLE_MILLIS = 4000;
+    private static final long DRAIN_MILLIS = 10_000; // Longer than the MCP takes to give up on a command
+    private static final long REGISTRATION_TIMEOUT_MILLIS = 20_000;
+    private static final Action[] CYCLE = {Action.FFASTC, Action.STOPC, Action.STOPO, Action.FLASH_LED};
+
+    private final Set<String> sent = ConcurrentHashMap.newKeySet();      // "BR1:epoch:seq"
+    private final Map<String, Long> arrivals = new ConcurrentHashMap<>(); // "BR1:seq" -> times seen at the ESP32
+    private final AtomicLong espDuplicates = new AtomicLong();
+    private final List<String> failures = new ArrayList<>();
+    private final List<ReliableSender> senders = new ArrayList<>();       // One per MCP started
+    private final String[] ids;
+    private final CCP[] ccps;
+    private final int commands;
+    private MCP mcp;
+    private Thread listener;
+    private int maxInFlight;
+    private int commandCount;
+    private int refused; // Commands the MCP would not send, to a carriage that was not registered
+
+    private ReliableStreamLossTest(int carriages, int commands) {
+        this.ids = new String[carriages];
+        this.ccps = new CCP[carriages];
+        this.commands = commands;
+        for (int i = 0; i < carriages; i++) {
+            ids[i] = "BR" + (i + 1);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        Log.setLevel(Log.Level.ERROR);
+        int carriages = Math.max(3, intOption(options, "carriages", 4));
+        long seed = Long.parseLong(options.getOrDefault("seed", "7"));
+        ImpairmentProxy.Impairment impairment = ImpairmentProxy.Impairment.none()
+                .withLatency(2, 3)
+                .withLoss(doubleOption(options, "loss", 0.2))
+                .withDuplication(doubleOption(options, "duplicate", 0.05))
+                .withReordering(doubleOption(options, "reorder", 0.05), 20);
+        System.out.println("Reliable stream over " + impairment + ", " + carriages + " carriages, seed " + seed);
+
+        ReliableStreamLossTest test = new ReliableStreamLossTest(carriages, intOption(options, "commands", 100));
+        boolean passed = test.run(impairment, seed, intOption(options, "burst", 300));
+        System.exit(passed ? 0 : 1);
+    }
+
+    private boolean run(ImpairmentProxy.Impairment impairment, long seed, int burst) throws Exception {
+        Esp32Emulator emulator = new Esp32Emulator(seed + 1);
+        emulator.setTimeScale(0);
+        emulator.setCommandListener(this::onEspCommand);
+        emulator.addSharedPort(ESP_PORT);
+        ImpairmentProxy proxy = new ImpairmentProxy(MCP_PROXY_PORT,
+                new InetSocketAddress("127.0.0.1", MCP_PORT), impairment, impairment, seed);
+        startMcp();
+        for (int i = 0; i < ids.length; i++) {
+            startCcp(i);
+        }
+
+        phase("steady", true, () -> sendRound(commands));
+        phase("burst", true, () -> {
+            for (int n = 0; n < burst; n++) {
+                send(ids[2]);
+            }
+        });
+        phase("ccp-restart", false, () -> {
+            ccps[0].stop();
+            Thread.sleep(200);
+            startCcp(0);
+            sendRound(commands);
+        });
+        phase("forget", false, () -> {
+            awaitDrained();
+            disconnect(ids[1]);
+            while (mcp.getCarriageRegistry().isRegistered(ids[1])) {
+                Thread.sleep(10);
+            }
+            for (int n = 0; n < commands; n++) {
+                send(ids[n % ids.length]); // Unroutable to the forgotten carriage until it registers again
+                Thread.sleep(2);
+            }
+        });
+        phase("mcp-restart", false, () -> {
+            awaitDrained();
+            mcp.close();
+            listener.join(1000); // Port 2000 is only released once the blocked receive returns
+            startMcp();
+            sendRound(commands);
+        });
+        Thread.sleep(SETTLE_MILLIS);
+
+        long abandoned = abandoned();
+        long retransmits = 0;
+        for (ReliableSender sender : senders) {
+            retransmits += sender.getRetransmitCount();
+        }
+        int outstanding = 0;
+        for (String id : ids) {
+            outstanding += mcp.getReliableSender().getOutstanding(id);
+        }
+        long delivered = 0;
+        for (String key : sent) {
+            String[] parts = key.split(":");
+            if (arrivals.containsKey(parts[0] + ":" + parts[2])) {
+                delivered++;
+            }
+        }
+        long unaccounted = Math.max(0, sent.size() - delivered - abandoned - outstanding);
+
+        System.out.println();
+        System.out.println("Commands sent:         " + sent.size());
+        System.out.println("Reached ESP32:         " + delivered);
+        System.out.println("Given up by the MCP:   " + abandoned);
+        System.out.println("Still outstanding:     " + outstanding);
+        System.out.println("Refused, unregistered: " + refused);
+        System.out.println("Lost without give-up:  " + unaccounted);
+        System.out.println("Duplicates at ESP32:   " + espDuplicates.get());
+        System.out.println("MCP retransmits:       " + retransmits);
+        System.out.println("Max in flight:         " + maxInFlight + " (window " + ReliableSender.WINDOW + ")");
+        System.out.println(proxy.getUpstream());
+        System.out.println(proxy.getDownstream());
+
+        if (unaccounted > 0) {
+            failures.add(unaccounted + " commands lost without the MCP giving up on them");
+        }
+        if (maxInFlight > ReliableSender.WINDOW) {
+            failures.add(maxInFlight + " commands in flight to one carriage");
+        }
+        boolean passed = failures.isEmpty();
+        System.out.println(passed ? "PASSED" : "FAILED: " + String.join("; ", failures));
+
+        for (CCP ccp : ccps) {
+            ccp.stop();
+        }
+        mcp.close();
+        proxy.close();
+        emulator.close();
+        return passed;
+    }
+
+    private interface Step {
+        void run() throws Exception;
+    }
+
+    // Runs one phase once every carriage is registered, so its commands are routable. In a
+    // strict phase every carriage stays registered, so the MCP must not give up on anything
+    private void phase(String name, boolean strict, Step step) throws Exception {
+        int before = sent.size();
+        long duplicatesBefore = espDuplicates.get();
+        long abandonedBefore = abandoned();
+        step.run();
+        if (strict) {
+            awaitDrained();
+        }
+        awaitRegistration(name);
+        long givenUp = abandoned() - abandonedBefore;
+        if (strict && givenUp > 0) {
+            failures.add(givenUp + " commands given up on in the " + name + " phase");
+        }
+        System.out.println(String.format("%-12s %5d commands, %3d duplicates at the ESP32, %3d given up so far in the phase",
+                name, sent.size() - before, espDuplicates.get() - duplicatesBefore, givenUp));
+    }
+
+    private void sendRound(int count) throws Exception {
+        awaitRegistration("before sending");
+        for (int n = 0; n < count; n++) {
+            send(ids[n % ids.length]);
+            Thread.sleep(2);
+        }
+    }
+
+    private void send(String id) throws Exception {
+        ReliableSender sender = mcp.getReliableSender();
+        int sequence = sender.nextSequence(id);
+        McpMessage command = McpMessage.exec("MCP", CYCLE[commandCount++ % CYCLE.length], id).withSequence(sequence);
+        try {
+            sender.send(command);
+        } catch (IOException e) {
+            refused++;
+            return;
+        }
+        sent.add(id + ":" + senders.size() + ":" + sequence);
+        maxInFlight = Math.max(maxInFlight, sender.getInFlight(id));
+    }
+
+    private long abandoned() {
+        long abandoned = 0;
+        for (ReliableSender sender : senders) {
+            abandoned += sender.getAbandonedCount();
+        }
+        return abandoned;
+    }
+
+    private void awaitDrained() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + DRAIN_MILLIS;
+        for (String id : ids) {
+            while (mcp.getReliableSender().getOutstanding(id) > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+        }
+    }
+
+    private void awaitRegistration(String phase) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + REGISTRATION_TIMEOUT_MILLIS;
+        for (String id : ids) {
+            while (!mcp.getCarriageRegistry().isRegistered(id)) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw new IllegalStateException(id + " did not register " + phase);
+                }
+                Thread.sleep(20);
+            }
+        }
+    }
+
+    // Tells the MCP the carriage disconnected, as the CCP's DISCONNECT status would. The CCP
+    // itself keeps running, finds the MCP silent and registers again
+    private void disconnect(String id) throws Exception {
+        byte[] data = JSONProcessor.encode(McpMessage.actionStatus("ccp", Action.DISCONNECT, id))
+                .getBytes(StandardCharsets.UTF_8);
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.send(new DatagramPacket(data, data.length, new InetSocketAddress("127.0.0.1", MCP_PORT)));
+        }
+    }
+
+    private void startMcp() throws Exception {
+        mcp = new MCP();
+        senders.add(mcp.getReliableSender());
+        listener = new Thread(mcp::listenForMessages, "loss-test-mcp-listener");
+        listener.setDaemon(true);
+        listener.start();
+    }
+
+    private void startCcp(int index) throws Exception {
+        ccps[index] = new CCP(ids[index], "127.0.0.1", MCP_PROXY_PORT, "127.0.0.1", FIRST_CCP_PORT + index,
+                "127.0.0.1", ESP_PORT, FIRST_CCP_ESP_PORT + index, 1, ExecutionMode.PLATFORM);
+        ccps[index].connect();
+    }
+
+    private void onEspCommand(Esp32Emulator.EmulatedEsp esp, McpMessage message, long receivedNanos) {
+        if (message.getType() != MessageType.EXEC || !message.hasSequence()) {
+            return;
+        }
+        if (arrivals.merge(message.getClientId() + ":" + message.getSequence(), 1L, Long::sum) > 1) {
+            espDuplicates.incrementAndGet();
+        }
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--")) {
+                throw new IllegalArgumentException("Unexpected argument: " + args[i]);
+            }
+            String key = args[i].substring(2);
+            boolean hasValue = i + 1 < args.length && !args[i + 1].startsWith("--");
+            options.put(key, hasValue ? args[++i] : "true");
+        }
+        return options;
+    }
+
+    private static int intOption(Map<String, String> options, String key, int defaultValue) {
+        return options.containsKey(key) ? Integer.parseInt(options.get(key)) : defaultValue;
+    }
+
+    private static double doubleOption(Map<String, String> options, String key, double defaultValue) {
+        return options.containsKey(key) ? Double.parseDouble(options.get(key)) : defaultValue;
+    }
+}
@@ -0,0 +1,164 @@
+package CCP;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Replays one recorded-like stream of GAPS through the pace keeping the CCP
+// used to have and through SpeedController, and reports the state churn and
+// executor work each causes. The front gap wanders around the slow-down
+// distance, as it does when two carriages follow each other closely; a quarter
+// of the GAPS repeat the previous distances, as the MCP resends unchanged gaps.
+//
+//   per-message  the old adjustSpeed: one threshold, evaluated on every GAPS
+//   hysteresis   SpeedController with the CCP's thresholds and dwell time
+//
+// Each run drives its own StateManager and LEDController, wired as the CCP
+// wires them, on a scheduler that counts the tasks it runs. Reported per run:
+// state transitions, LED scheduler tasks run (every transition starts or stops
+// a pattern, and a flashing one runs every 500 ms until replaced), and for the
+// controller the GAPS it skipped as unchanged or held, and the resumes it
+// deferred to the timer wheel.
+//
+// Usage: java -cp bench/target/benchmarks.jar CCP.SpeedControlReplayTest [--gaps 20000]
+//        [--interval-micros 1000] [--min-gap 700] [--max-gap 1800] [--step 100] [--seed 42]
+public class SpeedControlReplayTest {
+
+    // As in CCP
+    private static final int SLOW_DOWN_GAP_MM = 1000;
+    private static final int RESUME_GAP_MM = 1500;
+    private static final long MIN_SPEED_CHANGE_MILLIS = 1000;
+    private static final long SETTLE_MILLIS = 4500; // Longer than the longest LED pattern
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        Log.setLevel(Log.Level.ERROR);
+        int[] gaps = gaps(intOption(options, "gaps", 20_000), intOption(options, "min-gap", 700),
+                intOption(options, "max-gap", 1800), intOption(options, "step", 100),
+                Long.parseLong(options.getOrDefault("seed", "42")));
+        long intervalNanos = intOption(options, "interval-micros", 1000) * 1000L;
+        System.out.println("Replaying " + gaps.length + " GAPS, one every "
+                + intervalNanos / 1000 + " us, slow down below " + SLOW_DOWN_GAP_MM
+                + " mm, resume above " + RESUME_GAP_MM + " mm");
+
+        Run perMessage = new Run("per-message");
+        perMessage.replay(gaps, intervalNanos, gap -> perMessage.stateManager.updateState(gap < SLOW_DOWN_GAP_MM
+                ? StateManager.CCPState.MAINTAINING_PACE : StateManager.CCPState.FULL_SPEED));
+        perMessage.report();
+
+        Run hysteresis = new Run("hysteresis");
+        HashedTimerWheel timer = new HashedTimerWheel(100, 64, "replay-timer");
+        SpeedController controller = new SpeedController(hysteresis.stateManager, timer,
+                SLOW_DOWN_GAP_MM, RESUME_GAP_MM, MIN_SPEED_CHANGE_MILLIS);
+        hysteresis.replay(gaps, intervalNanos, gap -> controller.onGaps(gap, McpMessage.NO_POSITION));
+        timer.stop();
+        hysteresis.report();
+        System.out.println(String.format("  skipped unchanged %d, held %d, resumes deferred to the timer %d",
+                controller.getUnchanged(), controller.getHeld(), controller.getDeferred()));
+
+        System.out.println(String.format("Transitions %d -> %d, LED scheduler tasks %d -> %d",
+                perMessage.transitions.get(), hysteresis.transitions.get(),
+                perMessage.scheduler.tasks.get(), hysteresis.scheduler.tasks.get()));
+        System.exit(0);
+    }
+
+    // A front gap doing a bounded random walk, unchanged for a quarter of the GAPS
+    private static int[] gaps(int count, int minGapMm, int maxGapMm, int stepMm, long seed) {
+        Random random = new Random(seed);
+        int[] gaps = new int[count];
+        int gap = (minGapMm + maxGapMm) / 2;
+        for (int i = 0; i < count; i++) {
+            if (random.nextInt(4) != 0) {
+                gap += random.nextInt(2 * stepMm + 1) - stepMm;
+            }
+            gap = Math.max(minGapMm, Math.min(maxGapMm, gap));
+            gaps[i] = gap;
+        }
+        return gaps;
+    }
+
+    private interface GapHandler {
+        void onGap(int frontGapMm);
+    }
+
+    // One carriage's StateManager and LEDs, cruising at full speed when the replay starts
+    private static final class Run {
+        final String name;
+        final StateManager stateManager = new StateManager();
+        final CountingScheduler scheduler = new CountingScheduler();
+        final AtomicLong transitions = new AtomicLong();
+        private long elapsedNanos;
+
+        Run(String name) {
+            this.name = name;
+            LEDController ledController = new LEDController(scheduler);
+            stateManager.updateState(StateManager.CCPState.CONNECTED);
+            stateManager.updateState(StateManager.CCPState.FULL_SPEED);
+            // The LED patterns CCP.updateLEDState uses for the two cruising states
+            stateManager.addListener((oldState, newState) -> {
+                transitions.incrementAndGet();
+                if (newState == StateManager.CCPState.MAINTAINING_PACE) {
+                    ledController.flash(3, 4);
+                } else {
+                    ledController.turnOn(2);
+                }
+            });
+        }
+
+        void replay(int[] gaps, long intervalNanos, GapHandler handler) throws InterruptedException {
+            long startNanos = System.nanoTime();
+            for (int i = 0; i < gaps.length; i++) {
+                handler.onGap(gaps[i]);
+                long waitNanos = startNanos + (i + 1) * intervalNanos - System.nanoTime();
+                if (waitNanos > 0) {
+                    LockSupport.parkNanos(waitNanos);
+                }
+            }
+            elapsedNanos = System.nanoTime() - startNanos;
+            Thread.sleep(SETTLE_MILLIS); // Let the last pattern finish so its phases are counted
+            scheduler.shutdown();
+            scheduler.awaitTermination(1, TimeUnit.SECONDS);
+        }
+
+        void report() {
+            System.out.println(String.format("%-12s %.1f s, transitions %d, LED scheduler tasks %d",
+                    name, elapsedNanos / 1e9, transitions.get(), scheduler.tasks.get()));
+        }
+    }
+
+    // The LED scheduler the CCP shares, counting each task run, periodic ones once per period
+    private static final class CountingScheduler extends ScheduledThreadPoolExecutor {
+        final AtomicLong tasks = new AtomicLong();
+
+        CountingScheduler() {
+            super(1);
+            setRemoveOnCancelPolicy(true);
+        }
+
+        @Override
+        protected void afterExecute(Runnable task, Throwable error) {
+            tasks.incrementAndGet();
+        }
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--")) {
+                throw new IllegalArgumentException("Unexpected argument: " + args[i]);
+            }
+            String key = args[i].substring(2);
+            boolean hasValue = i + 1 < args.length && !args[i + 1].startsWith("--");
+            options.put(key, hasValue ? args[++i] : "true");
+        }
+        return options;
+    }
+
+    private static int intOption(Map<String, String> options, String key, int defaultValue) {
+        return options.containsKey(key) ? Integer.parseInt(options.get(key)) : defaultValue;
+    }
+}
@@ -0,0 +1,39 @@
+package CCP;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// A CCP status message from the template in StatusEncoder against the
+// JSONObject that JSONProcessor.encodeMessage builds, both down to the bytes
+// handed to the socket. Run with -prof gc: the template encode should show
+// 0 B/op.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class StatusEncoderBenchmark {
+
+    private final StatusEncoder encoder = new StatusEncoder("ccp", "BR12");
+
+    @Benchmark
+    public byte[] encodeMessage() {
+        return JSONProcessor.encodeMessage("ccp", "STAT", "BR12").getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public int encodeTemplate() {
+        return encoder.encode("STAT", Timestamps.nowMillis());
+    }
+}
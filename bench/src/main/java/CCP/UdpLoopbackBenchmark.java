@@ -0,0 +1,92 @@
+package CCP;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Round trip through a CommunicationHandler on localhost: a status goes out
+// to an echo socket standing in for the MCP, and the time is taken once the
+// handler has received and decoded the echo and called its listener. Run with
+// -prof gc to see what each handler allocates per datagram.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class UdpLoopbackBenchmark {
+
+    @Param({"udp", "nio"})
+    public String handlerType;
+
+    private final BlockingQueue<McpMessage> received = new LinkedBlockingQueue<>();
+    private final byte[] status = JSONProcessor.encodeMessage("ccp", "STAT", "BR12").getBytes(StandardCharsets.UTF_8);
+    private DatagramSocket echo;
+    private CommunicationHandler handler;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        Log.setLevel(Log.Level.WARN);
+        echo = new DatagramSocket(0);
+        Thread echoThread = new Thread(this::echo, "bench-echo");
+        echoThread.setDaemon(true);
+        echoThread.start();
+        handler = "nio".equals(handlerType)
+                ? new NIOCommunicationHandler("127.0.0.1", echo.getLocalPort(), "127.0.0.1", 0,
+                        received::add, daemonThreads())
+                : new UDPCommunicationHandler("127.0.0.1", echo.getLocalPort(), "127.0.0.1", 0,
+                        received::add, daemonThreads());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        handler.close();
+        echo.close();
+    }
+
+    @Benchmark
+    public McpMessage roundTrip() throws Exception {
+        handler.sendMessage(status);
+        return received.take();
+    }
+
+    private void echo() {
+        byte[] buffer = new byte[2048];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        try {
+            while (true) {
+                packet.setLength(buffer.length);
+                echo.receive(packet);
+                echo.send(packet); // Back to the sender's address
+            }
+        } catch (Exception e) {
+            // Closed by tearDown
+        }
+    }
+
+    static ThreadFactory daemonThreads() {
+        return runnable -> {
+            Thread thread = new Thread(runnable, "bench-listener");
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
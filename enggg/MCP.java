@@ -1,5 +1,6 @@
 import java.io.IOException;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
 import org.json.JSONObject;
 import java.util.Random;
 
@@ -142,7 +143,7 @@ public class MCP {
         while (true) {
             try {
                 mcpSocket.receive(packet);
-                String received = new String(packet.getData(), 0, packet.getLength());
+                String received = new String(packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8);
                 System.out.println("Received message: " + received);
 
                 JSONObject message = new JSONObject(received);
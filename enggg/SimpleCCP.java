@@ -1,5 +1,6 @@
 import java.io.IOException;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -17,6 +18,7 @@ public class SimpleCCP {
     private boolean isLEDFlashing; // Simulates LED flashing state
     private InetAddress espAddress;  // IP address for ESP32
     private int espPort;  // Port for ESP32
+    private DatagramSocket espSocket;  // Reused for every send to and ACK from ESP32
     private int sequenceNumbers;  // Sequence number for messages
     private boolean areDoorsOpen = false; // Track if doors are open
 
@@ -30,6 +32,7 @@ public class SimpleCCP {
         this.sequenceNumbers = sequenceNumber;
         this.espAddress = InetAddress.getByName(espIp);
         this.espPort = espPort;
+        this.espSocket = new DatagramSocket(); // ESP32 replies to the port we send from
 
         // Initially, CCP is in the STARTED state
         this.stateManager.updateState(StateManager.CCPState.STARTED);
@@ -171,14 +174,17 @@ public class SimpleCCP {
         }
     }
 
+    // Closes the ESP32 socket, which stays open for the life of the CCP
+    public void stop() {
+        espSocket.close();
+    }
+
     // Method to send messages to ESP32
     public void sendMessageToESP(String message) throws Exception {
-        DatagramSocket socket = new DatagramSocket();
-        byte[] buffer = message.getBytes();
+        byte[] buffer = message.getBytes(StandardCharsets.UTF_8);
         DatagramPacket packet = new DatagramPacket(
                 buffer, buffer.length, espAddress, espPort);
-        socket.send(packet);
-        socket.close();
+        espSocket.send(packet);
         System.out.println("Message sent to ESP32: " + message);
     }
 
@@ -423,19 +429,19 @@ public class SimpleCCP {
         }
     }
 
-    // Method to wait for acknowledgment from ESP32
+    // Method to wait for acknowledgment from ESP32 on the socket the status was sent from
     private String waitForAcknowledgment() throws IOException {
         byte[] buffer = new byte[1024];
-        DatagramSocket socket = new DatagramSocket(espPort);  // Port used to listen for acknowledgment
-        socket.setSoTimeout(5000);  // Timeout after 5 seconds (5000 ms)
+        espSocket.setSoTimeout(5000);  // Timeout after 5 seconds (5000 ms)
 
         try {
             DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-            socket.receive(packet);  // This will block until a message is received or timeout occurs
-            String message = new String(packet.getData(), 0, packet.getLength());
+            espSocket.receive(packet);  // This will block until a message is received or timeout occurs
+            String message = new String(packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8).trim();
 
-            // Assume acknowledgment message is "ACK"
-            if ("ACK".equals(message)) {
+            // Accept a bare "ACK" or the JSON {"message":"ACK"} sent by TestESPServer
+            if ("ACK".equals(message) || (message.startsWith("{")
+                    && "ACK".equals(new JSONObject(message).optString("message", null)))) {
                 return "ACK";
             } else {
                 System.err.println("Unexpected acknowledgment message: " + message);
@@ -444,8 +450,11 @@ public class SimpleCCP {
         } catch (SocketTimeoutException e) {
             System.err.println("No acknowledgment received, timeout occurred.");
             return "NO_ACK";  // Return "NO_ACK" if timeout occurs
+        } catch (JSONException e) {
+            System.err.println("Malformed acknowledgment message: " + e.getMessage());
+            return "NO_ACK";
         } finally {
-            socket.close();
+            espSocket.setSoTimeout(0);
         }
     }
 
@@ -470,6 +479,7 @@ public class SimpleCCP {
                     "127.0.0.1", 3000,
                     "127.0.0.1", 3012, 0);
             ccp.connect(); // Connect to MCP
+            Runtime.getRuntime().addShutdownHook(new Thread(ccp::stop));
 
             System.out.println("CCP is running and waiting for messages from MCP...");
 
@@ -515,7 +525,7 @@ public class SimpleCCP {
         // Sends a message to the MCP
         @Override
         public void sendMessage(String message) throws Exception {
-            byte[] buffer = message.getBytes();
+            byte[] buffer = message.getBytes(StandardCharsets.UTF_8);
             DatagramPacket packet = new DatagramPacket(buffer, buffer.length, mcpAddress, mcpPort);
             socket.send(packet);
             System.out.println("Message sent to MCP: " + message);
@@ -530,7 +540,7 @@ public class SimpleCCP {
                     DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
                     socket.receive(packet);
 
-                    String message = new String(packet.getData(), 0, packet.getLength());
+                    String message = new String(packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8);
                     messageListener.onMessageReceived(message);
                 }
             } catch (Exception e) {
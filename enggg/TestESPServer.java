@@ -1,6 +1,7 @@
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
 
 import org.json.JSONObject;
 
@@ -23,7 +24,7 @@ public class TestESPServer {
             DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
             socket.receive(packet);
 
-            String received = new String(packet.getData(), 0, packet.getLength());
+            String received = new String(packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8);
             System.out.println("Received JSON: " + received);
 
             // Parse JSON message
@@ -44,7 +45,7 @@ public class TestESPServer {
     private void sendAcknowledgment(InetAddress address, int port, String ackMessage) throws Exception {
         JSONObject ack = new JSONObject();
         ack.put("message", ackMessage);
-        byte[] ackBytes = ack.toString().getBytes();
+        byte[] ackBytes = ack.toString().getBytes(StandardCharsets.UTF_8);
         DatagramPacket ackPacket = new DatagramPacket(ackBytes, ackBytes.length, address, port);
         socket.send(ackPacket);
         System.out.println("ACK sent.");